@@ -0,0 +1,117 @@
+package beam.analysis.via;
+
+import beam.utils.SyntheticNetworks;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.vehicles.Vehicle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a synthetic event stream of link enter and leave events, departures and vehicles entering traffic for Via.
+ * Some departures use a mode with characters that need xml encoding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventWriterXMLViaCompatibleBenchmark {
+
+    private static final String[] VEHICLE_PREFIXES = {"", "rideHailVehicle-", "SF:"};
+    private static final String[] LEG_MODES = {"car", "walk", "ride_hail", "walk&transit"};
+
+    @Param({"100000"})
+    public int nofEvents;
+
+    @Param({"true", "false"})
+    public boolean eventsForFullVersionOfVia;
+
+    @Param({"1.0"})
+    public double sampling;
+
+    // 0 writes on the benchmark thread, otherwise the capacity of the queue of the asynchronous writer
+    @Param({"0", "65536"})
+    public int asyncQueueCapacity;
+
+    // 0 writes an uncompressed file, otherwise the number of threads a gzipped file is compressed on
+    @Param({"0", "1", "4"})
+    public int compressionThreads;
+
+    private Event[] events;
+    private EventWriterXML_viaCompatible writer;
+    private File file;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createEvents() {
+        Random random = new Random(SyntheticNetworks.SEED);
+        List<Event> stream = new ArrayList<>(nofEvents);
+        double time = 0;
+        while (stream.size() < nofEvents) {
+            int agent = random.nextInt(nofEvents / 10 + 1);
+            String prefix = VEHICLE_PREFIXES[random.nextInt(VEHICLE_PREFIXES.length)];
+            Id<Person> person = Id.create(prefix + agent, Person.class);
+            Id<Vehicle> vehicle = Id.create(prefix + agent, Vehicle.class);
+            Id<Link> link = Id.create(random.nextInt(100000), Link.class);
+            time += random.nextInt(3);
+            stream.add(new PersonDepartureEvent(time, person, link, LEG_MODES[random.nextInt(LEG_MODES.length)]));
+            stream.add(new VehicleEntersTrafficEvent(time, person, link, vehicle, "car", 1.0));
+            for (int i = 0; i < 6; i++) {
+                Id<Link> nextLink = Id.create(random.nextInt(100000), Link.class);
+                time += random.nextInt(30);
+                stream.add(new LinkLeaveEvent(time, vehicle, link));
+                stream.add(new LinkEnterEvent(time, vehicle, nextLink));
+                link = nextLink;
+            }
+        }
+        events = stream.subList(0, nofEvents).toArray(new Event[0]);
+    }
+
+    @Setup(Level.Iteration)
+    public void openWriter() throws IOException {
+        file = File.createTempFile("via-events", compressionThreads == 0 ? ".xml" : ".xml.gz");
+        writer = new EventWriterXML_viaCompatible(file.getPath(), eventsForFullVersionOfVia, sampling, Math.max(1, compressionThreads));
+        if (asyncQueueCapacity > 0) {
+            writer.setAsync(asyncQueueCapacity, EventWriterXML_viaCompatible.Backpressure.BLOCK);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeWriter() {
+        writer.closeFile();
+        file.delete();
+    }
+
+    @Benchmark
+    public void handleEvent() {
+        int i = next;
+        next = (i + 1) % events.length;
+        writer.handleEvent(events[i]);
+    }
+}
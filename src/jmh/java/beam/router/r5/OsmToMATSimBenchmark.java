@@ -0,0 +1,90 @@
+package beam.router.r5;
+
+import beam.utils.SyntheticNetworks;
+import com.conveyal.osmlib.Way;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converting OSM ways into MATSim links, with a realistic mix of highway types and tags overriding the defaults.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OsmToMATSimBenchmark {
+
+    private static final String[] HIGHWAYS = {"motorway", "motorway_link", "primary", "secondary", "tertiary",
+            "residential", "residential", "residential", "living_street", "unclassified", "service"};
+    private static final String[] MAXSPEEDS = {null, null, "50", "30", "25 mph", "65 mph", "none"};
+    private static final String[] LANES = {null, null, "1", "2", "4", "2;3"};
+    private static final String[] ONEWAYS = {null, null, "yes", "no", "-1", "1"};
+    private static final String[] HGVS = {null, null, "designated", "no"};
+
+    @Param({"10000"})
+    public int nofWays;
+
+    private OsmToMATSim osmToMATSim;
+    private Way[] ways;
+    private Node[] nodes;
+    private HashSet<String> modes;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Network network = SyntheticNetworks.createGrid(2 * nofWays);
+        osmToMATSim = new OsmToMATSim(network, true, Collections.emptyMap(), Collections.emptyMap(),
+                Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+        nodes = network.getNodes().values().toArray(new Node[0]);
+        ways = new Way[nofWays];
+        Random random = new Random(SyntheticNetworks.SEED);
+        for (int i = 0; i < nofWays; i++) {
+            Way way = new Way();
+            way.addTag("highway", HIGHWAYS[random.nextInt(HIGHWAYS.length)]);
+            addTag(way, "maxspeed", MAXSPEEDS[random.nextInt(MAXSPEEDS.length)]);
+            addTag(way, "lanes", LANES[random.nextInt(LANES.length)]);
+            addTag(way, "oneway", ONEWAYS[random.nextInt(ONEWAYS.length)]);
+            addTag(way, "hgv", HGVS[random.nextInt(HGVS.length)]);
+            if (random.nextInt(20) == 0) {
+                way.addTag("capacity", Integer.toString(500 + random.nextInt(2000)));
+            }
+            if (random.nextInt(50) == 0) {
+                way.addTag("junction", "roundabout");
+            }
+            ways[i] = way;
+        }
+        modes = new HashSet<>(Collections.singleton("car"));
+    }
+
+    private static void addTag(Way way, String key, String value) {
+        if (value != null) {
+            way.addTag(key, value);
+        }
+    }
+
+    @Benchmark
+    public Link createLink() {
+        int i = next;
+        next = (i + 1) % nofWays;
+        return osmToMATSim.createLink(ways[i], i, i, nodes[i % nodes.length], nodes[(i + 1) % nodes.length], 100.0, modes);
+    }
+}
@@ -0,0 +1,86 @@
+package beam.utils;
+
+import org.matsim.analysis.VolumesAnalyzer;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.config.groups.TravelTimeCalculatorConfigGroup;
+import org.matsim.core.router.util.TravelTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collecting and writing the link statistics of one iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx8g"})
+public class BeamCalcLinkStatsBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int nofLinks;
+
+    @Param({"1"})
+    public int parallelism;
+
+    private BeamCalcLinkStats linkStats;
+    private VolumesAnalyzer analyzer;
+    private TravelTime travelTime;
+    private File outputDirectory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Network network = SyntheticNetworks.createGrid(nofLinks);
+        TravelTimeCalculatorConfigGroup config = new TravelTimeCalculatorConfigGroup();
+        analyzer = SyntheticNetworks.createVolumes(network, config.getMaxTime(), 8, "car");
+        travelTime = (link, time, person, vehicle) -> link.getLength() / link.getFreespeed(time);
+        linkStats = new BeamCalcLinkStats(network, config);
+        linkStats.setParallelism(parallelism);
+        linkStats.addData(analyzer, travelTime);
+        outputDirectory = Files.createTempDirectory("linkstats-benchmark").toFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = outputDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        outputDirectory.delete();
+    }
+
+    @Benchmark
+    public int addData() {
+        linkStats.addData(analyzer, travelTime);
+        return linkStats.getCount();
+    }
+
+    @Benchmark
+    public void writeFile() {
+        linkStats.writeFile(new File(outputDirectory, "linkstats.csv").getPath());
+    }
+
+    @Benchmark
+    public void writeCompressedFile() {
+        linkStats.writeFile(new File(outputDirectory, "linkstats.csv.gz").getPath());
+    }
+}
@@ -0,0 +1,42 @@
+package beam.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The sampling decision taken for every event written for Via.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DistributedRandomNumberGeneratorBenchmark {
+
+    @Param({"0.1", "1.0"})
+    public double probability;
+
+    private DistributedRandomNumberGenerator generator;
+
+    @Setup
+    public void setUp() {
+        generator = new DistributedRandomNumberGenerator(probability);
+    }
+
+    @Benchmark
+    public boolean getDistributedRandomNumber() {
+        return generator.getDistributedRandomNumber();
+    }
+}
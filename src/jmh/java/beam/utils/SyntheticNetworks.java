@@ -0,0 +1,83 @@
+package beam.utils;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.analysis.VolumesAnalyzer;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.Random;
+
+/**
+ * Deterministic synthetic fixtures for the benchmarks, so they run offline and reproducibly:
+ * grid networks of any size and the volumes of a day of traffic on them.
+ */
+public final class SyntheticNetworks {
+
+    public static final long SEED = 4711;
+    private static final double SPACING = 100.0;
+    private static final double[] FREESPEEDS = {8.33, 11.11, 13.89, 22.22, 33.33};
+    private static final double[] CAPACITIES = {600, 1000, 1800, 2000, 4000};
+
+    private SyntheticNetworks() {
+    }
+
+    /**
+     * @return a grid network with the given number of links, every node linked to its right and upper neighbour
+     */
+    public static Network createGrid(int nofLinks) {
+        Network network = NetworkUtils.createNetwork();
+        NetworkFactory factory = network.getFactory();
+        int nofNodes = Math.max(2, (nofLinks + 1) / 2);
+        int width = (int) Math.ceil(Math.sqrt(nofNodes));
+        Node[] nodes = new Node[nofNodes];
+        for (int i = 0; i < nofNodes; i++) {
+            nodes[i] = factory.createNode(Id.create(i, Node.class), new Coord((i % width) * SPACING, (i / width) * SPACING));
+            network.addNode(nodes[i]);
+        }
+        Random random = new Random(SEED);
+        for (int i = 0; i < nofLinks; i++) {
+            int from = (i / 2) % nofNodes;
+            int to = (i % 2 == 0 ? from + 1 : from + width) % nofNodes;
+            if (to == from) {
+                to = (from + 1) % nofNodes;
+            }
+            Link link = factory.createLink(Id.create(i, Link.class), nodes[from], nodes[to]);
+            link.setLength(SPACING + random.nextDouble() * SPACING);
+            int category = random.nextInt(FREESPEEDS.length);
+            link.setFreespeed(FREESPEEDS[category]);
+            link.setCapacity(CAPACITIES[category]);
+            link.setNumberOfLanes(1 + category / 2);
+            network.addLink(link);
+        }
+        return network;
+    }
+
+    /**
+     * @return an analyzer with hourly volumes from vehicles that each traverse a few consecutive links
+     */
+    public static VolumesAnalyzer createVolumes(Network network, int maxTime, int vehiclesPerLink, String mode) {
+        VolumesAnalyzer analyzer = new VolumesAnalyzer(3600, maxTime, network);
+        Link[] links = network.getLinks().values().toArray(new Link[0]);
+        Random random = new Random(SEED);
+        int nofVehicles = links.length * vehiclesPerLink / 4;
+        for (int v = 0; v < nofVehicles; v++) {
+            Id<Vehicle> vehicle = Id.create(v, Vehicle.class);
+            int first = random.nextInt(links.length);
+            double time = random.nextDouble() * (maxTime - 3600);
+            analyzer.handleEvent(new VehicleEntersTrafficEvent(time, Id.create(v, Person.class), links[first].getId(), vehicle, mode, 1.0));
+            for (int i = 0; i < 4; i++) {
+                time += 10 + random.nextInt(60);
+                analyzer.handleEvent(new LinkLeaveEvent(time, vehicle, links[(first + i) % links.length].getId()));
+            }
+        }
+        return analyzer;
+    }
+}
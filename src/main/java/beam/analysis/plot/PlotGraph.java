@@ -1,5 +1,6 @@
 package beam.analysis.plot;
 
+import beam.utils.Metrics;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartUtils;
 import org.jfree.chart.JFreeChart;
@@ -23,24 +24,44 @@ import java.util.TreeMap;
 
 public class PlotGraph {
 
+    private Metrics metrics = Metrics.NOOP;
+
+    /**
+     * Records the time spent rendering and saving histograms ({@code plot.writeGraphic}), the number of charts
+     * ({@code plot.chartsWritten}) and their size ({@code plot.bytesWritten}).
+     */
+    public void setMetrics(final Metrics metrics) {
+        this.metrics = metrics;
+    }
+
     public void writeGraphic(LegHistogram legHistogram, OutputDirectoryHierarchy CONTROLLER_IO, String fileName, String xAxisLabel, final String mode, int iteration, int binSize) {
+        long start = System.nanoTime();
         try {
             String newPath = getHistogramPath(CONTROLLER_IO, fileName, mode, iteration);
             ChartUtils.saveChartAsPNG(new File(newPath), getGraphic(legHistogram, mode, iteration, xAxisLabel, binSize), 1024, 768);
+            recordWrite(newPath, start);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
     public void writeGraphic(OutputDirectoryHierarchy CONTROLLER_IO, Integer iteration, String mode , String fileName , Map<String, TreeMap<Integer, Integer>> personEnterCount , Map<String, TreeMap<Integer, Integer>> personExitCount , Map<String, TreeMap<Integer, Integer>> onRoutes  , String xAxisLabel , int binSize) {
+        long start = System.nanoTime();
         try {
             String newPath = getHistogramPath(CONTROLLER_IO, fileName, mode, iteration);
             ChartUtils.saveChartAsPNG(new File(newPath), getGraphic(mode, iteration , personEnterCount , personExitCount, onRoutes , xAxisLabel , binSize), 1024, 768);
+            recordWrite(newPath, start);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
+    private void recordWrite(String path, long start) {
+        metrics.recordSince("plot.writeGraphic", start);
+        metrics.increment("plot.chartsWritten", 1);
+        metrics.addBytes("plot.bytesWritten", new File(path).length());
+    }
+
     public JFreeChart getGraphic(String mode, int iteration , Map<String, TreeMap<Integer, Integer>> personEnterCount , Map<String, TreeMap<Integer, Integer>> personExitCount , Map<String, TreeMap<Integer, Integer>> onRoutes , String xAxisLabel , int binSize ) {
 
         final XYSeriesCollection xyData = new XYSeriesCollection();
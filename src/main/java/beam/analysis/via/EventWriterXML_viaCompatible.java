@@ -1,18 +1,36 @@
 package beam.analysis.via;
 
 
-import beam.utils.DistributedRandomNumberGenerator;
+import beam.utils.Metrics;
+import beam.utils.ParallelGzipOutputStream;
 import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.PersonArrivalEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
 import org.matsim.core.events.algorithms.EventWriter;
 import org.matsim.core.events.handler.BasicEventHandler;
 import org.matsim.core.utils.io.IOUtils;
 import org.matsim.core.utils.io.UncheckedIOException;
 
-import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPOutputStream;
 
 // for some reason via is expecting wait2link event, instead of vehicle enters traffic event (dec. 2017)
 // perhaps also has to do with the fact, that we are not using most uptodate matsim version
@@ -22,28 +40,77 @@ public class EventWriterXML_viaCompatible implements EventWriter, BasicEventHand
     private static final String TNC = "ride";
     private static final String BUS = "SF";
     private static final String CAR = "car";
-    private final BufferedWriter out;
+    private static final int MAX_BATCH_SIZE = 1024;
+    private static final int GZIP_BUFFER_SIZE = 1 << 16;
+    private static final byte[] LINK_ENTER_TYPE = ViaXmlEncoder.encodeType(LinkEnterEvent.EVENT_TYPE);
+    private static final byte[] LINK_LEAVE_TYPE = ViaXmlEncoder.encodeType(LinkLeaveEvent.EVENT_TYPE);
+    private static final String ENTERS_TRAFFIC_REPLACEMENT = "wait2link";
+    private static final byte[] ENTERS_TRAFFIC_TYPE = ViaXmlEncoder.encodeType(ENTERS_TRAFFIC_REPLACEMENT);
+    private static final byte[] LEAVES_TRAFFIC_TYPE = ViaXmlEncoder.encodeType(VehicleLeavesTrafficEvent.EVENT_TYPE);
+    private static final byte[] ENTERS_VEHICLE_TYPE = ViaXmlEncoder.encodeType(PersonEntersVehicleEvent.EVENT_TYPE);
+    private static final byte[] LEAVES_VEHICLE_TYPE = ViaXmlEncoder.encodeType(PersonLeavesVehicleEvent.EVENT_TYPE);
+    private static final byte[] DEPARTURE_TYPE = ViaXmlEncoder.encodeType(PersonDepartureEvent.EVENT_TYPE);
+    private static final byte[] ARRIVAL_TYPE = ViaXmlEncoder.encodeType(PersonArrivalEvent.EVENT_TYPE);
+    private static final byte[] PERSON = ViaXmlEncoder.encodeAttribute("person");
+    private static final byte[] VEHICLE = ViaXmlEncoder.encodeAttribute("vehicle");
+    private static final byte[] LINK = ViaXmlEncoder.encodeAttribute("link");
+    private static final byte[] NETWORK_MODE = ViaXmlEncoder.encodeAttribute("networkMode");
+    private static final byte[] RELATIVE_POSITION = ViaXmlEncoder.encodeAttribute("relativePosition");
+    private static final byte[] LEG_MODE = ViaXmlEncoder.encodeAttribute("legMode");
+
+    /**
+     * What {@link #handleEvent} does in asynchronous mode when the queue of events to write is full.
+     */
+    public enum Backpressure {
+        /** wait until the writer thread made room */
+        BLOCK,
+        /** drop the event and count it, see {@link #getDroppedEvents()} */
+        DROP
+    }
+
+    private final ViaXmlEncoder out;
+    private final String outFileName;
     private boolean eventsForFullVersionOfVia;
-    private DistributedRandomNumberGenerator distributedRandomNumberGenerator;
-    HashMap<String, HashSet<String>> filterPeopleForViaDemo = new HashMap<>();
-    HashMap<String, Integer> maxPeopleForViaDemo = new HashMap<>();
+    private final double sampling;
+    private ViaAgentSelection agentSelection;
+    private ViaEventFilter filter;
+    private Metrics metrics = Metrics.NOOP;
+    private BlockingQueue<Event> queue;
+    private Backpressure backpressure;
+    private Thread writerThread;
+    // handleEvent checks and queues under the read lock, closeFile closes and queues the end under the write lock,
+    // so that no event is queued behind the end of events
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed;
+    private volatile Throwable writerFailure;
+    private final AtomicLong droppedEvents = new AtomicLong();
+    // marks the end of the queue for the writer thread
+    private final Event endOfEvents = new Event(Double.NaN) {
+        @Override
+        public String getEventType() {
+            return "end of events";
+        }
+    };
 
     public EventWriterXML_viaCompatible(final String outFileName, boolean eventsForFullVersionOfVia) {
         this(outFileName, eventsForFullVersionOfVia, 1);
     }
 
     public EventWriterXML_viaCompatible(final String outFileName, boolean eventsForFullVersionOfVia, double sampling) {
-        this.out = IOUtils.getBufferedWriter(outFileName);
-        this.eventsForFullVersionOfVia = eventsForFullVersionOfVia;
+        this(outFileName, eventsForFullVersionOfVia, sampling, 1);
+    }
 
-        distributedRandomNumberGenerator = new DistributedRandomNumberGenerator(sampling);
-        filterPeopleForViaDemo.put(CAR, new HashSet<>());
-        filterPeopleForViaDemo.put(BUS, new HashSet<>());
-        filterPeopleForViaDemo.put(TNC, new HashSet<>());
+    /**
+     * @param compressionThreads the number of threads a .gz file is compressed on; with more than one, the file
+     *                           consists of independently compressed gzip members, see {@link ParallelGzipOutputStream}
+     */
+    public EventWriterXML_viaCompatible(final String outFileName, boolean eventsForFullVersionOfVia, double sampling, int compressionThreads) {
+        this.out = new ViaXmlEncoder(openOutputStream(outFileName, compressionThreads));
+        this.outFileName = outFileName;
+        this.eventsForFullVersionOfVia = eventsForFullVersionOfVia;
 
-        maxPeopleForViaDemo.put(CAR, 420);
-        maxPeopleForViaDemo.put(BUS, 50);
-        maxPeopleForViaDemo.put(TNC, 30);
+        this.sampling = sampling;
+        setSamplingSeed(ViaAgentSelection.DEFAULT_SEED);
 
         try {
             this.out.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<events version=\"1.0\">\n");
@@ -53,8 +120,121 @@ public class EventWriterXML_viaCompatible implements EventWriter, BasicEventHand
 
     }
 
+    /**
+     * Records the events written ({@code via.eventsWritten}), dropped by sampling ({@code via.eventsSampledOut}), by
+     * the selection of agents for the demo ({@code via.eventsFiltered}) or by the filter ({@code via.eventsOutsideFilter}),
+     * the time spent handling events and closing the file, and the size of the file written ({@code via.bytesWritten}).
+     */
+    public void setMetrics(final Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the filters events have to pass to be written, null for none.
+     */
+    public void setFilter(final ViaEventFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Sets the seed of the sampling, to be called before the first event. Sampling keeps or drops all events of an
+     * agent, by a hash of its person id, so runs with the same seed write the same agents. The events of a vehicle
+     * in traffic, link events in particular, go with the ones of its driver.
+     */
+    public void setSamplingSeed(long seed) {
+        // select 420 car, 50 bus and 30 ride hail agents for the demo
+        this.agentSelection = new ViaAgentSelection(sampling, seed, new String[]{BUS, TNC, CAR}, new int[]{50, 30, 420});
+    }
+
+    /**
+     * Switches to asynchronous mode, to be called before the first event: {@link #handleEvent} only does the
+     * sampling and selection of agents and hands the event over to a bounded queue, and a dedicated thread formats,
+     * compresses and writes the events in the order they were handed over. {@link #closeFile()} writes all events
+     * still queued before closing the file and rethrows the first failure of the writer thread; events handled after
+     * or while it closes are either written or rejected, never lost. Events dropped because the queue was full are counted as {@code via.eventsDropped}.
+     *
+     * @param queueCapacity the number of events that may be queued
+     */
+    public void setAsync(int queueCapacity, final Backpressure backpressure) {
+        if (queue != null) {
+            throw new IllegalStateException("Already asynchronous");
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+        }
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.backpressure = backpressure;
+        this.writerThread = new Thread(this::writeQueuedEvents, "via-event-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * @return the number of events dropped in asynchronous mode because the queue was full
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    private void writeQueuedEvents() {
+        List<Event> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                for (Event event : batch) {
+                    if (event == endOfEvents) {
+                        return;
+                    }
+                    writeEvent(event);
+                }
+                batch.clear();
+            }
+        } catch (Throwable e) {
+            writerFailure = e;
+            if (batch.contains(endOfEvents)) {
+                return;
+            }
+            // keep taking events, so that handleEvent and closeFile never block on a dead writer
+            while (true) {
+                try {
+                    if (queue.take() == endOfEvents) {
+                        return;
+                    }
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
     @Override
     public void closeFile() {
+        long start = System.nanoTime();
+        if (writerThread != null) {
+            try {
+                closeLock.writeLock().lock();
+                try {
+                    closed = true;
+                    queue.put(endOfEvents);
+                } finally {
+                    closeLock.writeLock().unlock();
+                }
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while writing the queued events", e);
+            }
+            writerThread = null;
+            if (writerFailure != null) {
+                try {
+                    this.out.close();
+                } catch (IOException e) {
+                    writerFailure.addSuppressed(e);
+                }
+                throw new RuntimeException("Writing the events failed", writerFailure);
+            }
+        }
         try {
             this.out.write("</events>");
             // I added a "\n" to make it look nicer on the console.  Can't say if this may have unintended side
@@ -65,6 +245,8 @@ public class EventWriterXML_viaCompatible implements EventWriter, BasicEventHand
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
+        metrics.recordSince("via.closeFile", start);
+        metrics.addBytes("via.bytesWritten", new File(outFileName).length());
     }
 
     @Deprecated
@@ -76,123 +258,252 @@ public class EventWriterXML_viaCompatible implements EventWriter, BasicEventHand
     public void reset(final int iter) {
     }
 
-    private boolean addPersonToEventsFile(String person) {
-
-        if (eventsForFullVersionOfVia){
-            return true;
+    @Override
+    public void handleEvent(final Event event) {
+        long start = System.nanoTime();
+        boolean selectsAgents = sampling < 1 || !eventsForFullVersionOfVia;
+        if (selectsAgents) {
+            // before any filter, which might drop the events that tell who drives a vehicle
+            trackDrivers(event);
         }
-
-        String personLabel;
-
-        if (person.contains(BUS)) {
-            personLabel = BUS;
-        } else if (person.contains(TNC)) {
-            personLabel = TNC;
-        } else {
-            personLabel = CAR;
+        if (filter != null && !filter.acceptsTimeAndType(event.getTime(), event.getEventType())) {
+            metrics.increment("via.eventsOutsideFilter", 1);
+            return;
         }
-
-        if (filterPeopleForViaDemo.get(personLabel).size() < maxPeopleForViaDemo.get(personLabel) || filterPeopleForViaDemo.get(personLabel).contains(person)) {
-            filterPeopleForViaDemo.get(personLabel).add(person);
-            return true;
-        } else {
-            return false;
+        Map<String, String> eventAttributes = null;
+        boolean linkEvent = isLinkEvent(event);
+        if (filter != null && filter.filtersLinks()) {
+            String link = linkEvent ? getLinkId(event).toString() : (eventAttributes = event.getAttributes()).get("link");
+            if (!filter.acceptsLink(link)) {
+                metrics.increment("via.eventsOutsideFilter", 1);
+                return;
+            }
         }
-    }
 
-    @Override
-    public void handleEvent(final Event event) {
+        String agent = null;
+        if (selectsAgents) {
+            if (linkEvent) {
+                // the only agent attribute of link events, without building their attributes
+                agent = agentSelection.agentOf(getVehicleId(event));
+            } else {
+                Object personId = eventAttributes == null ? getPersonId(event) : null;
+                if (personId != null) {
+                    // the events written without building their attributes all have a person
+                    agent = personId.toString();
+                } else {
+                    if (eventAttributes == null) {
+                        eventAttributes = event.getAttributes();
+                    }
+                    String person = eventAttributes.get("person");
+                    String vehicle = eventAttributes.get("vehicle");
+                    agent = person != null || vehicle == null ? person : agentSelection.agentOf(vehicle);
+                }
+            }
+        }
 
-        if(!distributedRandomNumberGenerator.getDistributedRandomNumber())
+        if (!agentSelection.isSampled(agent)) {
+            metrics.increment("via.eventsSampledOut", 1);
             return;
+        }
         // select 500 agents for sf-light demo in via
         //if (outFileName.contains("sf-light")){
-        Map<String, String> eventAttributes = event.getAttributes();
-        String person = eventAttributes.get("person");
-        String vehicle = eventAttributes.get("vehicle");
+        if (!eventsForFullVersionOfVia && !agentSelection.selectForDemo(agent)) {
+            metrics.increment("via.eventsFiltered", 1);
+            return;
+        }
+        //}
 
-        if (person != null) {
-            if (!addPersonToEventsFile(person)) return;
+        if (queue == null) {
+            writeEvent(event, eventAttributes);
         } else {
-            if (!addPersonToEventsFile(vehicle)) return;
+            queueEvent(event);
         }
-        //}
+        metrics.recordSince("via.handleEvent", start);
+    }
 
+    private void queueEvent(final Event event) {
+        Lock lock = closeLock.readLock();
+        lock.lock();
         try {
-            this.out.append("\t<event ");
-
-            if (eventAttributes.get("type").equalsIgnoreCase("vehicle enters traffic")) {
-                eventAttributes.put("type", "wait2link");
+            if (closed) {
+                // the writer thread stops at the end of events, nothing would ever take the event from the queue
+                throw new IllegalStateException("The events file is closed already");
+            }
+            if (backpressure == Backpressure.BLOCK) {
+                queue.put(event);
+            } else if (!queue.offer(event)) {
+                droppedEvents.incrementAndGet();
+                metrics.increment("via.eventsDropped", 1);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while queueing an event", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeEvent(final Event event) {
+        writeEvent(event, null);
+    }
 
+    private void trackDrivers(final Event event) {
+        if (event instanceof VehicleEntersTrafficEvent) {
+            VehicleEntersTrafficEvent entersTraffic = (VehicleEntersTrafficEvent) event;
+            agentSelection.enterTraffic(entersTraffic.getVehicleId(), entersTraffic.getPersonId());
+        } else if (event instanceof VehicleLeavesTrafficEvent) {
+            agentSelection.leaveTraffic(((VehicleLeavesTrafficEvent) event).getVehicleId());
+        }
+    }
 
-            for (Map.Entry<String, String> entry : eventAttributes.entrySet()) {
-                this.out.append(entry.getKey());
-                this.out.append("=\"");
-                this.out.append(encodeAttributeValue(entry.getValue()));
-                this.out.append("\" ");
+    /**
+     * @param eventAttributes the attributes of the event if they were built already, otherwise null
+     */
+    private void writeEvent(final Event event, final Map<String, String> eventAttributes) {
+        try {
+            // exactly the classes whose attributes are known, subclasses might add some
+            if (event.getClass() == LinkEnterEvent.class) {
+                LinkEnterEvent linkEnterEvent = (LinkEnterEvent) event;
+                out.writeLinkEvent(event.getTime(), LINK_ENTER_TYPE, linkEnterEvent.getVehicleId(), linkEnterEvent.getLinkId());
+            } else if (event.getClass() == LinkLeaveEvent.class) {
+                LinkLeaveEvent linkLeaveEvent = (LinkLeaveEvent) event;
+                out.writeLinkEvent(event.getTime(), LINK_LEAVE_TYPE, linkLeaveEvent.getVehicleId(), linkLeaveEvent.getLinkId());
+            } else if (!writeWithoutAttributes(event)) {
+                out.writeEvent(eventAttributes != null ? eventAttributes : event.getAttributes(), VehicleEntersTrafficEvent.EVENT_TYPE,
+                        ENTERS_TRAFFIC_REPLACEMENT);
             }
-            this.out.append(" />\n");
         } catch (IOException e) {
+            if (Thread.currentThread() == writerThread) {
+                // recorded as failure of the writer thread and rethrown by closeFile
+                throw new UncheckedIOException(e);
+            }
             e.printStackTrace();
         }
+        metrics.increment("via.eventsWritten", 1);
     }
 
-    // the following method was taken from MatsimXmlWriter in order to correctly encode attributes, but
-    // to forego the overhead of using the full MatsimXmlWriter.
-
     /**
-     * Encodes the given string in such a way that it no longer contains
-     * characters that have a special meaning in xml.
+     * Writes the events of the traffic, vehicle, departure and arrival classes whose attributes are known exactly as
+     * their attribute maps would be written, without building them.
      *
-     * @param attributeValue
-     * @return String with some characters replaced by their xml-encoding.
-     * @see <a href="http://www.w3.org/International/questions/qa-escapes#use">http://www.w3.org/International/questions/qa-escapes#use</a>
+     * @return false if the event is of another class or lacks an attribute that its class leaves out when null
      */
-    private String encodeAttributeValue(final String attributeValue) {
-        if (attributeValue == null) {
-            return null;
-        }
-        int len = attributeValue.length();
-        boolean encode = false;
-        for (int pos = 0; pos < len; pos++) {
-            char ch = attributeValue.charAt(pos);
-            if (ch == '<') {
-                encode = true;
-                break;
-            } else if (ch == '>') {
-                encode = true;
-                break;
-            } else if (ch == '\"') {
-                encode = true;
-                break;
-            } else if (ch == '&') {
-                encode = true;
-                break;
-            }
+    private boolean writeWithoutAttributes(final Event event) throws IOException {
+        Class<? extends Event> eventClass = event.getClass();
+        if (eventClass == VehicleEntersTrafficEvent.class) {
+            VehicleEntersTrafficEvent entersTraffic = (VehicleEntersTrafficEvent) event;
+            return writeTrafficEvent(event.getTime(), ENTERS_TRAFFIC_TYPE, entersTraffic.getPersonId(), entersTraffic.getLinkId(),
+                    entersTraffic.getVehicleId(), entersTraffic.getNetworkMode(), entersTraffic.getRelativePositionOnLink());
+        } else if (eventClass == VehicleLeavesTrafficEvent.class) {
+            VehicleLeavesTrafficEvent leavesTraffic = (VehicleLeavesTrafficEvent) event;
+            return writeTrafficEvent(event.getTime(), LEAVES_TRAFFIC_TYPE, leavesTraffic.getPersonId(), leavesTraffic.getLinkId(),
+                    leavesTraffic.getVehicleId(), leavesTraffic.getNetworkMode(), leavesTraffic.getRelativePositionOnLink());
+        } else if (eventClass == PersonEntersVehicleEvent.class) {
+            PersonEntersVehicleEvent entersVehicle = (PersonEntersVehicleEvent) event;
+            return writeVehicleEvent(event.getTime(), ENTERS_VEHICLE_TYPE, entersVehicle.getPersonId(), entersVehicle.getVehicleId());
+        } else if (eventClass == PersonLeavesVehicleEvent.class) {
+            PersonLeavesVehicleEvent leavesVehicle = (PersonLeavesVehicleEvent) event;
+            return writeVehicleEvent(event.getTime(), LEAVES_VEHICLE_TYPE, leavesVehicle.getPersonId(), leavesVehicle.getVehicleId());
+        } else if (eventClass == PersonDepartureEvent.class) {
+            PersonDepartureEvent departure = (PersonDepartureEvent) event;
+            return writeLegEvent(event.getTime(), DEPARTURE_TYPE, departure.getPersonId(), departure.getLinkId(), departure.getLegMode());
+        } else if (eventClass == PersonArrivalEvent.class) {
+            PersonArrivalEvent arrival = (PersonArrivalEvent) event;
+            return writeLegEvent(event.getTime(), ARRIVAL_TYPE, arrival.getPersonId(), arrival.getLinkId(), arrival.getLegMode());
         }
-        if (encode) {
-            StringBuilder bf = new StringBuilder();
-            for (int pos = 0; pos < len; pos++) {
-                char ch = attributeValue.charAt(pos);
-                if (ch == '<') {
-                    bf.append("&lt;");
-                } else if (ch == '>') {
-                    bf.append("&gt;");
-                } else if (ch == '\"') {
-                    bf.append("&quot;");
-                } else if (ch == '&') {
-                    bf.append("&amp;");
-                } else {
-                    bf.append(ch);
-                }
-            }
+        return false;
+    }
 
-            return bf.toString();
+    private boolean writeTrafficEvent(double time, final byte[] type, final Object personId, final Object linkId,
+                                      final Object vehicleId, final String networkMode, double relativePosition) throws IOException {
+        if (personId == null || linkId == null || vehicleId == null || networkMode == null) {
+            return false;
         }
-        return attributeValue;
+        out.startEvent(time, type);
+        out.putAttribute(PERSON, personId.toString());
+        out.putAttribute(LINK, linkId.toString());
+        out.putAttribute(VEHICLE, vehicleId.toString());
+        out.putAttribute(NETWORK_MODE, networkMode);
+        out.putAttribute(RELATIVE_POSITION, relativePosition);
+        out.endEvent();
+        return true;
+    }
 
+    private boolean writeVehicleEvent(double time, final byte[] type, final Object personId, final Object vehicleId) throws IOException {
+        if (personId == null || vehicleId == null) {
+            return false;
+        }
+        out.startEvent(time, type);
+        out.putAttribute(PERSON, personId.toString());
+        out.putAttribute(VEHICLE, vehicleId.toString());
+        out.endEvent();
+        return true;
     }
 
-}
+    private boolean writeLegEvent(double time, final byte[] type, final Object personId, final Object linkId,
+                                  final String legMode) throws IOException {
+        if (personId == null || linkId == null || legMode == null) {
+            return false;
+        }
+        out.startEvent(time, type);
+        out.putAttribute(PERSON, personId.toString());
+        out.putAttribute(LINK, linkId.toString());
+        out.putAttribute(LEG_MODE, legMode);
+        out.endEvent();
+        return true;
+    }
+
+    /**
+     * @return the person of the events written without building their attributes, otherwise null
+     */
+    private static Object getPersonId(final Event event) {
+        Class<? extends Event> eventClass = event.getClass();
+        if (eventClass == VehicleEntersTrafficEvent.class) {
+            return ((VehicleEntersTrafficEvent) event).getPersonId();
+        } else if (eventClass == VehicleLeavesTrafficEvent.class) {
+            return ((VehicleLeavesTrafficEvent) event).getPersonId();
+        } else if (eventClass == PersonEntersVehicleEvent.class) {
+            return ((PersonEntersVehicleEvent) event).getPersonId();
+        } else if (eventClass == PersonLeavesVehicleEvent.class) {
+            return ((PersonLeavesVehicleEvent) event).getPersonId();
+        } else if (eventClass == PersonDepartureEvent.class) {
+            return ((PersonDepartureEvent) event).getPersonId();
+        } else if (eventClass == PersonArrivalEvent.class) {
+            return ((PersonArrivalEvent) event).getPersonId();
+        }
+        return null;
+    }
+
+    private static boolean isLinkEvent(final Event event) {
+        return event.getClass() == LinkEnterEvent.class || event.getClass() == LinkLeaveEvent.class;
+    }
 
+    private static Object getVehicleId(final Event event) {
+        return event instanceof LinkEnterEvent ? ((LinkEnterEvent) event).getVehicleId() : ((LinkLeaveEvent) event).getVehicleId();
+    }
+
+    private static Object getLinkId(final Event event) {
+        return event instanceof LinkEnterEvent ? ((LinkEnterEvent) event).getLinkId() : ((LinkLeaveEvent) event).getLinkId();
+    }
+
+    /**
+     * Plain and gzip compressed files are written directly, the other compressions {@link IOUtils} supports by its
+     * streams.
+     */
+    private static OutputStream openOutputStream(final String filename, int compressionThreads) {
+        String name = filename.toLowerCase();
+        if (name.endsWith(".bz2") || name.endsWith(".lz4") || name.endsWith(".zst")) {
+            return IOUtils.getOutputStream(IOUtils.getFileUrl(filename), false);
+        }
+        try {
+            OutputStream stream = new FileOutputStream(filename);
+            if (!name.endsWith(".gz")) {
+                return stream;
+            }
+            return compressionThreads > 1 ? new ParallelGzipOutputStream(stream, compressionThreads) : new GZIPOutputStream(stream, GZIP_BUFFER_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package beam.analysis.via;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides per agent whether its events go into the Via output, so that an agent's trajectory is either complete or
+ * missing entirely. Agents are persons: events of a vehicle in traffic, like link events, count as events of its
+ * driver, see {@link #enterTraffic}; only events of vehicles without a known driver are decided by the vehicle id.
+ * <p>
+ * Sampling compares a seeded 64 bit hash of the id against the sampling rate: the decision takes no memory, and
+ * runs with the same seed select the same agents. For the demo, the first agents of every category up to its quota
+ * are selected; the selected agents are kept as id hashes in small open addressing tables of primitive longs.
+ * <p>
+ * Not thread safe.
+ */
+final class ViaAgentSelection {
+
+    static final long DEFAULT_SEED = 4711;
+
+    private final double sampling;
+    private final long seed;
+    private final String[] labels;
+    private final LongSet[] selected;
+    // drivers of the vehicles currently in traffic
+    private final Map<String, String> drivers = new HashMap<>();
+
+    /**
+     * @param labels the categories, an agent belongs to the first one whose label is part of its id, and to the last
+     *               one if none matches
+     * @param quotas the maximum number of agents selected for the demo per category
+     */
+    ViaAgentSelection(double sampling, long seed, final String[] labels, final int[] quotas) {
+        this.sampling = sampling;
+        this.seed = seed;
+        this.labels = labels;
+        this.selected = new LongSet[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            selected[i] = new LongSet(quotas[i]);
+        }
+    }
+
+    /**
+     * Makes the person the agent of the vehicle's events until it leaves traffic again. Ids are compared by their
+     * string, as the ones in event attributes are strings.
+     */
+    void enterTraffic(final Object vehicleId, final Object personId) {
+        drivers.put(vehicleId.toString(), personId.toString());
+    }
+
+    void leaveTraffic(final Object vehicleId) {
+        drivers.remove(vehicleId.toString());
+    }
+
+    /**
+     * @return the agent the events of the vehicle belong to, its driver while in traffic or the vehicle itself
+     */
+    String agentOf(final Object vehicleId) {
+        String vehicle = vehicleId.toString();
+        String driver = drivers.get(vehicle);
+        return driver != null ? driver : vehicle;
+    }
+
+    /**
+     * @return whether the agent is part of the sample; events of no agent always are
+     */
+    boolean isSampled(final String agent) {
+        if (sampling >= 1 || agent == null) {
+            return true;
+        }
+        // the upper 53 bits as uniform double in [0, 1)
+        return (hash(agent, seed) >>> 11) * 0x1.0p-53 < sampling;
+    }
+
+    /**
+     * @return whether the agent was selected for the demo before or is selected now since its category has room
+     */
+    boolean selectForDemo(final String agent) {
+        if (agent == null) {
+            return false;
+        }
+        long hash = hash(agent, 0);
+        boolean full = true;
+        for (LongSet set : selected) {
+            if (set.contains(hash)) {
+                return true;
+            }
+            full &= set.isFull();
+        }
+        // the category is only determined for agents that may still be selected
+        return !full && selected[category(agent)].add(hash);
+    }
+
+    private int category(String agent) {
+        for (int i = 0; i < labels.length - 1; i++) {
+            if (agent.contains(labels[i])) {
+                return i;
+            }
+        }
+        return labels.length - 1;
+    }
+
+    /**
+     * FNV-1a over the chars of the id, finished with the mixing function of MurmurHash3.
+     */
+    static long hash(final String id, long seed) {
+        long hash = 0xcbf29ce484222325L ^ seed;
+        for (int i = 0; i < id.length(); i++) {
+            hash = (hash ^ id.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Set of at most a fixed number of hashes, with 0 marking free slots and stored separately.
+     */
+    private static final class LongSet {
+        private final long[] slots;
+        private final int maxSize;
+        private boolean containsZero;
+        private int size;
+
+        LongSet(int maxSize) {
+            this.maxSize = maxSize;
+            this.slots = new long[Integer.highestOneBit(Math.max(2, maxSize * 2) - 1) << 1];
+        }
+
+        boolean contains(long hash) {
+            if (hash == 0) {
+                return containsZero;
+            }
+            int mask = slots.length - 1;
+            for (int slot = (int) hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                if (slots[slot] == hash) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Adds a hash that is not contained yet.
+         *
+         * @return whether the hash was added, i.e. the set had room
+         */
+        boolean add(long hash) {
+            if (isFull()) {
+                return false;
+            }
+            size++;
+            if (hash == 0) {
+                containsZero = true;
+                return true;
+            }
+            int mask = slots.length - 1;
+            int slot = (int) hash & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = hash;
+            return true;
+        }
+
+        boolean isFull() {
+            return size >= maxSize;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package beam.analysis.via;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Restricts the events {@link EventWriterXML_viaCompatible} writes to a time window, to event types and to links,
+ * e.g. to visualise one peak period or one district. The filters are checked before any attribute of an event is
+ * built or encoded, and before the sampling, so that events outside of them cost next to nothing.
+ * <p>
+ * Event types are the ones of {@link org.matsim.api.core.v01.events.Event#getEventType()}; "wait2link" is accepted
+ * as well for vehicles entering traffic. Events without a link always pass the link filter.
+ */
+public class ViaEventFilter {
+
+    private static final String VEHICLE_ENTERS_TRAFFIC = "vehicle enters traffic";
+    private static final String WAIT2LINK = "wait2link";
+
+    private double fromTime = Double.NEGATIVE_INFINITY;
+    private double toTime = Double.POSITIVE_INFINITY;
+    private Set<String> includedTypes;
+    private final Set<String> excludedTypes = new HashSet<>();
+    private Set<String> linkIds;
+
+    /**
+     * Only keeps events at times in [fromTime, toTime).
+     */
+    public void setTimeWindow(double fromTime, double toTime) {
+        if (!(fromTime <= toTime)) {
+            throw new IllegalArgumentException("Invalid time window [" + fromTime + ", " + toTime + ")");
+        }
+        this.fromTime = fromTime;
+        this.toTime = toTime;
+    }
+
+    /**
+     * Only keeps events of the given types, null to keep all types.
+     */
+    public void setIncludedTypes(final Collection<String> types) {
+        this.includedTypes = types == null ? null : normalize(types);
+    }
+
+    /**
+     * Drops the events of the given types.
+     */
+    public void setExcludedTypes(final Collection<String> types) {
+        excludedTypes.clear();
+        excludedTypes.addAll(normalize(types));
+    }
+
+    /**
+     * Only keeps events on the given links, null to keep the events of all links.
+     */
+    public void setLinks(final Collection<Id<Link>> links) {
+        if (links == null) {
+            linkIds = null;
+            return;
+        }
+        linkIds = new HashSet<>(links.size() * 4 / 3 + 1);
+        for (Id<Link> link : links) {
+            linkIds.add(link.toString());
+        }
+    }
+
+    /**
+     * Only keeps events on links of the network that start or end within the bounding box, in the coordinates of
+     * the network.
+     */
+    public void setBoundingBox(final Network network, double minX, double minY, double maxX, double maxY) {
+        Set<Id<Link>> links = new HashSet<>();
+        for (Link link : network.getLinks().values()) {
+            if (contains(link.getFromNode().getCoord(), minX, minY, maxX, maxY)
+                    || contains(link.getToNode().getCoord(), minX, minY, maxX, maxY)) {
+                links.add(link.getId());
+            }
+        }
+        setLinks(links);
+    }
+
+    boolean acceptsTimeAndType(double time, String type) {
+        if (time < fromTime || time >= toTime) {
+            return false;
+        }
+        return (includedTypes == null || includedTypes.contains(type)) && !excludedTypes.contains(type);
+    }
+
+    boolean filtersLinks() {
+        return linkIds != null;
+    }
+
+    /**
+     * @param linkId the link of an event, null if it has none
+     */
+    boolean acceptsLink(String linkId) {
+        return linkIds == null || linkId == null || linkIds.contains(linkId);
+    }
+
+    private static boolean contains(Coord coord, double minX, double minY, double maxX, double maxY) {
+        return coord.getX() >= minX && coord.getX() <= maxX && coord.getY() >= minY && coord.getY() <= maxY;
+    }
+
+    private static Set<String> normalize(Collection<String> types) {
+        Set<String> normalized = new HashSet<>();
+        for (String type : types) {
+            normalized.add(WAIT2LINK.equals(type) ? VEHICLE_ENTERS_TRAFFIC : type);
+        }
+        return normalized;
+    }
+}
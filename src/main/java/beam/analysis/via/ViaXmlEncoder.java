@@ -0,0 +1,229 @@
+package beam.analysis.via;
+
+import beam.utils.AsciiDoubleFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes event elements as UTF-8 straight into a reusable byte buffer that is flushed to the stream when full.
+ * Attribute names are encoded once and cached and values are escaped while they are encoded, so no intermediate
+ * strings or char buffers are built; only the id strings and non-integral times of the events themselves are still
+ * created. The bytes are exactly the ones of the former Writer based output, including "null" for null values and
+ * '?' for unpaired surrogates.
+ * <p>
+ * Not thread safe.
+ */
+final class ViaXmlEncoder {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_CACHED_NAMES = 256;
+    // the longest encoding of a single char: "&quot;"
+    private static final int MAX_CHAR_BYTES = 6;
+
+    private static final byte[] EVENT_START = ascii("\t<event ");
+    private static final byte[] VALUE_END = ascii("\" ");
+    private static final byte[] EVENT_END = ascii(" />\n");
+    private static final byte[] TIME = ascii("time=\"");
+    private static final byte[] VEHICLE = ascii("\" vehicle=\"");
+    private static final byte[] LINK = ascii("\" link=\"");
+    private static final byte[] NULL = ascii("null");
+
+    private final OutputStream out;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final AsciiDoubleFormat doubleFormat = new AsciiDoubleFormat();
+    private final Map<String, byte[]> names = new HashMap<>();
+
+    ViaXmlEncoder(final OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * @return the bytes of {@code " type="<type>"}, to pass to {@link #writeLinkEvent} or {@link #startEvent}
+     */
+    static byte[] encodeType(String type) {
+        return ascii("\" type=\"" + type);
+    }
+
+    /**
+     * @return the bytes of {@code " <name>="}, to pass to {@link #putAttribute}
+     */
+    static byte[] encodeAttribute(String name) {
+        return ascii("\" " + name + "=\"");
+    }
+
+    /**
+     * Writes an event with the attributes time, type, vehicle and link, in that order.
+     */
+    void writeLinkEvent(double time, final byte[] type, final Object vehicleId, final Object linkId) throws IOException {
+        require(EVENT_START.length + TIME.length + AsciiDoubleFormat.MAX_DOUBLE_LENGTH + type.length + VEHICLE.length);
+        buffer.put(EVENT_START).put(TIME);
+        doubleFormat.put(buffer, time);
+        buffer.put(type).put(VEHICLE);
+        putValue(vehicleId.toString());
+        require(LINK.length);
+        buffer.put(LINK);
+        putValue(linkId.toString());
+        require(VALUE_END.length + EVENT_END.length);
+        buffer.put(VALUE_END).put(EVENT_END);
+    }
+
+    /**
+     * Starts an event with the attributes time and type, to be followed by the other attributes in the order
+     * {@link org.matsim.api.core.v01.events.Event#getAttributes} of the event lists them and {@link #endEvent}.
+     */
+    void startEvent(double time, final byte[] type) throws IOException {
+        require(EVENT_START.length + TIME.length + AsciiDoubleFormat.MAX_DOUBLE_LENGTH + type.length);
+        buffer.put(EVENT_START).put(TIME);
+        doubleFormat.put(buffer, time);
+        buffer.put(type);
+    }
+
+    void putAttribute(final byte[] name, String value) throws IOException {
+        require(name.length);
+        buffer.put(name);
+        putValue(value);
+    }
+
+    /**
+     * Puts the value as Double.toString would.
+     */
+    void putAttribute(final byte[] name, double value) throws IOException {
+        require(name.length + AsciiDoubleFormat.MAX_DOUBLE_LENGTH);
+        buffer.put(name);
+        doubleFormat.put(buffer, value);
+    }
+
+    void endEvent() throws IOException {
+        require(VALUE_END.length + EVENT_END.length);
+        buffer.put(VALUE_END).put(EVENT_END);
+    }
+
+    /**
+     * Writes an event with the given attributes in their iteration order. A type attribute with the value
+     * {@code replacedType} (ignoring case) is written as {@code replacement}.
+     */
+    void writeEvent(final Map<String, String> attributes, final String replacedType, final String replacement) throws IOException {
+        require(EVENT_START.length);
+        buffer.put(EVENT_START);
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            String value = entry.getValue();
+            if ("type".equals(entry.getKey()) && replacedType.equalsIgnoreCase(value)) {
+                value = replacement;
+            }
+            byte[] name = encodeName(entry.getKey());
+            require(name.length);
+            buffer.put(name);
+            putValue(value);
+            require(VALUE_END.length);
+            buffer.put(VALUE_END);
+        }
+        require(EVENT_END.length);
+        buffer.put(EVENT_END);
+    }
+
+    /**
+     * Writes the string as it is.
+     */
+    void write(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        for (int from = 0; from < bytes.length; from += BUFFER_SIZE) {
+            int length = Math.min(BUFFER_SIZE, bytes.length - from);
+            require(length);
+            buffer.put(bytes, from, length);
+        }
+    }
+
+    void flush() throws IOException {
+        out.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+    void close() throws IOException {
+        flush();
+        out.close();
+    }
+
+    private byte[] encodeName(String name) {
+        byte[] bytes = names.get(name);
+        if (bytes == null) {
+            bytes = (name + "=\"").getBytes(StandardCharsets.UTF_8);
+            if (names.size() < MAX_CACHED_NAMES) {
+                names.put(name, bytes);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Puts the value with the characters that have a special meaning in xml replaced by their xml-encoding.
+     *
+     * @see <a href="http://www.w3.org/International/questions/qa-escapes#use">http://www.w3.org/International/questions/qa-escapes#use</a>
+     */
+    private void putValue(String value) throws IOException {
+        if (value == null) {
+            require(NULL.length);
+            buffer.put(NULL);
+            return;
+        }
+        int length = value.length();
+        for (int pos = 0; pos < length; pos++) {
+            if (buffer.remaining() < MAX_CHAR_BYTES) {
+                flush();
+            }
+            char ch = value.charAt(pos);
+            if (ch < 0x80) {
+                switch (ch) {
+                    case '<':
+                        putAscii("&lt;");
+                        break;
+                    case '>':
+                        putAscii("&gt;");
+                        break;
+                    case '\"':
+                        putAscii("&quot;");
+                        break;
+                    case '&':
+                        putAscii("&amp;");
+                        break;
+                    default:
+                        buffer.put((byte) ch);
+                }
+            } else if (ch < 0x800) {
+                buffer.put((byte) (0xC0 | ch >> 6));
+                buffer.put((byte) (0x80 | ch & 0x3F));
+            } else if (Character.isHighSurrogate(ch) && pos + 1 < length && Character.isLowSurrogate(value.charAt(pos + 1))) {
+                int codePoint = Character.toCodePoint(ch, value.charAt(++pos));
+                buffer.put((byte) (0xF0 | codePoint >> 18));
+                buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint & 0x3F));
+            } else if (Character.isSurrogate(ch)) {
+                // what the UTF-8 encoder of a Writer replaces malformed input with
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | ch >> 12));
+                buffer.put((byte) (0x80 | ch >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | ch & 0x3F));
+            }
+        }
+    }
+
+    private void putAscii(String ascii) {
+        AsciiDoubleFormat.putAscii(buffer, ascii);
+    }
+
+    private void require(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -1,18 +1,49 @@
 package beam.router.r5;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public enum HighwayType {
-    Motorway,
-    MotorwayLink,
-    Primary,
-    PrimaryLink,
-    Trunk,
-    TrunkLink,
-    Secondary,
-    SecondaryLink,
-    Tertiary,
-    TertiaryLink,
-    Minor,
-    Residential,
-    LivingStreet,
-    Unclassified
+    Motorway("motorway"),
+    MotorwayLink("motorway_link"),
+    Primary("primary"),
+    PrimaryLink("primary_link"),
+    Trunk("trunk"),
+    TrunkLink("trunk_link"),
+    Secondary("secondary"),
+    SecondaryLink("secondary_link"),
+    Tertiary("tertiary"),
+    TertiaryLink("tertiary_link"),
+    Minor("minor"),
+    Residential("residential"),
+    LivingStreet("living_street"),
+    Unclassified("unclassified");
+
+    private static final Map<String, HighwayType> BY_OSM_TAG = new HashMap<>();
+
+    static {
+        for (HighwayType type : values()) {
+            BY_OSM_TAG.put(type.osmTag, type);
+        }
+    }
+
+    private final String osmTag;
+
+    HighwayType(String osmTag) {
+        this.osmTag = osmTag;
+    }
+
+    /**
+     * @return the value of the OSM highway tag, e.g. motorway_link
+     */
+    public String getOsmTag() {
+        return osmTag;
+    }
+
+    /**
+     * @return the type of the OSM highway tag value, or null if it is none of the known types
+     */
+    public static HighwayType fromOsmTag(String osmTag) {
+        return BY_OSM_TAG.get(osmTag);
+    }
 }
@@ -0,0 +1,376 @@
+package beam.router.r5;
+
+import beam.utils.NodeCoordinateTable;
+import com.conveyal.osmlib.Node;
+import com.conveyal.osmlib.OSMEntitySink;
+import com.conveyal.osmlib.OSMEntitySource;
+import com.conveyal.osmlib.Relation;
+import com.conveyal.osmlib.Way;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.core.utils.geometry.CoordinateTransformation;
+import org.matsim.core.utils.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Converts OSM data to a MATSim network file in two passes, without an OSM model or a {@link
+ * org.matsim.api.core.v01.network.Network} in memory. The link attributes are derived from the way tags exactly as
+ * {@link OsmToMATSim#createLink} derives them.
+ * <p>
+ * The coordinates of all nodes go into a {@link NodeCoordinateTable}, which may be memory mapped and is the only
+ * part that grows with the size of the input. The first pass, through the sink of {@link #referenceCounter()}, stores
+ * the nodes and counts how many highway ways with defaults in the {@link OsmToMATSim} reference each of them. The
+ * second pass, through this writer, splits these ways at their ends and at the nodes shared with other ways, like R5
+ * splits them into edges, and writes a link per piece and direction as soon as the way is read; since the network
+ * file lists the nodes before the links, the nodes used by links and the links go into two temporary files that are
+ * concatenated into the network file at the end.
+ * <p>
+ * Links are numbered like R5 numbers its edges, the forward link of the k-th piece gets the id 2k and the backward
+ * one 2k+1, also if the way is oneway, and they keep the id of their way as origid. Nodes keep their OSM ids though,
+ * where a network built from an R5 street layer has vertex indices, and the pieces are only numbered the same if R5
+ * includes exactly the same ways in the same order. So the network is not a drop-in replacement for one built through
+ * R5, e.g. for link ids in plans or skims computed on it. Nodes have to come before the ways referencing them, as in
+ * any sorted OSM file; links through nodes not seen, e.g. outside of the extract, are dropped.
+ */
+public class OsmNetworkStreamWriter implements OSMEntitySink, Closeable {
+
+    private final static Logger log = LoggerFactory.getLogger(OsmNetworkStreamWriter.class);
+
+    private final static String TAG_HIGHWAY = "highway";
+    // as used by R5 for edge lengths
+    private final static double EARTH_RADIUS = 6371010;
+    private final static int BUFFER_SIZE = 1 << 16;
+
+    private final OsmToMATSim osmToMATSim;
+    private final CoordinateTransformation transformation;
+    private final String filename;
+    private final NodeCoordinateTable nodes;
+    private final String modes;
+    private File nodesFile;
+    private File linksFile;
+    private Writer nodesOut;
+    private Writer linksOut;
+    private long nofNodes;
+    private long nofLinks;
+    private long nofEdgePairs;
+    private long nofMissingNodes;
+    private boolean referencesCounted;
+
+    /**
+     * @param filename   the network file, gzipped if it ends with .gz
+     * @param nodes      table for the coordinates and references of all nodes read by the {@link #referenceCounter()},
+     *                   which is not closed by this writer
+     * @param modes      the allowed modes of all links
+     */
+    public OsmNetworkStreamWriter(final OsmToMATSim osmToMATSim, final CoordinateTransformation transformation,
+                                  final String filename, final NodeCoordinateTable nodes, final Set<String> modes) {
+        this.osmToMATSim = osmToMATSim;
+        this.transformation = transformation;
+        this.filename = filename;
+        this.nodes = nodes;
+        this.modes = String.join(",", modes);
+    }
+
+    /**
+     * Converts the OSM file (.pbf, .osm or .vex) to the network file, reading it twice and keeping the node
+     * coordinates in a table mapped from a temporary file in the given directory, or on the heap if it is null.
+     */
+    public static void convert(final String osmFilename, final String networkFilename, final OsmToMATSim osmToMATSim,
+                               final CoordinateTransformation transformation, final Set<String> modes,
+                               long expectedNodes, final File nodeDirectory) throws IOException {
+        try (NodeCoordinateTable nodes = new NodeCoordinateTable(expectedNodes, nodeDirectory);
+             OsmNetworkStreamWriter writer = new OsmNetworkStreamWriter(osmToMATSim, transformation, networkFilename, nodes, modes)) {
+            source(osmFilename).copyTo(writer.referenceCounter());
+            source(osmFilename).copyTo(writer);
+        }
+    }
+
+    private static OSMEntitySource source(final String osmFilename) throws IOException {
+        OSMEntitySource source = OSMEntitySource.forFile(osmFilename);
+        if (source == null) {
+            throw new IOException("Unsupported OSM file format: " + osmFilename);
+        }
+        return source;
+    }
+
+    /**
+     * @return the sink of the first pass, which stores the nodes in the table of this writer and counts their
+     * references by the ways the writer converts, so that they can be split at shared nodes in the second pass
+     */
+    public OSMEntitySink referenceCounter() {
+        return new OSMEntitySink() {
+            @Override
+            public void writeBegin() {
+            }
+
+            @Override
+            public void setReplicationTimestamp(long secondsSinceEpoch) {
+            }
+
+            @Override
+            public void writeNode(long id, final Node node) {
+                nodes.put(id, node.getLat(), node.getLon());
+            }
+
+            @Override
+            public void writeWay(long id, final Way way) {
+                if (!isConverted(way)) {
+                    return;
+                }
+                int last = way.nodes.length - 1;
+                for (int i = 0; i <= last; i++) {
+                    long slot = nodes.indexOf(way.nodes[i]);
+                    if (slot < 0) {
+                        continue;
+                    }
+                    if (i == 0 || i == last) {
+                        nodes.markShared(slot);
+                    } else {
+                        nodes.addReference(slot);
+                    }
+                }
+            }
+
+            @Override
+            public void writeRelation(long id, final Relation relation) {
+            }
+
+            @Override
+            public void writeEnd() {
+                referencesCounted = true;
+            }
+        };
+    }
+
+    @Override
+    public void writeBegin() throws IOException {
+        if (!referencesCounted) {
+            throw new IllegalStateException("The nodes have to be read by the referenceCounter() first");
+        }
+        File directory = new File(filename).getAbsoluteFile().getParentFile();
+        nodesFile = File.createTempFile("network-nodes", ".xml", directory);
+        linksFile = File.createTempFile("network-links", ".xml", directory);
+        nodesOut = open(nodesFile);
+        linksOut = open(linksFile);
+    }
+
+    @Override
+    public void setReplicationTimestamp(long secondsSinceEpoch) {
+    }
+
+    /**
+     * Ignores the nodes, which the {@link #referenceCounter()} stored already.
+     */
+    @Override
+    public void writeNode(long id, final Node node) {
+    }
+
+    @Override
+    public void writeWay(long id, final Way way) throws IOException {
+        if (!isConverted(way)) {
+            return;
+        }
+        OsmToMATSim.LinkAttributes attributes = osmToMATSim.getLinkAttributes(way);
+        int last = way.nodes.length - 1;
+        long fromId = way.nodes[0];
+        long fromSlot = nodes.indexOf(fromId);
+        long previousSlot = fromSlot;
+        double length = 0;
+        boolean complete = fromSlot >= 0;
+        for (int i = 1; i <= last; i++) {
+            long toId = way.nodes[i];
+            long toSlot = nodes.indexOf(toId);
+            if (previousSlot < 0 || toSlot < 0) {
+                complete = false;
+            } else {
+                length += distance(previousSlot, toSlot);
+            }
+            previousSlot = toSlot;
+            if (i < last && (toSlot < 0 || !nodes.isShared(toSlot))) {
+                continue;
+            }
+            if (!complete) {
+                nofMissingNodes++;
+            } else if (fromId != toId || length > 0) {
+                writeNodeOnce(fromId, fromSlot);
+                writeNodeOnce(toId, toSlot);
+                long edgePair = nofEdgePairs++;
+                if (!attributes.onewayReverse) {
+                    writeLink(2 * edgePair, id, fromId, toId, length, attributes);
+                }
+                if (!attributes.oneway) {
+                    writeLink(2 * edgePair + 1, id, toId, fromId, length, attributes);
+                }
+            }
+            fromId = toId;
+            fromSlot = toSlot;
+            length = 0;
+            complete = toSlot >= 0;
+        }
+    }
+
+    private boolean isConverted(final Way way) {
+        String highwayTag = way.getTag(TAG_HIGHWAY);
+        return highwayTag != null && way.nodes != null && way.nodes.length >= 2 && osmToMATSim.hasDefaults(highwayTag);
+    }
+
+    @Override
+    public void writeRelation(long id, final Relation relation) {
+    }
+
+    /**
+     * Assembles the network file from the temporary files.
+     */
+    @Override
+    public void writeEnd() throws IOException {
+        nodesOut.close();
+        linksOut.close();
+        try (BufferedWriter out = IOUtils.getBufferedWriter(filename)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<!DOCTYPE network SYSTEM \"http://www.matsim.org/files/dtd/network_v2.dtd\">\n");
+            out.write("<network>\n\n\t<nodes>\n");
+            copy(nodesFile, out);
+            out.write("\t</nodes>\n\n\t<links capperiod=\"01:00:00\" effectivecellsize=\"7.5\" effectivelanewidth=\"3.75\">\n");
+            copy(linksFile, out);
+            out.write("\t</links>\n\n</network>\n");
+        }
+        log.info("Wrote {} nodes and {} links of {} stored nodes to {}, {} pieces of ways referenced unknown nodes",
+                nofNodes, nofLinks, nodes.size(), filename, nofMissingNodes);
+        deleteTemporaryFiles();
+    }
+
+    /**
+     * Removes the temporary files if the conversion did not finish.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (nodesOut != null) {
+                nodesOut.close();
+            }
+            if (linksOut != null) {
+                linksOut.close();
+            }
+        } finally {
+            deleteTemporaryFiles();
+        }
+    }
+
+    private void writeNodeOnce(long id, long slot) throws IOException {
+        if (!nodes.markUsed(slot)) {
+            return;
+        }
+        Coord coord = transformation.transform(new Coord(nodes.getLon(slot), nodes.getLat(slot)));
+        nodesOut.write("\t\t<node id=\"");
+        nodesOut.write(Long.toString(id));
+        nodesOut.write("\" x=\"");
+        nodesOut.write(Double.toString(coord.getX()));
+        nodesOut.write("\" y=\"");
+        nodesOut.write(Double.toString(coord.getY()));
+        nodesOut.write("\" />\n");
+        nofNodes++;
+    }
+
+    private void writeLink(long linkId, long wayId, long fromId, long toId, double length, OsmToMATSim.LinkAttributes attributes) throws IOException {
+        nofLinks++;
+        linksOut.write("\t\t<link id=\"");
+        linksOut.write(Long.toString(linkId));
+        linksOut.write("\" from=\"");
+        linksOut.write(Long.toString(fromId));
+        linksOut.write("\" to=\"");
+        linksOut.write(Long.toString(toId));
+        linksOut.write("\" length=\"");
+        linksOut.write(Double.toString(length));
+        linksOut.write("\" freespeed=\"");
+        linksOut.write(Double.toString(attributes.freespeed));
+        linksOut.write("\" capacity=\"");
+        linksOut.write(Double.toString(attributes.capacity));
+        linksOut.write("\" permlanes=\"");
+        linksOut.write(Double.toString(attributes.nofLanes));
+        linksOut.write("\" oneway=\"1\" modes=\"");
+        linksOut.write(modes);
+        linksOut.write("\" >\n\t\t\t<attributes>\n");
+        writeAttribute("origid", "java.lang.String", Long.toString(wayId));
+        writeAttribute("type", "java.lang.String", escape(attributes.highway));
+        writeAttribute("alpha", "java.lang.Double", Double.toString(attributes.alpha));
+        writeAttribute("beta", "java.lang.Double", Double.toString(attributes.beta));
+        writeAttribute("hgv", "java.lang.Boolean", Boolean.toString(attributes.hgv));
+        linksOut.write("\t\t\t</attributes>\n\t\t</link>\n");
+    }
+
+    private void writeAttribute(String name, String type, String value) throws IOException {
+        linksOut.write("\t\t\t\t<attribute name=\"");
+        linksOut.write(name);
+        linksOut.write("\" class=\"");
+        linksOut.write(type);
+        linksOut.write("\" >");
+        linksOut.write(value);
+        linksOut.write("</attribute>\n");
+    }
+
+    /**
+     * @return the great circle distance between the nodes in meters
+     */
+    private double distance(long fromSlot, long toSlot) {
+        double lat1 = Math.toRadians(nodes.getLat(fromSlot));
+        double lat2 = Math.toRadians(nodes.getLat(toSlot));
+        double sinLat = Math.sin((lat2 - lat1) / 2);
+        double sinLon = Math.sin(Math.toRadians(nodes.getLon(toSlot) - nodes.getLon(fromSlot)) / 2);
+        double a = sinLat * sinLat + Math.cos(lat1) * Math.cos(lat2) * sinLon * sinLon;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static Writer open(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    private static void copy(File file, Writer out) throws IOException {
+        char[] buffer = new char[BUFFER_SIZE];
+        try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private void deleteTemporaryFiles() {
+        for (File file : new File[]{nodesFile, linksFile}) {
+            if (file != null && file.exists() && !file.delete()) {
+                log.warn("Could not delete temporary file {}", file);
+            }
+        }
+    }
+
+    public long getNofNodes() {
+        return nofNodes;
+    }
+
+    public long getNofLinks() {
+        return nofLinks;
+    }
+
+    /**
+     * @return the number of pieces of ways between shared nodes dropped because one of their nodes had not been read
+     */
+    public long getNofMissingNodes() {
+        return nofMissingNodes;
+    }
+}
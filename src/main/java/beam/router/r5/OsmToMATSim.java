@@ -1,5 +1,7 @@
 package beam.router.r5;
 
+import beam.utils.LinkBprTable;
+import beam.utils.Metrics;
 import com.conveyal.osmlib.Way;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.network.Link;
@@ -9,10 +11,17 @@ import org.matsim.core.network.NetworkUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
 
 /**
  * Created by Andrew A. Campbell on 7/25/17.
@@ -38,12 +47,23 @@ public class OsmToMATSim {
     private final static double SECONDARY_LINK_RATIO = 0.66;
     private final static double TERTIARY_LINK_RATIO = 0.66;
 
+    private final static int MAX_CACHED_TAGS = 10000;
+
     public final Map<String, BEAMHighwayDefaults> highwayDefaults = new HashMap<>();
-    private final Set<String> unknownMaxspeedTags = new HashSet<>();
-    private final Set<String> unknownLanesTags = new HashSet<>();
+    // parsed values of the tag strings seen so far, NaN for the ones that could not be parsed
+    private final Map<String, HighwayTag> highwayTags = new ConcurrentHashMap<>();
+    private final Map<String, Double> maxspeeds = new ConcurrentHashMap<>();
+    private final Map<String, Double> lanes = new ConcurrentHashMap<>();
+    private final Map<String, Double> capacities = new ConcurrentHashMap<>();
+    // links may be built concurrently, see setParallelism
+    private final Set<String> unknownMaxspeedTags = ConcurrentHashMap.newKeySet();
+    private final Set<String> unknownLanesTags = ConcurrentHashMap.newKeySet();
     private final Set<String> unknownBetasTags = new HashSet<>();
     private final Set<String> unknownAlphasTags = new HashSet<>();
     private final Network mNetwork;
+    private Metrics metrics = Metrics.NOOP;
+    private ForkJoinPool pool;
+    private LinkBprTable bprTable;
 
     /**
      * @param mNetwork MATSim network
@@ -144,16 +164,119 @@ public class OsmToMATSim {
         this.highwayDefaults.put(highwayType, new BEAMHighwayDefaults(hierarchy, lanesPerDirection, freespeed, freespeedFactor, laneCapacity_vehPerHour, alpha, beta, oneway));
     }
 
+    /**
+     * @return a checksum of the {@link #highwayDefaults}, including their BPR parameters, which together with the tags
+     * determine the links built, e.g. for {@link beam.utils.NetworkSnapshot#loadOrBuild}
+     */
+    public long getConfigurationChecksum() {
+        long checksum = highwayDefaults.size();
+        for (Map.Entry<String, BEAMHighwayDefaults> entry : new TreeMap<>(highwayDefaults).entrySet()) {
+            BEAMHighwayDefaults defaults = entry.getValue();
+            checksum = 31 * checksum + entry.getKey().hashCode();
+            checksum = 31 * checksum + defaults.hierarchy;
+            for (double value : new double[]{defaults.lanesPerDirection, defaults.freespeed, defaults.freespeedFactor,
+                    defaults.laneCapacity, defaults.alpha, defaults.beta}) {
+                checksum = 31 * checksum + Double.doubleToLongBits(value);
+            }
+            checksum = 31 * checksum + (defaults.oneway ? 1 : 0);
+        }
+        return checksum;
+    }
+
+    /**
+     * Records the links built ({@code osm.linksBuilt}), the time spent building them ({@code osm.createLink} per
+     * link and {@code osm.createAndAddLinks} per bulk call) and the tags that could not be parsed
+     * ({@code osm.unparsableTags}).
+     */
+    public void setMetrics(final Metrics metrics) {
+        this.metrics = metrics;
+    }
+
     public Link createLink(final Way way, long osmID, Integer r5ID, final Node fromMNode, final Node toMNode,
                            final double length, HashSet<String> flagStrings) {
-        String highway = way.getTag(TAG_HIGHWAY);
-        if (highway == null) {
-            highway = "unclassified";
+        long start = System.nanoTime();
+        LinkAttributes attributes = getLinkAttributes(way);
+        Link l = buildLink(attributes, osmID, r5ID, fromMNode, toMNode, length, flagStrings);
+        metrics.increment("osm.linksBuilt", 1);
+        metrics.recordSince("osm.createLink", start);
+        return l;
+    }
+
+    /**
+     * Bulk version of {@link #createLink}: the attributes of all links are derived from the tags of their ways in
+     * parallel (see {@link #setParallelism(int)}), then the links are created and added to the network in the order
+     * of the given segments, so the resulting network does not depend on the parallelism. If any segment refers
+     * to a node that is not part of the network, no link is added.
+     *
+     * @return the links, in the order of the segments
+     */
+    public List<Link> createAndAddLinks(final List<WaySegment> segments) {
+        long start = System.nanoTime();
+        final LinkAttributes[] attributes = new LinkAttributes[segments.size()];
+        if (pool == null) {
+            for (int i = 0; i < attributes.length; i++) {
+                attributes[i] = getLinkAttributes(segments.get(i).way);
+            }
+        } else {
+            // a parallel stream submitted to a pool runs on that pool instead of the common one
+            pool.submit(() -> IntStream.range(0, attributes.length).parallel()
+                    .forEach(i -> attributes[i] = getLinkAttributes(segments.get(i).way))).join();
+        }
+        List<Link> links = new ArrayList<>(attributes.length);
+        for (int i = 0; i < attributes.length; i++) {
+            WaySegment segment = segments.get(i);
+            links.add(buildLink(attributes[i], segment.osmID, segment.r5ID, segment.fromNode, segment.toNode, segment.length, segment.modes));
+        }
+        for (int i = 0; i < attributes.length; i++) {
+            this.mNetwork.addLink(links.get(i));
+            addToBprTable(links.get(i), attributes[i]);
+        }
+        metrics.increment("osm.linksBuilt", links.size());
+        metrics.recordSince("osm.createAndAddLinks", start);
+        return links;
+    }
+
+    /**
+     * Sets the number of threads {@link #createAndAddLinks(List)} derives link attributes with; 1, the default,
+     * derives them on the calling thread.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        pool = parallelism == 1 ? null : new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Sets the table the BPR parameters of every link {@link #createAndAddLinks} adds to the network from now on are
+     * added to, null for none. Links from {@link #createLink} are not, since the caller decides whether they enter
+     * the network; tabulate them with {@link LinkBprTable#fromLinks} once the network is complete.
+     */
+    public void setBprTable(final LinkBprTable bprTable) {
+        this.bprTable = bprTable;
+    }
+
+    private void addToBprTable(final Link link, final LinkAttributes attributes) {
+        if (bprTable != null) {
+            bprTable.add(link.getId(), link.getLength(), attributes.freespeed, attributes.capacity, attributes.alpha,
+                    attributes.beta, attributes.hgv);
         }
-        BEAMHighwayDefaults defaults = this.highwayDefaults.get(highway);
+    }
+
+    /**
+     * Derives the attributes of a link from the tags of its way and the defaults of its highway type. Only reads
+     * shared state or memoizes into concurrent caches, so it may run on several threads at once.
+     */
+    LinkAttributes getLinkAttributes(final Way way) {
+        String highwayTag = way.getTag(TAG_HIGHWAY);
+        HighwayTag highway = resolveHighway(highwayTag == null ? HighwayType.Unclassified.getOsmTag() : highwayTag);
+        BEAMHighwayDefaults defaults = getDefaults(highway);
 
         if (defaults == null) {
-            defaults = this.highwayDefaults.get("unclassified");
+            defaults = getDefaults(resolveHighway(HighwayType.Unclassified.getOsmTag()));
         }
 
         double nofLanes = defaults.lanesPerDirection;
@@ -176,25 +299,27 @@ public class OsmToMATSim {
         // check tag "oneway"
         String onewayTag = way.getTag(TAG_ONEWAY);
         if (onewayTag != null) {
-            if ("yes".equals(onewayTag)) {
-                oneway = true;
-            } else if ("true".equals(onewayTag)) {
-                oneway = true;
-            } else if ("1".equals(onewayTag)) {
-                oneway = true;
-            } else if ("-1".equals(onewayTag)) {
-                onewayReverse = true;
-                oneway = false;
-            } else if ("no".equals(onewayTag)) {
-                oneway = false; // may be used to overwrite defaults
-            } else {
-                log.warn("Could not interpret oneway tag:" + onewayTag + ". Ignoring it.");
+            switch (onewayTag) {
+                case "yes":
+                case "true":
+                case "1":
+                    oneway = true;
+                    break;
+                case "-1":
+                    onewayReverse = true;
+                    oneway = false;
+                    break;
+                case "no":
+                    oneway = false; // may be used to overwrite defaults
+                    break;
+                default:
+                    log.warn("Could not interpret oneway tag:" + onewayTag + ". Ignoring it.");
             }
         }
 
         // In case trunks, primary and secondary roads are marked as oneway,
         // the default number of lanes should be two instead of one.
-        if (highway.equalsIgnoreCase("trunk") || highway.equalsIgnoreCase("primary") || highway.equalsIgnoreCase("secondary")) {
+        if (highway.twoLanesIfOneway) {
             if ((oneway || onewayReverse) && nofLanes == 1.0) {
                 nofLanes = 2.0;
             }
@@ -202,39 +327,34 @@ public class OsmToMATSim {
 
         String maxspeedTag = way.getTag(TAG_MAXSPEED);
         if (maxspeedTag != null) {
-            try {
-                if(maxspeedTag.endsWith("mph")) {
-                    freespeed = toMetersPerSecond(Double.parseDouble(maxspeedTag.replace("mph", "").trim())); // convert mph to m/s
-                } else {
-                    freespeed = Double.parseDouble(maxspeedTag) / 3.6; // convert km/h to m/s
-                }
-            } catch (NumberFormatException e) {
-                if (!this.unknownMaxspeedTags.contains(maxspeedTag)) {
-                    this.unknownMaxspeedTags.add(maxspeedTag);
-                    log.warn("Could not parse maxspeed tag:" + e.getMessage() + ". Ignoring it.");
+            double maxspeed = parseCached(maxspeeds, maxspeedTag, OsmToMATSim::parseMaxspeed);
+            if (Double.isNaN(maxspeed)) {
+                metrics.increment("osm.unparsableTags", 1);
+                if (this.unknownMaxspeedTags.add(maxspeedTag)) {
+                    log.warn("Could not parse maxspeed tag:" + maxspeedTag + ". Ignoring it.");
                 }
+            } else {
+                freespeed = maxspeed;
             }
         }
 
         // check tag "lanes"
         String lanesTag = way.getTag(TAG_LANES);
         if (lanesTag != null) {
-            try {
-                double totalNofLanes = Double.parseDouble(lanesTag);
-                if (totalNofLanes > 0) {
-                    nofLanes = totalNofLanes;
-
-                    //By default, the OSM lanes tag specifies the total number of lanes in both directions.
-                    //So if the road is not oneway (onewayReverse), let's distribute them between both directions
-                    //michalm, jan'16
-                    if (!oneway && !onewayReverse) {
-                        nofLanes /= 2.;
-                    }
+            double totalNofLanes = parseCached(lanes, lanesTag, OsmToMATSim::parseLanes);
+            if (Double.isNaN(totalNofLanes)) {
+                metrics.increment("osm.unparsableTags", 1);
+                if (this.unknownLanesTags.add(lanesTag)) {
+                    log.warn("Could not parse lanes tag:" + lanesTag + ". Ignoring it.");
                 }
-            } catch (Exception e) {
-                if (!this.unknownLanesTags.contains(lanesTag)) {
-                    this.unknownLanesTags.add(lanesTag);
-                    log.warn("Could not parse lanes tag:" + e.getMessage() + ". Ignoring it.");
+            } else if (totalNofLanes > 0) {
+                nofLanes = totalNofLanes;
+
+                //By default, the OSM lanes tag specifies the total number of lanes in both directions.
+                //So if the road is not oneway (onewayReverse), let's distribute them between both directions
+                //michalm, jan'16
+                if (!oneway && !onewayReverse) {
+                    nofLanes /= 2.;
                 }
             }
         }
@@ -242,9 +362,8 @@ public class OsmToMATSim {
         // create the link(s)
         String capacityTag = way.getTag(TAG_CAPACITY);
         if (capacityTag != null) {
-            try {
-                capacity = Double.parseDouble(capacityTag);
-            } catch (Exception e) {
+            capacity = parseCached(capacities, capacityTag, OsmToMATSim::parseCapacity);
+            if (Double.isNaN(capacity)) {
                 capacity = nofLanes * laneCapacity;
             }
         } else {
@@ -262,27 +381,97 @@ public class OsmToMATSim {
             hgv = "unclassified";
         }
 
+        return new LinkAttributes(highway.tag, freespeed, capacity, nofLanes, alpha, beta, this.isHdvAllowed(hgv), oneway, onewayReverse);
+    }
+
+    private Link buildLink(final LinkAttributes attributes, long osmID, Integer r5ID, final Node fromMNode, final Node toMNode,
+                           final double length, HashSet<String> flagStrings) {
         // only create link, if both nodes were found, node could be null, since nodes outside a layer were dropped
         Id<Node> fromId = fromMNode.getId();
         Id<Node> toId = toMNode.getId();
         if (this.mNetwork.getNodes().get(fromId) != null && this.mNetwork.getNodes().get(toId) != null) {
             Link l = this.mNetwork.getFactory().createLink(Id.create(r5ID, Link.class), this.mNetwork.getNodes().get(fromId), this.mNetwork.getNodes().get(toId));
             l.setLength(length);
-            l.setFreespeed(freespeed);
-            l.setCapacity(capacity);
-            l.setNumberOfLanes(nofLanes);
+            l.setFreespeed(attributes.freespeed);
+            l.setCapacity(attributes.capacity);
+            l.setNumberOfLanes(attributes.nofLanes);
             l.setAllowedModes(flagStrings);
             NetworkUtils.setOrigId(l, Long.toString(osmID));
-            NetworkUtils.setType(l, highway);
-            l.getAttributes().putAttribute("alpha", alpha);
-            l.getAttributes().putAttribute("beta", beta);
-            l.getAttributes().putAttribute("hgv", this.isHdvAllowed(hgv));
+            NetworkUtils.setType(l, attributes.highway);
+            l.getAttributes().putAttribute("alpha", attributes.alpha);
+            l.getAttributes().putAttribute("beta", attributes.beta);
+            l.getAttributes().putAttribute("hgv", attributes.hgv);
             return l;
         } else {
             throw new RuntimeException();
         }
     }
 
+    /**
+     * @return whether there are defaults for the highway tag value, i.e. whether ways tagged with it become links
+     */
+    boolean hasDefaults(final String highwayTag) {
+        return getDefaults(resolveHighway(highwayTag)) != null;
+    }
+
+    private HighwayTag resolveHighway(String tag) {
+        HighwayTag highway = highwayTags.get(tag);
+        if (highway == null) {
+            highway = new HighwayTag(tag);
+            if (highwayTags.size() < MAX_CACHED_TAGS) {
+                highwayTags.put(tag, highway);
+            }
+        }
+        return highway;
+    }
+
+    private BEAMHighwayDefaults getDefaults(HighwayTag highway) {
+        return this.highwayDefaults.get(highway.tag);
+    }
+
+    private static double parseCached(Map<String, Double> cache, String tag, ToDoubleFunction<String> parser) {
+        Double value = cache.get(tag);
+        if (value == null) {
+            value = parser.applyAsDouble(tag);
+            // the size check races between threads, which may only exceed the bound by a few entries
+            if (cache.size() < MAX_CACHED_TAGS) {
+                cache.put(tag, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return the maxspeed in m/s, or NaN if the tag cannot be parsed
+     */
+    private static double parseMaxspeed(String maxspeedTag) {
+        try {
+            if(maxspeedTag.endsWith("mph")) {
+                return toMetersPerSecond(Double.parseDouble(maxspeedTag.replace("mph", "").trim())); // convert mph to m/s
+            } else {
+                return Double.parseDouble(maxspeedTag) / 3.6; // convert km/h to m/s
+            }
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static double parseLanes(String lanesTag) {
+        try {
+            return Double.parseDouble(lanesTag);
+        } catch (Exception e) {
+            return Double.NaN;
+        }
+    }
+
+    private static double parseCapacity(String capacityTag) {
+        try {
+            return Double.parseDouble(capacityTag);
+        } catch (Exception e) {
+            return Double.NaN;
+        }
+    }
+
     /**
      * whether heavy duty vehicle (hdv) is allowed or not
      */
@@ -294,6 +483,73 @@ public class OsmToMATSim {
         return milesPerHour * 1.60934 * 1000 / 3600;
     }
 
+    /**
+     * The arguments of one {@link #createLink} call, for {@link #createAndAddLinks(List)}.
+     */
+    public static class WaySegment {
+        public final Way way;
+        public final long osmID;
+        public final Integer r5ID;
+        public final Node fromNode;
+        public final Node toNode;
+        public final double length;
+        public final HashSet<String> modes;
+
+        public WaySegment(final Way way, long osmID, Integer r5ID, final Node fromNode, final Node toNode, double length, HashSet<String> modes) {
+            this.way = way;
+            this.osmID = osmID;
+            this.r5ID = r5ID;
+            this.fromNode = fromNode;
+            this.toNode = toNode;
+            this.length = length;
+            this.modes = modes;
+        }
+    }
+
+    /**
+     * Link attributes derived from the tags of a way.
+     */
+    static final class LinkAttributes {
+        final String highway;
+        final double freespeed;
+        final double capacity;
+        final double nofLanes;
+        final double alpha;
+        final double beta;
+        final boolean hgv;
+        // only links in the direction of the way
+        final boolean oneway;
+        // only links against the direction of the way
+        final boolean onewayReverse;
+
+        LinkAttributes(String highway, double freespeed, double capacity, double nofLanes, double alpha, double beta, boolean hgv,
+                       boolean oneway, boolean onewayReverse) {
+            this.highway = highway;
+            this.freespeed = freespeed;
+            this.capacity = capacity;
+            this.nofLanes = nofLanes;
+            this.alpha = alpha;
+            this.beta = beta;
+            this.hgv = hgv;
+            this.oneway = oneway;
+            this.onewayReverse = onewayReverse;
+        }
+    }
+
+    /**
+     * A highway tag value resolved once: whether oneway roads of the type get two lanes by default. The defaults are
+     * looked up in {@link #highwayDefaults} for every way, so changes to that map apply right away.
+     */
+    private static final class HighwayTag {
+        final String tag;
+        final boolean twoLanesIfOneway;
+
+        HighwayTag(String tag) {
+            this.tag = tag;
+            this.twoLanesIfOneway = tag.equalsIgnoreCase("trunk") || tag.equalsIgnoreCase("primary") || tag.equalsIgnoreCase("secondary");
+        }
+    }
+
     /**
      * Takes the place of the private class OsmNetworkReader.OsmHighwayDefaults
      */
@@ -0,0 +1,69 @@
+package beam.utils;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.vehicles.Vehicle;
+
+/**
+ * {@link TravelTime} backed by one flat link-major array of travel times per link and time bin, e.g. the averages
+ * collected by {@link BeamCalcLinkStats}, see {@link BeamCalcLinkStats#toTravelTime()}.
+ * <p>
+ * Lookups cost one hash lookup of the link id and one array access and do not allocate. The values are stored as
+ * float to halve the footprint on large networks. Instances are immutable and may be shared by router threads.
+ * Times before the first bin use the first one, times after the last bin the last one. Links that are not part of
+ * the index are reported with their free flow travel time.
+ */
+public class ArrayTravelTime implements TravelTime {
+
+    private final LinkIndex linkIndex;
+    private final int binSize;
+    private final int nofBins;
+    private final float[] ttimes;
+
+    /**
+     * @param ttimes travel time of the link with index i in bin b at i * nofBins + b; not copied
+     */
+    public ArrayTravelTime(final LinkIndex linkIndex, int binSize, int nofBins, final float[] ttimes) {
+        if (ttimes.length != linkIndex.size() * nofBins) {
+            throw new IllegalArgumentException("Expected " + linkIndex.size() * nofBins + " travel times, got " + ttimes.length);
+        }
+        this.linkIndex = linkIndex;
+        this.binSize = binSize;
+        this.nofBins = nofBins;
+        this.ttimes = ttimes;
+    }
+
+    @Override
+    public double getLinkTravelTime(final Link link, final double time, final Person person, final Vehicle vehicle) {
+        int index = linkIndex.indexOf(link.getId());
+        if (index < 0 || nofBins == 0) {
+            return link.getLength() / link.getFreespeed(time);
+        }
+        return ttimes[index * nofBins + getBin(time)];
+    }
+
+    /**
+     * @return the travel time of the link with the given index in the given bin
+     */
+    public double getLinkTravelTime(int linkIndex, int bin) {
+        return ttimes[linkIndex * nofBins + bin];
+    }
+
+    private int getBin(double time) {
+        int bin = (int) (time / binSize);
+        return bin < 0 ? 0 : bin >= nofBins ? nofBins - 1 : bin;
+    }
+
+    public LinkIndex getLinkIndex() {
+        return linkIndex;
+    }
+
+    public int getBinSize() {
+        return binSize;
+    }
+
+    public int getNofBins() {
+        return nofBins;
+    }
+}
@@ -0,0 +1,324 @@
+package beam.utils;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes numbers as ASCII bytes exactly as {@link Double#toString(double)} and {@link Long#toString(long)} would print them.
+ * <p>
+ * Integral doubles below 10^7, such as hours, volumes and whole second event times, are always written without any
+ * allocation. Since JDK 19 {@link Double#toString(double)} prints the shortest decimal that rounds to the value, and
+ * all other values are then written the same way without allocation, using the Schubfach algorithm of R. Giulietti
+ * that the JDK itself uses. Older runtimes select their digits differently, Java 8 not always printing the shortest
+ * representation; as the output has to stay identical to theirs, other values are delegated to
+ * {@link Double#toString(double)} there and cost one temporary String each.
+ * <p>
+ * Instances keep a scratch buffer and must not be shared between threads.
+ */
+public class AsciiDoubleFormat {
+
+    /**
+     * Upper bound of the number of bytes {@link #put(ByteBuffer, double)} writes for one value.
+     */
+    public static final int MAX_DOUBLE_LENGTH = 32;
+
+    /**
+     * Whether {@link Double#toString(double)} of this runtime prints the shortest decimal, see JDK-4511638.
+     */
+    static final boolean SHORTEST_TO_STRING = javaVersion() >= 19;
+
+    private static final double MAX_PLAIN_INTEGRAL = 1e7;
+
+    // The binary format of doubles: precision, smallest exponent and significand of normal values, and the range of
+    // decimal exponents that the table of powers of ten covers.
+    private static final int P = 53;
+    private static final int Q_MIN = -1074;
+    private static final long C_MIN = 1L << P - 1;
+    private static final long C_TINY = 3;
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+    private static final long MASK_63 = Long.MAX_VALUE;
+
+    /**
+     * For every k in [K_MIN, K_MAX] the 126 bits of g = floor(10^-k 2^-r) + 1, where r is chosen such that
+     * 2^125 <= 10^-k 2^-r < 2^126, split into the upper bits g1 at [2 (k - K_MIN)] and the lower 63 bits g0 at
+     * [2 (k - K_MIN) + 1].
+     */
+    private static final long[] G = powersOfTen();
+
+    private final byte[] digits = new byte[20];
+
+    public void put(ByteBuffer out, double value) {
+        if (value > -MAX_PLAIN_INTEGRAL && value < MAX_PLAIN_INTEGRAL) {
+            long integral = (long) value;
+            // -0.0 compares equal to 0 but is printed with its sign, leave it to Double.toString
+            if (integral == value && (integral != 0 || Double.doubleToRawLongBits(value) == 0L)) {
+                put(out, integral);
+                out.put((byte) '.');
+                out.put((byte) '0');
+                return;
+            }
+        }
+        if (SHORTEST_TO_STRING) {
+            putShortest(out, value);
+        } else {
+            putAscii(out, Double.toString(value));
+        }
+    }
+
+    /**
+     * Writes the shortest decimal that rounds to the value, as {@link Double#toString(double)} of JDK 19 and later does.
+     */
+    void putShortest(ByteBuffer out, double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        long t = bits & C_MIN - 1;
+        int bq = (int) (bits >>> P - 1) & 0x7ff;
+        if (bq == 0x7ff) {
+            putAscii(out, t != 0 ? "NaN" : bits > 0 ? "Infinity" : "-Infinity");
+            return;
+        }
+        if (bits < 0) {
+            out.put((byte) '-');
+        }
+        if (bq != 0) {
+            int mq = -Q_MIN + 1 - bq;
+            long c = C_MIN | t;
+            if (0 < mq && mq < P) {
+                long f = c >> mq;
+                if (f << mq == c) {
+                    // integral values below 2^52 are their own shortest decimal
+                    putDecimal(out, f, 0);
+                    return;
+                }
+            }
+            putShortest(out, -mq, c, 0);
+        } else if (t != 0) {
+            // subnormal values of less than two digits get the closest decimal of two digits, like Double.toString
+            if (t < C_TINY) {
+                putShortest(out, Q_MIN, 10 * t, -1);
+            } else {
+                putShortest(out, Q_MIN, t, 0);
+            }
+        } else {
+            out.put((byte) '0');
+            out.put((byte) '.');
+            out.put((byte) '0');
+        }
+    }
+
+    /**
+     * Writes the shortest decimal within the rounding interval of c 2^q, scaled by 10^dk; see R. Giulietti, "The
+     * Schubfach way to render doubles", 2020, for the reasoning behind every step.
+     */
+    private void putShortest(ByteBuffer out, int q, long c, int dk) {
+        // the bounds of the rounding interval belong to it if c is even
+        int open = (int) c & 0x1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != C_MIN || q == Q_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            // the interval of a power of two is narrower below it
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+        long g1 = G[k - K_MIN << 1];
+        long g0 = G[k - K_MIN << 1 | 1];
+        long vb = roundToOdd(g1, g0, cb << h);
+        long vbl = roundToOdd(g1, g0, cbl << h);
+        long vbr = roundToOdd(g1, g0, cbr << h);
+
+        long s = vb >> 2;
+        if (s >= 100) {
+            // try one digit less first
+            long sp10 = 10 * multiplyHigh(s, 115_292_150_460_684_698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + open <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + open <= vbr;
+            if (upin != wpin) {
+                putDecimal(out, upin ? sp10 : tp10, k);
+                return;
+            }
+        }
+        long t = s + 1;
+        boolean uin = vbl + open <= s << 2;
+        boolean win = (t << 2) + open <= vbr;
+        if (uin != win) {
+            putDecimal(out, uin ? s : t, k + dk);
+            return;
+        }
+        // both candidates round to the value, take the closer one or the even one on a tie
+        long cmp = vb - (s + t << 1);
+        putDecimal(out, cmp < 0 || cmp == 0 && (s & 0x1) == 0 ? s : t, k + dk);
+    }
+
+    /**
+     * Writes the positive decimal f 10^e in the format of {@link Double#toString(double)}: plain for values in
+     * [10^-3, 10^7), computerized scientific notation otherwise, and with at least one digit after the point.
+     */
+    private void putDecimal(ByteBuffer out, long f, int e) {
+        // at most 17 digits, the lower 8 of which are extracted with int arithmetic
+        int pos = digits.length;
+        if (f >= 100_000_000) {
+            long high = f / 100_000_000;
+            int low = (int) (f - high * 100_000_000);
+            for (int i = 0; i < 8; i++) {
+                digits[--pos] = (byte) ('0' + low % 10);
+                low /= 10;
+            }
+            f = high;
+        }
+        int rest = (int) f;
+        do {
+            digits[--pos] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        } while (rest != 0);
+        int end = digits.length;
+        while (digits[end - 1] == '0') {
+            end--;
+            e++;
+        }
+        int length = end - pos;
+        // the value is 0.d1...dn 10^exponent
+        int exponent = e + length;
+        if (0 < exponent && exponent <= 7) {
+            if (length <= exponent) {
+                out.put(digits, pos, length);
+                for (int i = length; i < exponent; i++) {
+                    out.put((byte) '0');
+                }
+                out.put((byte) '.');
+                out.put((byte) '0');
+            } else {
+                out.put(digits, pos, exponent);
+                out.put((byte) '.');
+                out.put(digits, pos + exponent, length - exponent);
+            }
+        } else if (-3 < exponent && exponent <= 0) {
+            out.put((byte) '0');
+            out.put((byte) '.');
+            for (int i = exponent; i < 0; i++) {
+                out.put((byte) '0');
+            }
+            out.put(digits, pos, length);
+        } else {
+            out.put(digits[pos]);
+            out.put((byte) '.');
+            if (length == 1) {
+                out.put((byte) '0');
+            } else {
+                out.put(digits, pos + 1, length - 1);
+            }
+            out.put((byte) 'E');
+            put(out, exponent - 1);
+        }
+    }
+
+    public void put(ByteBuffer out, long value) {
+        if (value == Long.MIN_VALUE) {
+            putAscii(out, Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            out.put((byte) '-');
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        out.put(digits, pos, digits.length - pos);
+    }
+
+    /**
+     * The upper 64 bits of the 126 bit g times cp, rounded to odd; the lowest bit tells whether any bit was dropped.
+     */
+    private static long roundToOdd(long g1, long g0, long cp) {
+        long x1 = multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | (z & MASK_63) + MASK_63 >>> 63;
+    }
+
+    /**
+     * The upper 64 bits of the signed 128 bit product, like Math.multiplyHigh of Java 9.
+     */
+    private static long multiplyHigh(long x, long y) {
+        long x1 = x >> 32;
+        long x2 = x & 0xFFFFFFFFL;
+        long y1 = y >> 32;
+        long y2 = y & 0xFFFFFFFFL;
+        long z2 = x2 * y2;
+        long t = x1 * y2 + (z2 >>> 32);
+        long z1 = (t & 0xFFFFFFFFL) + x2 * y1;
+        long z0 = t >> 32;
+        return x1 * y1 + z0 + (z1 >> 32);
+    }
+
+    /**
+     * floor(q log10(2)), exact for |q| <= 5456721.
+     */
+    private static int flog10pow2(int q) {
+        return (int) (q * 661_971_961_083L >> 41);
+    }
+
+    /**
+     * floor(log10(3/4 2^q)), exact for -2985890 <= q <= 2936892.
+     */
+    private static int flog10threeQuartersPow2(int q) {
+        return (int) (q * 661_971_961_083L + -274_743_187_321L >> 41);
+    }
+
+    /**
+     * floor(e log2(10)), exact for |e| <= 1838394.
+     */
+    private static int flog2pow10(int e) {
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+
+    private static long[] powersOfTen() {
+        long[] g = new long[2 * (K_MAX - K_MIN + 1)];
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            int r = flog2pow10(-k) - 125;
+            BigInteger numerator = k <= 0 ? BigInteger.TEN.pow(-k) : BigInteger.ONE;
+            BigInteger denominator = k > 0 ? BigInteger.TEN.pow(k) : BigInteger.ONE;
+            if (r < 0) {
+                numerator = numerator.shiftLeft(-r);
+            } else {
+                denominator = denominator.shiftLeft(r);
+            }
+            BigInteger value = numerator.divide(denominator).add(BigInteger.ONE);
+            g[k - K_MIN << 1] = value.shiftRight(63).longValue();
+            g[k - K_MIN << 1 | 1] = value.longValue() & MASK_63;
+        }
+        return g;
+    }
+
+    private static int javaVersion() {
+        String version = System.getProperty("java.specification.version", "1.8");
+        if (version.startsWith("1.")) {
+            return 8;
+        }
+        int end = 0;
+        while (end < version.length() && Character.isDigit(version.charAt(end))) {
+            end++;
+        }
+        return end == 0 ? 8 : Integer.parseInt(version.substring(0, end));
+    }
+
+    /**
+     * Puts a string known to consist of ASCII characters only, like the output of {@link Double#toString(double)}.
+     */
+    public static void putAscii(ByteBuffer out, String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            out.put((byte) ascii.charAt(i));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package beam.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses ASCII decimal numbers, as written by {@link AsciiDoubleFormat}, straight from a byte buffer.
+ * <p>
+ * Numbers with at most 18 significant digits whose mantissa is below 2^53 and whose decimal exponent is at most 22
+ * are exactly representable as mantissa times or divided by an exact power of ten, so one floating point operation
+ * yields the correctly rounded value without any allocation. All other input, including NaN and Infinity, is
+ * delegated to {@link Double#parseDouble(String)}.
+ */
+final class AsciiDoubleParser {
+
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final int MAX_SIGNIFICANT_DIGITS = 18;
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private AsciiDoubleParser() {
+    }
+
+    /**
+     * @return the value of the bytes from (inclusive) to to (exclusive)
+     * @throws NumberFormatException if the bytes are not a number
+     */
+    static double parse(ByteBuffer in, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (in.get(i) == '-' || in.get(i) == '+')) {
+            negative = in.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int significantDigits = 0;
+        int nofDigits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        for (; i < to; i++) {
+            byte c = in.get(i);
+            if (c >= '0' && c <= '9') {
+                if (significantDigits == MAX_SIGNIFICANT_DIGITS) {
+                    return parseSlow(in, from, to);
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) {
+                    significantDigits++;
+                }
+                if (fraction) {
+                    scale++;
+                }
+                nofDigits++;
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (nofDigits == 0) {
+            return parseSlow(in, from, to);
+        }
+        int exponent = 0;
+        if (i < to) {
+            byte c = in.get(i);
+            if (c != 'E' && c != 'e' || ++i == to) {
+                return parseSlow(in, from, to);
+            }
+            boolean negativeExponent = false;
+            if (in.get(i) == '-' || in.get(i) == '+') {
+                negativeExponent = in.get(i) == '-';
+                i++;
+            }
+            if (i == to) {
+                return parseSlow(in, from, to);
+            }
+            for (; i < to; i++) {
+                c = in.get(i);
+                if (c < '0' || c > '9' || exponent > 1000) {
+                    return parseSlow(in, from, to);
+                }
+                exponent = exponent * 10 + (c - '0');
+            }
+            if (negativeExponent) {
+                exponent = -exponent;
+            }
+        }
+        double value;
+        int power = exponent - scale;
+        if (mantissa == 0) {
+            value = 0.0;
+        } else if (mantissa < MAX_EXACT_MANTISSA && power >= -22 && power <= 22) {
+            value = power < 0 ? mantissa / POWERS_OF_TEN[-power] : mantissa * POWERS_OF_TEN[power];
+        } else {
+            return parseSlow(in, from, to);
+        }
+        return negative ? -value : value;
+    }
+
+    private static double parseSlow(ByteBuffer in, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = in.get(from + i);
+        }
+        return Double.parseDouble(new String(bytes, StandardCharsets.ISO_8859_1));
+    }
+}
@@ -28,32 +28,92 @@ import org.matsim.api.core.v01.network.Network;
 import org.matsim.core.config.groups.TravelTimeCalculatorConfigGroup;
 import org.matsim.core.router.util.TravelTime;
 import org.matsim.core.utils.io.IOUtils;
+import org.matsim.core.utils.io.UncheckedIOException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BeamCalcLinkStats {
 
     private final static Logger log = LoggerFactory.getLogger(CalcLinkStats.class);
     private static final String NEW_LINE_SEPARATOR = "\n";
     private static final String[] statType = {"MIN", "AVG"};
-    private static final int NOF_STATS = 2;
-    private final Map<Id<Link>, LinkData> linkData;
-    private final int nofHours;
+    private static final int HOUR = 3600;
+    private final LinkIndex linkIndex;
+    private final LinkStatsTable table;
+    private final int binSize;
+    private final int nofBins;
     private final Network network;
-    private int count = 0;
+    private final TravelTimeSampler travelTimeSampler;
+    private boolean concurrentTravelTime = false;
+    private Map<Id<Link>, LinkData> linkData;
+    private LinkStatsCsvWriter csvWriter;
+    private SlidingWindowLinkStats slidingWindow;
+    private LinkStatsDeltaWriter deltaWriter;
+    private Metrics metrics = Metrics.NOOP;
+    private final AtomicInteger count = new AtomicInteger();
+    /**
+     * Links of a dense table whose minima were not set by the first merge, as the merged statistics lacked them; the
+     * next iteration initializes them. Null if there are none.
+     */
+    private BitSet uninitializedLinks;
+    private ForkJoinPool pool;
 
     @Inject
     public BeamCalcLinkStats(final Network network, final TravelTimeCalculatorConfigGroup ttConfigGroup) {
+        this(network, ttConfigGroup, false);
+    }
+
+    /**
+     * @param offHeapStorage keep the statistics in direct buffers outside of the java heap, useful for very large networks
+     */
+    public BeamCalcLinkStats(final Network network, final TravelTimeCalculatorConfigGroup ttConfigGroup, boolean offHeapStorage) {
+        this(network, ttConfigGroup, HOUR, offHeapStorage);
+    }
+
+    /**
+     * @param binSize        length of the time bins in seconds, hourly by default. Bins other than hours take the
+     *                       volumes from {@link VolumesAnalyzer#getVolumesForLink(Id)}, so the analyzer has to be
+     *                       created with the same time bin size.
+     * @param offHeapStorage keep the statistics in direct buffers outside of the java heap, useful for very large networks
+     */
+    public BeamCalcLinkStats(final Network network, final TravelTimeCalculatorConfigGroup ttConfigGroup, int binSize, boolean offHeapStorage) {
+        this(network, ttConfigGroup, binSize, offHeapStorage, false);
+    }
+
+    /**
+     * @param sparseStorage only store links that see any volume, see {@link LinkStatsTable}. Links that never carry
+     *                      volume then report their free flow travel time instead of the sampled one.
+     */
+    public BeamCalcLinkStats(final Network network, final TravelTimeCalculatorConfigGroup ttConfigGroup, int binSize, boolean offHeapStorage,
+                             boolean sparseStorage) {
+        if (binSize <= 0) {
+            throw new IllegalArgumentException("binSize must be positive: " + binSize);
+        }
         this.network = network;
-        linkData = new ConcurrentHashMap<>();
-        nofHours = (int) TimeUnit.SECONDS.toHours(ttConfigGroup.getMaxTime());
+        this.binSize = binSize;
+        nofBins = ttConfigGroup.getMaxTime() / binSize;
+        linkIndex = new LinkIndex(network);
+        if (sparseStorage) {
+            table = new LinkStatsTable(linkIndex.size(), nofBins, offHeapStorage, (link, bin) -> {
+                Link l = linkIndex.getLink(link);
+                return l.getLength() / l.getFreespeed(bin * binSize);
+            });
+        } else {
+            table = new LinkStatsTable(linkIndex.size(), nofBins, offHeapStorage);
+        }
+        travelTimeSampler = new TravelTimeSampler(linkIndex, binSize, nofBins);
         reset();
     }
 
@@ -61,75 +121,347 @@ public class BeamCalcLinkStats {
         addData(analyzer, ttimes, null);
     }
 
+    /**
+     * Collects the volumes and travel times of one iteration. The links are processed in blocks of bounded size: the
+     * travel times of a block's links and bins are sampled into a reused buffer first, in parallel if a parallelism
+     * was set and the travel times were declared safe for concurrent use with {@link #setConcurrentTravelTime(boolean)}.
+     * If a parallelism was set, the block's links are then split into partitions that are processed on a fork-join
+     * pool; in that case the analyzer has to support
+     * concurrent reads. Every link is only ever touched by one thread, so the results are identical to the
+     * sequential collection.
+     */
     public void addData(final VolumesAnalyzer analyzer, final TravelTime ttimes, String mode) {
-        count++;
-        // TODO verify ttimes has hourly timeBin-Settings
+        final long start = System.nanoTime();
+        final boolean firstIteration = count.incrementAndGet() == 1;
+        // TODO verify ttimes has timeBin-Settings matching binSize
+
+        if (table.isSparse()) {
+            addSparseData(analyzer, ttimes, mode, firstIteration);
+        } else {
+            addDenseData(analyzer, ttimes, mode, firstIteration);
+        }
+        metrics.recordSince("linkstats.addData", start);
+    }
 
-        // go through all links
-        for (Id<Link> linkId : linkData.keySet()) {
+    private void addDenseData(final VolumesAnalyzer analyzer, final TravelTime ttimes, String mode, boolean firstIteration) {
+        travelTimeSampler.forEachBlock(ttimes, linkIndex.size(), index -> index, concurrentTravelTime ? pool : null,
+                (linkTTimes, fromBlock, toBlock) -> LinkPartitions.forEach(pool, toBlock - fromBlock, (from, to) -> {
+                    double[] binVolumes = binSize == HOUR ? null : new double[nofBins];
+                    for (int index = fromBlock + from; index < fromBlock + to; index++) {
+
+                        // retrieve link from link index
+                        Link link = linkIndex.getLink(index);
+
+                        // get the volumes for the link ID from the analyzier
+                        double[] volumes = getVolumes(analyzer, link.getId(), mode, binVolumes);
+
+                        int offset = (index - fromBlock) * nofBins;
+                        table.accumulate(index, volumes, 0, linkTTimes, offset, initializes(index, firstIteration));
+                        if (slidingWindow != null) {
+                            slidingWindow.add(index, volumes, 0, linkTTimes, offset);
+                        }
+                    }
+                }));
+        uninitializedLinks = null;
+        if (slidingWindow != null) {
+            slidingWindow.advance();
+        }
+    }
 
-            // retrieve link from link ID
-            Link link = network.getLinks().get(linkId);
+    private void addSparseData(final VolumesAnalyzer analyzer, final TravelTime ttimes, String mode, boolean firstIteration) {
+        // links known to the analyzer are those with volume; links that had volume before keep their rows
+        for (Id<Link> linkId : analyzer.getLinkIds()) {
+            int index = linkIndex.indexOf(linkId);
+            if (index >= 0) {
+                table.allocate(index, firstIteration);
+            }
+        }
+        travelTimeSampler.forEachBlock(ttimes, table.getNofRows(), table::getRowLink, concurrentTravelTime ? pool : null,
+                (rowTTimes, fromBlock, toBlock) -> LinkPartitions.forEach(pool, toBlock - fromBlock, (from, to) -> {
+                    double[] binVolumes = binSize == HOUR ? null : new double[nofBins];
+                    for (int row = fromBlock + from; row < fromBlock + to; row++) {
+                        int index = table.getRowLink(row);
+                        double[] volumes = getVolumes(analyzer, linkIndex.getLinkId(index), mode, binVolumes);
+                        table.accumulate(index, volumes, 0, rowTTimes, (row - fromBlock) * nofBins, firstIteration);
+                    }
+                }));
+    }
 
-            // get the volumes for the link ID from the analyzier
-            double[] volumes = mode == null ?
-                    analyzer.getVolumesPerHourForLink(linkId) : analyzer.getVolumesPerHourForLink(linkId, mode);
+    /**
+     * @param binVolumes buffer for the volumes per time bin, or null for hourly volumes
+     */
+    static double[] getVolumes(final VolumesAnalyzer analyzer, final Id<Link> linkId, String mode, double[] binVolumes) {
+        if (binVolumes == null) {
+            return mode == null ? analyzer.getVolumesPerHourForLink(linkId) : analyzer.getVolumesPerHourForLink(linkId, mode);
+        }
+        int[] volumes = mode == null ? analyzer.getVolumesForLink(linkId) : analyzer.getVolumesForLink(linkId, mode);
+        Arrays.fill(binVolumes, 0.0);
+        if (volumes != null) {
+            for (int bin = 0; bin < Math.min(binVolumes.length, volumes.length); bin++) {
+                binVolumes[bin] = volumes[bin];
+            }
+        }
+        return binVolumes;
+    }
 
-            // get the destination container for the data from link data (could have gotten this through iterator right away)
-            LinkData data = linkData.get(linkId);
+    /**
+     * Collects one iteration given as flat link-major matrices, i.e. the value of the link with index i
+     * (see {@link #getLinkIndex()}) and time bin b is found at i * nofBins + b.
+     *
+     * @param volumes volumes per time bin of all links
+     * @param ttimes  travel times per time bin of all links
+     */
+    public void addData(final double[] volumes, final double[] ttimes) {
+        if (volumes.length < linkIndex.size() * nofBins || ttimes.length < linkIndex.size() * nofBins) {
+            throw new IllegalArgumentException("Expected matrices of " + linkIndex.size() + " links x " + nofBins + " bins");
+        }
+        final long start = System.nanoTime();
+        final boolean firstIteration = count.incrementAndGet() == 1;
+        if (table.isSparse()) {
+            for (int index = 0; index < linkIndex.size(); index++) {
+                if (hasVolume(volumes, index * nofBins)) {
+                    table.allocate(index, firstIteration);
+                }
+            }
+            LinkPartitions.forEach(pool, table.getNofRows(), (fromRow, toRow) -> {
+                for (int row = fromRow; row < toRow; row++) {
+                    int index = table.getRowLink(row);
+                    table.accumulate(index, volumes, index * nofBins, ttimes, index * nofBins, firstIteration);
+                }
+            });
+            metrics.recordSince("linkstats.addData", start);
+            return;
+        }
+        forEachPartition((fromIndex, toIndex) -> {
+            for (int index = fromIndex; index < toIndex; index++) {
+                table.accumulate(index, volumes, index * nofBins, ttimes, index * nofBins, initializes(index, firstIteration));
+                if (slidingWindow != null) {
+                    slidingWindow.add(index, volumes, index * nofBins, ttimes, index * nofBins);
+                }
+            }
+        });
+        uninitializedLinks = null;
+        if (slidingWindow != null) {
+            slidingWindow.advance();
+        }
+        metrics.recordSince("linkstats.addData", start);
+    }
 
-            // prepare the sum variables (for volumes);
-            long sumVolumes = 0; // daily (0-24) sum
+    private boolean initializes(int index, boolean firstIteration) {
+        return firstIteration || uninitializedLinks != null && uninitializedLinks.get(index);
+    }
 
-            // go through all hours:
-            for (int hour = 0; hour < nofHours; hour++) {
+    private boolean hasVolume(final double[] volumes, int offset) {
+        for (int bin = 0; bin < nofBins; bin++) {
+            if (volumes[offset + bin] != 0.0) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-                // get travel time for hour
-                double ttime = ttimes.getLinkTravelTime(link, hour * 3600, null, null);
+    private void forEachPartition(final LinkPartitions.LinkRangeAction action) {
+        LinkPartitions.forEach(pool, linkIndex.size(), action);
+    }
 
-                // add for daily sum:
-                sumVolumes += volumes[hour];
+    public void reset() {
+        table.clear();
+        count.set(0);
+        uninitializedLinks = null;
+        log.info(" resetting `count' to zero.  This info is here since we want to check when this" +
+                " is happening during normal simulation runs.  kai, jan'11");
+    }
 
-                // the following has something to do with the fact that we are doing this for multiple iterations.  So there are variations.
-                // this collects min and max.  There is, however, no good control over how many iterations this is collected.
-                if (count == 1) {
-                    data.volumes[LinkData.MIN][hour] = volumes[hour];
-                    data.ttimes[LinkData.MIN][hour] = ttime;
-                } else {
-                    if (volumes[hour] < data.volumes[LinkData.MIN][hour]) data.volumes[LinkData.MIN][hour] = volumes[hour];
-                    if (ttime < data.ttimes[LinkData.MIN][hour]) data.ttimes[LinkData.MIN][hour] = ttime;
+    /**
+     * Snapshot of the average travel times ({@link LinkData#calculateAverageTravelTime(int)}) of all links and bins,
+     * e.g. to warm-start routing in the next run without going through the csv file. The returned instance does not
+     * change when more data is added.
+     */
+    public ArrayTravelTime toTravelTime() {
+        if (count.get() == 0) {
+            throw new IllegalStateException("No data collected yet");
+        }
+        final float[] ttimes = new float[linkIndex.size() * nofBins];
+        LinkPartitions.forEach(pool, linkIndex.size(), (fromIndex, toIndex) -> {
+            for (int index = fromIndex; index < toIndex; index++) {
+                for (int bin = 0; bin < nofBins; bin++) {
+                    ttimes[index * nofBins + bin] = (float) table.calculateAverageTravelTime(index, bin);
                 }
-
-                // this is the regular summing up for each hour
-                data.volumes[LinkData.SUM][hour] += volumes[hour];
-                data.ttimes[LinkData.SUM][hour] += volumes[hour] * ttime;
             }
-            // dataVolumes[.][nofHours] are daily (0-24) values
-            if (count == 1) {
-                data.volumes[LinkData.MIN][nofHours] = sumVolumes;
-                data.volumes[LinkData.SUM][nofHours] = sumVolumes;
-            } else {
-                if (sumVolumes < data.volumes[LinkData.MIN][nofHours]) data.volumes[LinkData.MIN][nofHours] = sumVolumes;
-                data.volumes[LinkData.SUM][nofHours] += sumVolumes;
+        });
+        return new ArrayTravelTime(linkIndex, binSize, nofBins, ttimes);
+    }
+
+    /**
+     * Writes the hourly averages as csv. Plain and gzip compressed files are written by the {@link LinkStatsCsvWriter},
+     * other formats supported by {@link IOUtils} by the original, slower writer.
+     */
+    public void writeFile(final String filename) {
+        long start = System.nanoTime();
+        boolean written = false;
+        if (!LinkStatsCsvWriter.supports(filename)) {
+            written = writeFileWithBufferedWriter(filename);
+        } else {
+            try {
+                if (csvWriter == null) {
+                    csvWriter = new LinkStatsCsvWriter(linkIndex, nofBins, binSize, true);
+                }
+                csvWriter.write(filename, table, count.get());
+                written = true;
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
+        if (written) {
+            metrics.increment("linkstats.rowsWritten", (long) linkIndex.size() * nofBins);
+        }
+        recordWrite("linkstats.writeFile", filename, start);
     }
 
-    public void reset() {
-        linkData.clear();
-        count = 0;
-        log.info(" resetting `count' to zero.  This info is here since we want to check when this" +
-                " is happening during normal simulation runs.  kai, jan'11");
+    private void recordWrite(String timer, String filename, long start) {
+        metrics.recordSince(timer, start);
+        metrics.addBytes("linkstats.bytesWritten", new File(filename).length());
+    }
+
+    /**
+     * Writes the raw collected statistics in the binary format of {@link LinkStatsBinaryWriter}, which
+     * {@link LinkStatsBinaryReader} memory-maps without parsing. The file is a complete snapshot of the collected
+     * state that can be restored with {@link #restore(String)} or combined with {@link #merge(LinkStatsBinaryReader)}.
+     */
+    public void writeBinaryFile(final String filename) {
+        long start = System.nanoTime();
+        try {
+            new LinkStatsBinaryWriter().write(filename, linkIndex, table, binSize, count.get());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        recordWrite("linkstats.writeBinaryFile", filename, start);
+    }
 
-        // initialize our data-table
-        for (Link link : network.getLinks().values()) {
-            LinkData data = new LinkData(new double[NOF_STATS][nofHours + 1], new double[NOF_STATS][nofHours]);
-            linkData.put(link.getId(), data);
+    /**
+     * Writes the averages of {@link #writeFile(String)} for the given iteration as base or delta file of a
+     * {@link LinkStatsDeltaWriter}, see {@link #setDeltaOutput(double, int)}. Without any configuration every change
+     * is written and only the first file is a base.
+     */
+    public void writeDeltaFile(final String filename, int iteration) {
+        if (deltaWriter == null) {
+            deltaWriter = new LinkStatsDeltaWriter(linkIndex, nofBins, binSize, 0.0, 0);
         }
+        long start = System.nanoTime();
+        try {
+            deltaWriter.write(filename, table, count.get(), iteration);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        recordWrite("linkstats.writeDeltaFile", filename, start);
+    }
 
+    /**
+     * Configures {@link #writeDeltaFile(String, int)}; the next file written is a base.
+     *
+     * @param tolerance    absolute change of volume or travel time for a link and hour to be written again
+     * @param baseInterval write a full base every that many files, 0 for only the first one
+     */
+    public void setDeltaOutput(double tolerance, int baseInterval) {
+        deltaWriter = new LinkStatsDeltaWriter(linkIndex, nofBins, binSize, tolerance, baseInterval);
     }
 
-    public void writeFile(final String filename) {
+    /**
+     * Replaces the collected statistics by a snapshot written with {@link #writeBinaryFile(String)}, e.g. to resume
+     * a crashed run. See {@link #merge(LinkStatsBinaryReader)} for how links are matched.
+     */
+    public void restore(final String filename) {
+        try {
+            LinkStatsBinaryReader snapshot = new LinkStatsBinaryReader(filename);
+            reset();
+            merge(snapshot);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Combines the statistics collected by another instance into this one, as if this instance had collected the
+     * iterations of the other one as well: minima are combined with min, sums are added, and so are the counts.
+     * Merging is associative up to the rounding of the sums, so partial results of several runs can be reduced in any
+     * grouping, into dense and sparse tables alike. Links that the first merged statistics lack keep uninitialized
+     * minima until the next merge or iteration that covers them.
+     */
+    public void merge(final BeamCalcLinkStats other) {
+        merge(other.linkIndex, other.table, other.nofBins, other.binSize, other.count.get());
+    }
+
+    /**
+     * Merges a snapshot written with {@link #writeBinaryFile(String)}, see {@link #merge(BeamCalcLinkStats)}.
+     * Links are matched by id; links of the snapshot that are not part of the network are skipped.
+     */
+    public void merge(final LinkStatsBinaryReader snapshot) {
+        merge(snapshot.getLinkIndex(), snapshot, snapshot.getNofHours(), snapshot.getBinSize(), snapshot.getCount());
+    }
+
+    private void merge(final LinkIndex otherIndex, final LinkStatsSource other, int otherNofBins, int otherBinSize, int otherCount) {
+        if (otherNofBins != nofBins || otherBinSize != binSize) {
+            throw new IllegalArgumentException("Cannot merge " + otherNofBins + " bins of " + otherBinSize + "s into "
+                    + nofBins + " bins of " + binSize + "s");
+        }
+        if (otherCount == 0) {
+            return;
+        }
+        final boolean copy = count.get() == 0;
+        BitSet uninitialized = uninitializedLinks;
+        if (copy && !table.isSparse()) {
+            uninitialized = new BitSet(linkIndex.size());
+            uninitialized.set(0, linkIndex.size());
+        }
+        int unknownLinks = 0;
+        for (int otherIndexOfLink = 0; otherIndexOfLink < otherIndex.size(); otherIndexOfLink++) {
+            int index = otherIndex == linkIndex ? otherIndexOfLink : linkIndex.indexOf(otherIndex.getLinkId(otherIndexOfLink));
+            if (index < 0) {
+                unknownLinks++;
+                continue;
+            }
+            if (!table.hasRow(index)) {
+                // without volume in the other statistics the link still reads as unused, as it would after their iterations
+                if (!hasVolume(other, otherIndexOfLink)) {
+                    continue;
+                }
+                table.allocate(index, copy);
+            }
+            boolean initialize = copy || uninitialized != null && uninitialized.get(index);
+            if (uninitialized != null) {
+                uninitialized.clear(index);
+            }
+            for (int bin = 0; bin <= nofBins; bin++) {
+                double minVolume = other.getMinVolume(otherIndexOfLink, bin);
+                table.setMinVolume(index, bin, initialize ? minVolume : Math.min(table.getMinVolume(index, bin), minVolume));
+                table.setSumVolume(index, bin, table.getSumVolume(index, bin) + other.getSumVolume(otherIndexOfLink, bin));
+            }
+            for (int bin = 0; bin < nofBins; bin++) {
+                double minTTime = other.getMinTravelTime(otherIndexOfLink, bin);
+                table.setMinTravelTime(index, bin, initialize ? minTTime : Math.min(table.getMinTravelTime(index, bin), minTTime));
+                table.setSumTravelTime(index, bin, table.getSumTravelTime(index, bin) + other.getSumTravelTime(otherIndexOfLink, bin));
+            }
+        }
+        uninitializedLinks = uninitialized == null || uninitialized.isEmpty() ? null : uninitialized;
+        if (unknownLinks > 0) {
+            log.warn("Skipped {} links that are not part of the network while merging link stats.", unknownLinks);
+        }
+        count.addAndGet(otherCount);
+    }
+
+    private boolean hasVolume(final LinkStatsSource source, int link) {
+        for (int bin = 0; bin <= nofBins; bin++) {
+            if (source.getSumVolume(link, bin) != 0.0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the file was written completely
+     */
+    boolean writeFileWithBufferedWriter(final String filename) {
         BufferedWriter out = null;
         try {
             out = IOUtils.getBufferedWriter(filename);
@@ -140,20 +472,17 @@ public class BeamCalcLinkStats {
             out.write(NEW_LINE_SEPARATOR);
 
             // write data
-            for (Map.Entry<Id<Link>, LinkData> entry : linkData.entrySet()) {
+            for (int index = 0; index < linkIndex.size(); index++) {
+                Link link = linkIndex.getLink(index);
 
-                for (int i = 0; i < nofHours; i++) {
-                    Id<Link> linkId = entry.getKey();
-                    LinkData data = entry.getValue();
-                    Link link = network.getLinks().get(linkId);
-
-                    out.write(linkId.toString());
+                for (int i = 0; i < nofBins; i++) {
+                    out.write(link.getId().toString());
                     writeCommaAndStr(out, link.getFromNode().getId().toString());
 
                     writeCommaAndStr(out, link.getToNode().getId().toString());
 
                     //WRITE HOUR
-                    writeCommaAndStr(out, Double.toString(i));
+                    writeCommaAndStr(out, Double.toString(i * binSize / 3600.0));
 
                     writeCommaAndStr(out, Double.toString(link.getLength()));
 
@@ -164,18 +493,20 @@ public class BeamCalcLinkStats {
                     writeCommaAndStr(out, statType[LinkData.SUM]);
 
                     //WRITE VOLUME
-                    writeCommaAndStr(out, Double.toString((data.volumes[LinkData.SUM][i]) / count));
+                    writeCommaAndStr(out, Double.toString((table.getSumVolume(index, i)) / count.get()));
 
                     //WRITE TRAVELTIME
-                    writeCommaAndStr(out, Double.toString(data.calculateAverageTravelTime(i)));
+                    writeCommaAndStr(out, Double.toString(table.calculateAverageTravelTime(index, i)));
 
                     out.write(NEW_LINE_SEPARATOR);
                 }
             }
 
             out.flush();
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         } finally {
             if (out != null) {
                 try {
@@ -192,60 +523,135 @@ public class BeamCalcLinkStats {
         out.write(str);
     }
 
+    /**
+     * Compatibility view of the statistics as one {@link LinkData} per link. The view is created on first use and
+     * reads through to the underlying storage, so it always reflects the current state.
+     */
     public Map<Id<Link>, LinkData> getLinkData() {
+        if (linkData == null) {
+            Map<Id<Link>, LinkData> view = new LinkedHashMap<>();
+            for (int index = 0; index < linkIndex.size(); index++) {
+                view.put(linkIndex.getLinkId(index), new LinkData(table, index));
+            }
+            linkData = Collections.unmodifiableMap(view);
+        }
         return linkData;
     }
 
+    /**
+     * @return the number of time bins, which are hours unless another bin size was configured
+     */
     public int getNofHours() {
-        return nofHours;
+        return nofBins;
+    }
+
+    public int getNofBins() {
+        return nofBins;
+    }
+
+    /**
+     * @return the length of a time bin in seconds
+     */
+    public int getBinSize() {
+        return binSize;
+    }
+
+    public LinkIndex getLinkIndex() {
+        return linkIndex;
+    }
+
+    public LinkStatsTable getTable() {
+        return table;
+    }
+
+    public int getCount() {
+        return count.get();
+    }
+
+    /**
+     * Additionally keeps the hourly values of the last iterations in a {@link SlidingWindowLinkStats}.
+     * The window is not affected by {@link #reset()}, so it can span the resets of the regular statistics.
+     *
+     * @param iterations the number of iterations in the window, or 0 to stop keeping one
+     */
+    public void setSlidingWindow(int iterations) {
+        if (iterations != 0 && table.isSparse()) {
+            throw new IllegalStateException("A sliding window is not supported with sparse storage");
+        }
+        slidingWindow = iterations == 0 ? null : new SlidingWindowLinkStats(linkIndex.size(), nofBins, iterations);
+    }
+
+    /**
+     * Records the time spent collecting and writing, as well as the rows and bytes written: the timers
+     * {@code linkstats.addData} and {@code linkstats.write*File}, the counter {@code linkstats.rowsWritten}
+     * of csv rows written successfully and the byte count {@code linkstats.bytesWritten}.
+     */
+    public void setMetrics(final Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the statistics over the last iterations, or null if no window was set
+     */
+    public SlidingWindowLinkStats getSlidingWindow() {
+        return slidingWindow;
+    }
+
+    /**
+     * Declares whether the travel times handed to {@link #addData(VolumesAnalyzer, TravelTime, String)} may be
+     * sampled from several threads at once. Only then is the sampling parallelized.
+     */
+    public void setConcurrentTravelTime(boolean concurrentTravelTime) {
+        this.concurrentTravelTime = concurrentTravelTime;
+    }
+
+    /**
+     * Sets the number of threads used by the addData methods.
+     * A parallelism of 1 (the default) collects on the calling thread.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        pool = parallelism == 1 ? null : new ForkJoinPool(parallelism);
+    }
+
+    public int getParallelism() {
+        return pool == null ? 1 : pool.getParallelism();
     }
 
     public static class LinkData {
         static final int MIN = 0;
         static final int SUM = 1;
-        final double[][] volumes;
-        final double[][] ttimes;
+        private final LinkStatsTable table;
+        private final int index;
 
-        LinkData(final double[][] linksVolumes, final double[][] linksTTimes) {
-            volumes = linksVolumes.clone();
-            ttimes = linksTTimes.clone();
+        LinkData(final LinkStatsTable table, final int index) {
+            this.table = table;
+            this.index = index;
         }
         
         public double getMinVolume(int hour) {
-            return volumes[MIN][hour];
+            return table.getMinVolume(index, hour);
         }
         
         public double getSumVolume(int hour) {
-            return volumes[SUM][hour];
+            return table.getSumVolume(index, hour);
         }
         
         public double getMinTravelTime(int hour) {
-            return ttimes[MIN][hour];
+            return table.getMinTravelTime(index, hour);
         }
         
         public double getSumTravelTime(int hour) {
-            return ttimes[SUM][hour];
+            return table.getSumTravelTime(index, hour);
         }
         
         public double calculateAverageTravelTime(int hour) {
-            double ttimesMin = this.ttimes[LinkData.MIN][hour];
-            if (this.volumes[LinkData.SUM][hour] == 0) {
-                // nobody traveled along the link in this hour, so we cannot calculate an average
-                // use the value available or the minimum instead (min and max should be the same, =freespeed)
-                double ttsum = this.ttimes[LinkData.SUM][hour];
-                if (ttsum != 0.0) {
-                    return ttsum;
-                } else {
-                    return ttimesMin;
-                }
-            } else {
-                double ttsum = this.ttimes[LinkData.SUM][hour];
-                if (ttsum == 0) {
-                    return ttimesMin;
-                } else {
-                    return ttsum / this.volumes[LinkData.SUM][hour];
-                }
-            }
+            return table.calculateAverageTravelTime(index, hour);
         }
     }
 }
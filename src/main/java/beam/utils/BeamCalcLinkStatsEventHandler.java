@@ -0,0 +1,172 @@
+package beam.utils;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.events.handler.LinkEnterEventHandler;
+import org.matsim.api.core.v01.events.handler.LinkLeaveEventHandler;
+import org.matsim.api.core.v01.events.handler.VehicleEntersTrafficEventHandler;
+import org.matsim.api.core.v01.events.handler.VehicleLeavesTrafficEventHandler;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Event handler variant of {@link BeamCalcLinkStats#addData(org.matsim.analysis.VolumesAnalyzer, org.matsim.core.router.util.TravelTime, String)}.
+ * Hourly volumes and travel times are binned while the link events arrive, so neither a VolumesAnalyzer nor a
+ * TravelTime has to be kept and rescanned at the end of the iteration.
+ * <p>
+ * Volumes are counted on link leave events in the time bin of leaving, like the VolumesAnalyzer does. Travel times
+ * are averaged over the vehicles that entered a link within a time bin, like the TravelTimeCalculator does; a bin
+ * without any traversal gets the free speed travel time. The bins are those of the wrapped {@link BeamCalcLinkStats}.
+ * <p>
+ * Usage: register the handler with the events manager, call {@link #finishIteration()} once the iteration's events
+ * are processed, then write the statistics with the wrapped {@link BeamCalcLinkStats}. Every iteration can only be
+ * finished once; the handler takes link events again after the next {@link #reset(int)}.
+ */
+public class BeamCalcLinkStatsEventHandler implements LinkEnterEventHandler, LinkLeaveEventHandler,
+        VehicleEntersTrafficEventHandler, VehicleLeavesTrafficEventHandler {
+
+    private final BeamCalcLinkStats linkStats;
+    private final LinkIndex linkIndex;
+    private final String mode;
+    private final int binSize;
+    private final int nofBins;
+    private final double[] volumes;
+    private final double[] ttimeSums;
+    private final int[] ttimeCounts;
+    private final Map<Id<Vehicle>, VehicleState> vehicles = new HashMap<>();
+    private boolean finished;
+
+    public BeamCalcLinkStatsEventHandler(final BeamCalcLinkStats linkStats) {
+        this(linkStats, null);
+    }
+
+    /**
+     * @param mode only count vehicles that entered traffic with this network mode, or all vehicles if null
+     */
+    public BeamCalcLinkStatsEventHandler(final BeamCalcLinkStats linkStats, final String mode) {
+        this.linkStats = linkStats;
+        this.linkIndex = linkStats.getLinkIndex();
+        this.mode = mode;
+        this.binSize = linkStats.getBinSize();
+        this.nofBins = linkStats.getNofBins();
+        int size = linkIndex.size() * nofBins;
+        this.volumes = new double[size];
+        this.ttimeSums = new double[size];
+        this.ttimeCounts = new int[size];
+    }
+
+    @Override
+    public void reset(int iteration) {
+        Arrays.fill(volumes, 0.0);
+        Arrays.fill(ttimeSums, 0.0);
+        Arrays.fill(ttimeCounts, 0);
+        vehicles.clear();
+        finished = false;
+    }
+
+    @Override
+    public void handleEvent(VehicleEntersTrafficEvent event) {
+        VehicleState state = vehicles.computeIfAbsent(event.getVehicleId(), id -> new VehicleState());
+        state.counted = mode == null || mode.equals(event.getNetworkMode());
+        state.linkIndex = -1;
+    }
+
+    @Override
+    public void handleEvent(VehicleLeavesTrafficEvent event) {
+        VehicleState state = vehicles.get(event.getVehicleId());
+        if (state != null) {
+            state.linkIndex = -1;
+        }
+    }
+
+    @Override
+    public void handleEvent(LinkEnterEvent event) {
+        requireUnfinished();
+        VehicleState state = getState(event.getVehicleId());
+        if (state != null && state.counted) {
+            state.linkIndex = linkIndex.indexOf(event.getLinkId());
+            state.enterTime = event.getTime();
+        }
+    }
+
+    @Override
+    public void handleEvent(LinkLeaveEvent event) {
+        requireUnfinished();
+        VehicleState state = getState(event.getVehicleId());
+        if (state == null || !state.counted) {
+            return;
+        }
+        int index = linkIndex.indexOf(event.getLinkId());
+        if (index < 0) {
+            return;
+        }
+        int offset = index * nofBins;
+        volumes[offset + binOf(event.getTime())]++;
+        // vehicles that started on this link have no enter time and do not contribute a travel time
+        if (state.linkIndex == index) {
+            int cell = offset + binOf(state.enterTime);
+            ttimeSums[cell] += event.getTime() - state.enterTime;
+            ttimeCounts[cell]++;
+        }
+        state.linkIndex = -1;
+    }
+
+    private void requireUnfinished() {
+        if (finished) {
+            throw new IllegalStateException("The iteration was finished already, reset the handler first");
+        }
+    }
+
+    private VehicleState getState(Id<Vehicle> vehicleId) {
+        VehicleState state = vehicles.get(vehicleId);
+        if (state == null && mode == null) {
+            // without a mode filter every vehicle counts, even if we missed it entering traffic
+            state = new VehicleState();
+            state.counted = true;
+            vehicles.put(vehicleId, state);
+        }
+        return state;
+    }
+
+    private int binOf(double time) {
+        return Math.min(Math.max((int) (time / binSize), 0), nofBins - 1);
+    }
+
+    /**
+     * Hands the binned volumes and travel times of the current iteration to the wrapped {@link BeamCalcLinkStats}.
+     * This is a single pass over flat arrays; neither the network's travel times nor per-link volume arrays are queried.
+     * The average travel times replace the sums in place, so the iteration is finished afterwards: calling this again
+     * or handling further link events before the next {@link #reset(int)} throws an {@link IllegalStateException}.
+     */
+    public void finishIteration() {
+        requireUnfinished();
+        finished = true;
+        for (int index = 0; index < linkIndex.size(); index++) {
+            Link link = linkIndex.getLink(index);
+            int offset = index * nofBins;
+            for (int bin = 0; bin < nofBins; bin++) {
+                int cell = offset + bin;
+                ttimeSums[cell] = ttimeCounts[cell] == 0 ?
+                        link.getLength() / link.getFreespeed(bin * binSize) : ttimeSums[cell] / ttimeCounts[cell];
+            }
+        }
+        linkStats.addData(volumes, ttimeSums);
+    }
+
+    public BeamCalcLinkStats getLinkStats() {
+        return linkStats;
+    }
+
+    private static class VehicleState {
+        boolean counted;
+        int linkIndex = -1;
+        double enterTime;
+    }
+}
@@ -0,0 +1,194 @@
+package beam.utils;
+
+import org.matsim.analysis.VolumesAnalyzer;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.config.groups.TravelTimeCalculatorConfigGroup;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.utils.io.UncheckedIOException;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the statistics of {@link BeamCalcLinkStats} for several modes at once. Instead of one addData call per
+ * mode, each rescanning all links and sampling all travel times, every link is visited once: its travel times are
+ * sampled once and shared by all modes, and the volumes of every mode plus the total over all modes are folded
+ * into one shared {@link LinkStatsTable}.
+ * <p>
+ * The table holds one row per link and mode, the rows of a link being adjacent: the row of the link with index i
+ * and mode slot m is i * getNofModeSlots() + m. Slot 0 is the total over all modes ({@link #ALL_MODES}), the
+ * following slots are the configured modes in the given order.
+ */
+public class BeamCalcMultiModeLinkStats {
+
+    public static final String ALL_MODES = "all";
+    private static final int HOUR = 3600;
+
+    private final LinkIndex linkIndex;
+    private final String[] modes;
+    private final int binSize;
+    private final int nofBins;
+    private final LinkStatsTable table;
+    private final TravelTimeSampler travelTimeSampler;
+    private final AtomicInteger count = new AtomicInteger();
+    private boolean concurrentTravelTime = false;
+    private LinkStatsCsvWriter csvWriter;
+    private ForkJoinPool pool;
+
+    public BeamCalcMultiModeLinkStats(final Network network, final TravelTimeCalculatorConfigGroup ttConfigGroup, final Collection<String> modes) {
+        this(network, ttConfigGroup, modes, HOUR, false);
+    }
+
+    /**
+     * @param binSize        length of the time bins in seconds, see {@link BeamCalcLinkStats}
+     * @param offHeapStorage keep the statistics in direct buffers outside of the java heap
+     */
+    public BeamCalcMultiModeLinkStats(final Network network, final TravelTimeCalculatorConfigGroup ttConfigGroup, final Collection<String> modes,
+                                      int binSize, boolean offHeapStorage) {
+        if (binSize <= 0) {
+            throw new IllegalArgumentException("binSize must be positive: " + binSize);
+        }
+        LinkedHashSet<String> slots = new LinkedHashSet<>();
+        slots.add(ALL_MODES);
+        slots.addAll(modes);
+        if (slots.size() != modes.size() + 1) {
+            throw new IllegalArgumentException("Modes must be unique and must not contain '" + ALL_MODES + "': " + modes);
+        }
+        this.modes = slots.toArray(new String[0]);
+        this.binSize = binSize;
+        this.nofBins = ttConfigGroup.getMaxTime() / binSize;
+        this.linkIndex = new LinkIndex(network);
+        this.table = new LinkStatsTable(linkIndex.size() * this.modes.length, nofBins, offHeapStorage);
+        this.travelTimeSampler = new TravelTimeSampler(linkIndex, binSize, nofBins);
+        reset();
+    }
+
+    /**
+     * Collects the volumes of all modes and the travel times of one iteration in a single pass over the links.
+     * Parallelization works like in {@link BeamCalcLinkStats#addData(VolumesAnalyzer, TravelTime, String)}.
+     */
+    public void addData(final VolumesAnalyzer analyzer, final TravelTime ttimes) {
+        final boolean firstIteration = count.incrementAndGet() == 1;
+        travelTimeSampler.forEachBlock(ttimes, linkIndex.size(), index -> index, concurrentTravelTime ? pool : null,
+                (linkTTimes, fromBlock, toBlock) -> LinkPartitions.forEach(pool, toBlock - fromBlock, (from, to) -> {
+                    double[] binVolumes = binSize == HOUR ? null : new double[nofBins];
+                    for (int index = fromBlock + from; index < fromBlock + to; index++) {
+                        Link link = linkIndex.getLink(index);
+                        int row = index * modes.length;
+                        for (int slot = 0; slot < modes.length; slot++, row++) {
+                            String mode = slot == 0 ? null : modes[slot];
+                            double[] volumes = BeamCalcLinkStats.getVolumes(analyzer, link.getId(), mode, binVolumes);
+                            table.accumulate(row, volumes, 0, linkTTimes, (index - fromBlock) * nofBins, firstIteration);
+                        }
+                    }
+                }));
+    }
+
+    public void reset() {
+        table.clear();
+        count.set(0);
+    }
+
+    /**
+     * Writes one file per mode slot, see {@link BeamCalcLinkStats#writeFile(String)}.
+     *
+     * @param filenamePattern file name containing the placeholder {@code <mode>}, e.g. {@code it.10/linkstats_<mode>.csv.gz}
+     */
+    public void writeFiles(final String filenamePattern) {
+        if (!filenamePattern.contains("<mode>")) {
+            throw new IllegalArgumentException("File name pattern lacks the <mode> placeholder: " + filenamePattern);
+        }
+        try {
+            for (int slot = 0; slot < modes.length; slot++) {
+                getCsvWriter().write(filenamePattern.replace("<mode>", modes[slot]), table, count.get(), modes.length, slot);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes all modes into a single file that has the mode as additional last column.
+     */
+    public void writeFile(final String filename) {
+        try {
+            getCsvWriter().writeWithModeColumn(filename, table, count.get(), modes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private LinkStatsCsvWriter getCsvWriter() {
+        if (csvWriter == null) {
+            csvWriter = new LinkStatsCsvWriter(linkIndex, nofBins, binSize, true);
+        }
+        return csvWriter;
+    }
+
+    /**
+     * @return the row of the link and mode in {@link #getTable()}, or -1 if the mode is not collected
+     */
+    public int getRow(int linkIndex, final String mode) {
+        for (int slot = 0; slot < modes.length; slot++) {
+            if (modes[slot].equals(mode)) {
+                return linkIndex * modes.length + slot;
+            }
+        }
+        return -1;
+    }
+
+    public LinkStatsTable getTable() {
+        return table;
+    }
+
+    public LinkIndex getLinkIndex() {
+        return linkIndex;
+    }
+
+    /**
+     * @return the mode slots, the first being {@link #ALL_MODES}
+     */
+    public String[] getModes() {
+        return modes.clone();
+    }
+
+    public int getNofModeSlots() {
+        return modes.length;
+    }
+
+    public int getNofBins() {
+        return nofBins;
+    }
+
+    public int getBinSize() {
+        return binSize;
+    }
+
+    public int getCount() {
+        return count.get();
+    }
+
+    /**
+     * @see BeamCalcLinkStats#setConcurrentTravelTime(boolean)
+     */
+    public void setConcurrentTravelTime(boolean concurrentTravelTime) {
+        this.concurrentTravelTime = concurrentTravelTime;
+    }
+
+    /**
+     * @see BeamCalcLinkStats#setParallelism(int)
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        pool = parallelism == 1 ? null : new ForkJoinPool(parallelism);
+    }
+}
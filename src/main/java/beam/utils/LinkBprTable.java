@@ -0,0 +1,189 @@
+package beam.utils;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Dense primitive table of the parameters of the BPR volume delay function of every link, so that congestion updates
+ * do not read boxed values from the attributes of each link: length, freespeed, capacity, alpha, beta and whether
+ * heavy goods vehicles are allowed.
+ * <p>
+ * Links get consecutive indices in the order they are added, e.g. by {@link beam.router.r5.OsmToMATSim} while it
+ * adds them to the network; {@link #getLinkIndex()} maps their ids to these indices. Adding is not thread safe, evaluating
+ * may run while no links are added.
+ */
+public class LinkBprTable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final List<Id<Link>> linkIds = new ArrayList<>();
+    private double[] lengths = new double[INITIAL_CAPACITY];
+    private double[] freespeeds = new double[INITIAL_CAPACITY];
+    private double[] capacities = new double[INITIAL_CAPACITY];
+    private double[] alphas = new double[INITIAL_CAPACITY];
+    private double[] betas = new double[INITIAL_CAPACITY];
+    private boolean[] hgvs = new boolean[INITIAL_CAPACITY];
+    private int size;
+    private LinkIndex linkIndex;
+    private ForkJoinPool pool;
+
+    /**
+     * Builds the table of the indexed links from their fields and alpha, beta and hgv attributes.
+     *
+     * @param defaultAlpha alpha of links without the attribute
+     * @param defaultBeta  beta of links without the attribute
+     */
+    public static LinkBprTable fromLinks(final LinkIndex linkIndex, double defaultAlpha, double defaultBeta) {
+        LinkBprTable table = new LinkBprTable();
+        for (int index = 0; index < linkIndex.size(); index++) {
+            Link link = linkIndex.getLink(index);
+            if (link == null) {
+                throw new IllegalArgumentException("The link index has no links");
+            }
+            Object alpha = link.getAttributes().getAttribute("alpha");
+            Object beta = link.getAttributes().getAttribute("beta");
+            Object hgv = link.getAttributes().getAttribute("hgv");
+            table.add(link.getId(), link.getLength(), link.getFreespeed(), link.getCapacity(),
+                    alpha instanceof Number ? ((Number) alpha).doubleValue() : defaultAlpha,
+                    beta instanceof Number ? ((Number) beta).doubleValue() : defaultBeta,
+                    Boolean.TRUE.equals(hgv));
+        }
+        table.linkIndex = linkIndex;
+        return table;
+    }
+
+    /**
+     * @return the index of the link
+     */
+    public int add(final Id<Link> linkId, double length, double freespeed, double capacity, double alpha, double beta, boolean hgv) {
+        if (size == lengths.length) {
+            int newCapacity = size * 2;
+            lengths = Arrays.copyOf(lengths, newCapacity);
+            freespeeds = Arrays.copyOf(freespeeds, newCapacity);
+            capacities = Arrays.copyOf(capacities, newCapacity);
+            alphas = Arrays.copyOf(alphas, newCapacity);
+            betas = Arrays.copyOf(betas, newCapacity);
+            hgvs = Arrays.copyOf(hgvs, newCapacity);
+        }
+        linkIds.add(linkId);
+        lengths[size] = length;
+        freespeeds[size] = freespeed;
+        capacities[size] = capacity;
+        alphas[size] = alpha;
+        betas[size] = beta;
+        hgvs[size] = hgv;
+        linkIndex = null;
+        return size++;
+    }
+
+    /**
+     * Computes the BPR travel time length / freespeed * (1 + alpha * (volume / capacity)^beta) of every link and bin.
+     *
+     * @param volumes         link-major volumes, the one of link i in bin b at i * nofBins + b
+     * @param capacityFactor  scales the capacities to the period and sample size of the volumes, e.g. the bin size
+     *                        in hours times the fraction of the population simulated
+     * @param travelTimes     receives the travel times in the layout of the volumes, may be null
+     * @return the travel times
+     */
+    public double[] evaluate(final double[] volumes, int nofBins, double capacityFactor, double[] travelTimes) {
+        if (volumes.length != size * nofBins) {
+            throw new IllegalArgumentException("Expected " + size * nofBins + " volumes, got " + volumes.length);
+        }
+        final double[] result = travelTimes != null ? travelTimes : new double[volumes.length];
+        if (result.length != volumes.length) {
+            throw new IllegalArgumentException("Expected " + volumes.length + " travel times, got " + result.length);
+        }
+        LinkPartitions.forEach(pool, size, (fromIndex, toIndex) -> {
+            for (int index = fromIndex, cell = fromIndex * nofBins; index < toIndex; index++) {
+                double freeflow = lengths[index] / freespeeds[index];
+                double capacity = capacities[index] * capacityFactor;
+                double alpha = alphas[index];
+                double beta = betas[index];
+                for (int bin = 0; bin < nofBins; bin++, cell++) {
+                    result[cell] = freeflow * (1 + alpha * pow(volumes[cell] / capacity, beta));
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Math.pow for the small integral exponents that are common for BPR functions is several times slower than
+     * multiplying.
+     */
+    private static double pow(double base, double exponent) {
+        switch ((int) exponent == exponent ? (int) exponent : -1) {
+            case 1:
+                return base;
+            case 2:
+                return base * base;
+            case 3:
+                return base * base * base;
+            case 4:
+                double square = base * base;
+                return square * square;
+            default:
+                return Math.pow(base, exponent);
+        }
+    }
+
+    /**
+     * @return the index of the added links, in the order they were added
+     */
+    public LinkIndex getLinkIndex() {
+        if (linkIndex == null) {
+            linkIndex = new LinkIndex(linkIds);
+        }
+        return linkIndex;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double getLength(int index) {
+        return lengths[index];
+    }
+
+    public double getFreespeed(int index) {
+        return freespeeds[index];
+    }
+
+    public double getCapacity(int index) {
+        return capacities[index];
+    }
+
+    public double getAlpha(int index) {
+        return alphas[index];
+    }
+
+    public double getBeta(int index) {
+        return betas[index];
+    }
+
+    public boolean isHgvAllowed(int index) {
+        return hgvs[index];
+    }
+
+    /**
+     * Sets the number of threads {@link #evaluate} uses; 1, the default, evaluates on the calling thread.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        pool = parallelism == 1 ? null : new ForkJoinPool(parallelism);
+    }
+
+    public int getParallelism() {
+        return pool == null ? 1 : pool.getParallelism();
+    }
+}
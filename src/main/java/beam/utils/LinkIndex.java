@@ -0,0 +1,80 @@
+package beam.utils;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps every {@link Id} of a link to a dense int index in [0, size()).
+ * The mapping is built once so per-link data can be kept in flat primitive arrays instead of per-link objects.
+ */
+public final class LinkIndex {
+
+    private final Map<Id<Link>, Integer> indexById;
+    private final Id<Link>[] linkIds;
+    private final Link[] links;
+
+    /**
+     * Indexes the links of the network in the iteration order of {@link Network#getLinks()}.
+     */
+    public LinkIndex(final Network network) {
+        this(network.getLinks().values().size(), network.getLinks().values(), null);
+    }
+
+    /**
+     * Indexes bare link ids, e.g. when reading stored statistics without a network at hand.
+     * {@link #getLink(int)} returns null for an index built this way.
+     */
+    public LinkIndex(final Collection<Id<Link>> linkIds) {
+        this(linkIds.size(), null, linkIds);
+    }
+
+    @SuppressWarnings("unchecked")
+    private LinkIndex(int size, Collection<? extends Link> links, Collection<Id<Link>> linkIds) {
+        this.indexById = new HashMap<>(size * 4 / 3 + 1);
+        this.linkIds = (Id<Link>[]) new Id[size];
+        this.links = links == null ? null : new Link[size];
+        int index = 0;
+        if (links != null) {
+            for (Link link : links) {
+                this.links[index] = link;
+                add(index++, link.getId());
+            }
+        } else {
+            for (Id<Link> linkId : linkIds) {
+                add(index++, linkId);
+            }
+        }
+    }
+
+    private void add(int index, Id<Link> linkId) {
+        if (indexById.put(linkId, index) != null) {
+            throw new IllegalArgumentException("Duplicate link id " + linkId);
+        }
+        linkIds[index] = linkId;
+    }
+
+    public int size() {
+        return linkIds.length;
+    }
+
+    /**
+     * @return the dense index of the link, or -1 if the link is not part of this index
+     */
+    public int indexOf(final Id<Link> linkId) {
+        Integer index = indexById.get(linkId);
+        return index == null ? -1 : index;
+    }
+
+    public Id<Link> getLinkId(int index) {
+        return linkIds[index];
+    }
+
+    public Link getLink(int index) {
+        return links == null ? null : links[index];
+    }
+}
@@ -0,0 +1,56 @@
+package beam.utils;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits a range of dense link indices into partitions that are processed on a fork-join pool.
+ */
+final class LinkPartitions {
+
+    private static final int MIN_LINKS_PER_PARTITION = 1024;
+
+    interface LinkRangeAction {
+        void apply(int fromIndex, int toIndex);
+    }
+
+    private LinkPartitions() {
+    }
+
+    /**
+     * Applies the action to partitions of [0, nofLinks), on the calling thread if the pool is null.
+     */
+    static void forEach(final ForkJoinPool pool, int nofLinks, final LinkRangeAction action) {
+        if (pool == null) {
+            action.apply(0, nofLinks);
+        } else {
+            int partitionSize = Math.max(MIN_LINKS_PER_PARTITION, nofLinks / (pool.getParallelism() * 4) + 1);
+            pool.invoke(new PartitionTask(action, 0, nofLinks, partitionSize));
+        }
+    }
+
+    private static class PartitionTask extends RecursiveAction {
+        private final LinkRangeAction action;
+        private final int fromIndex;
+        private final int toIndex;
+        private final int partitionSize;
+
+        PartitionTask(LinkRangeAction action, int fromIndex, int toIndex, int partitionSize) {
+            this.action = action;
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+            this.partitionSize = partitionSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (toIndex - fromIndex <= partitionSize) {
+                action.apply(fromIndex, toIndex);
+            } else {
+                int middle = (fromIndex + toIndex) >>> 1;
+                invokeAll(new PartitionTask(action, fromIndex, middle, partitionSize),
+                        new PartitionTask(action, middle, toIndex, partitionSize));
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package beam.utils;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Memory-maps a file written by {@link LinkStatsBinaryWriter}. Only the header is parsed when opening the file;
+ * every statistic is read straight from the mapped pages on access. Each column is mapped on its own, so
+ * files with columns of up to 2 GB each are supported.
+ */
+public class LinkStatsBinaryReader implements LinkStatsSource {
+
+    private final int nofLinks;
+    private final int nofHours;
+    private final int binSize;
+    private final int count;
+    private final LinkIndex linkIndex;
+    private final DoubleBuffer minVolumes;
+    private final DoubleBuffer sumVolumes;
+    private final DoubleBuffer minTTimes;
+    private final DoubleBuffer sumTTimes;
+
+    public LinkStatsBinaryReader(final String filename) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r"); FileChannel channel = file.getChannel()) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE))
+                    .order(LinkStatsBinaryWriter.BYTE_ORDER);
+            if (header.getInt() != LinkStatsBinaryWriter.MAGIC) {
+                throw new IOException("Not a binary link stats file: " + filename);
+            }
+            int version = header.getInt();
+            if (version < 1 || version > LinkStatsBinaryWriter.VERSION) {
+                throw new IOException("Unsupported binary link stats version " + version + " in " + filename);
+            }
+            nofLinks = header.getInt();
+            nofHours = header.getInt();
+            binSize = version == 1 ? 3600 : header.getInt();
+            count = header.getInt();
+            int nofColumns = header.getInt();
+            if (nofColumns != LinkStatsBinaryWriter.COLUMNS.length) {
+                throw new IOException("Unexpected number of columns " + nofColumns + " in " + filename);
+            }
+            for (int column = 0; column < nofColumns; column++) {
+                String name = getString(header);
+                if (!name.equals(LinkStatsBinaryWriter.COLUMNS[column])) {
+                    throw new IOException("Unexpected column " + name + " in " + filename);
+                }
+            }
+            List<Id<Link>> linkIds = new ArrayList<>(nofLinks);
+            for (int index = 0; index < nofLinks; index++) {
+                linkIds.add(Id.create(getString(header), Link.class));
+            }
+            linkIndex = new LinkIndex(linkIds);
+
+            long position = header.position();
+            position += (Double.BYTES - position % Double.BYTES) % Double.BYTES;
+            long volumesSize = (long) nofLinks * (nofHours + 1) * Double.BYTES;
+            long ttimesSize = (long) nofLinks * nofHours * Double.BYTES;
+            if (channel.size() < position + 2 * volumesSize + 2 * ttimesSize) {
+                throw new IOException("Truncated binary link stats file: " + filename);
+            }
+            minVolumes = map(channel, position, volumesSize);
+            sumVolumes = map(channel, position + volumesSize, volumesSize);
+            minTTimes = map(channel, position + 2 * volumesSize, ttimesSize);
+            sumTTimes = map(channel, position + 2 * volumesSize + ttimesSize, ttimesSize);
+        }
+    }
+
+    private static DoubleBuffer map(FileChannel channel, long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(LinkStatsBinaryWriter.BYTE_ORDER).asDoubleBuffer();
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int getNofLinks() {
+        return nofLinks;
+    }
+
+    @Override
+    public int getNofHours() {
+        return nofHours;
+    }
+
+    /**
+     * @return the length of a time bin ("hour") in seconds
+     */
+    public int getBinSize() {
+        return binSize;
+    }
+
+    /**
+     * @return the number of iterations the sums were collected over
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public LinkIndex getLinkIndex() {
+        return linkIndex;
+    }
+
+    @Override
+    public double getMinVolume(int link, int hour) {
+        return minVolumes.get(link * (nofHours + 1) + hour);
+    }
+
+    @Override
+    public double getSumVolume(int link, int hour) {
+        return sumVolumes.get(link * (nofHours + 1) + hour);
+    }
+
+    @Override
+    public double getMinTravelTime(int link, int hour) {
+        return minTTimes.get(link * nofHours + hour);
+    }
+
+    @Override
+    public double getSumTravelTime(int link, int hour) {
+        return sumTTimes.get(link * nofHours + hour);
+    }
+
+    public double calculateAverageTravelTime(int link, int hour) {
+        return LinkStatsTable.calculateAverageTravelTime(getMinTravelTime(link, hour), getSumTravelTime(link, hour), getSumVolume(link, hour));
+    }
+
+    public double getSumVolume(final Id<Link> linkId, int hour) {
+        return getSumVolume(indexOf(linkId), hour);
+    }
+
+    public double calculateAverageTravelTime(final Id<Link> linkId, int hour) {
+        return calculateAverageTravelTime(indexOf(linkId), hour);
+    }
+
+    private int indexOf(final Id<Link> linkId) {
+        int index = linkIndex.indexOf(linkId);
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown link " + linkId);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,97 @@
+package beam.utils;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the raw statistics of a {@link LinkStatsTable} in a compact columnar binary format that
+ * {@link LinkStatsBinaryReader} memory-maps without parsing.
+ * <p>
+ * Layout, all numbers little endian:
+ * <pre>
+ * int magic, int version, int nofLinks, int nofHours, int binSize, int count, int nofColumns
+ * nofColumns x (int length, utf-8 column name)
+ * nofLinks x (int length, utf-8 link id), in link index order
+ * zero padding up to a multiple of 8 bytes
+ * double[nofLinks * (nofHours + 1)] MIN_VOLUME, double[nofLinks * (nofHours + 1)] SUM_VOLUME,
+ * double[nofLinks * nofHours] MIN_TRAVELTIME, double[nofLinks * nofHours] SUM_TRAVELTIME
+ * </pre>
+ * Every column is link-major, i.e. the value of link i and hour h is at i * width + h.
+ * Volumes have one extra slot per link holding the daily value. Hours are time bins of binSize seconds;
+ * version 1 files have no binSize field and hourly bins.
+ */
+public class LinkStatsBinaryWriter {
+
+    static final int MAGIC = 0x54534C42; // "BLST"
+    static final int VERSION = 2;
+    static final String[] COLUMNS = {"MIN_VOLUME", "SUM_VOLUME", "MIN_TRAVELTIME", "SUM_TRAVELTIME"};
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    public void write(final String filename, final LinkIndex linkIndex, final LinkStatsTable table, int binSize, int count) throws IOException {
+        int nofLinks = table.getNofLinks();
+        int nofHours = table.getNofHours();
+        try (FileOutputStream stream = new FileOutputStream(filename); FileChannel channel = stream.getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(BYTE_ORDER);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(nofLinks).putInt(nofHours).putInt(binSize).putInt(count).putInt(COLUMNS.length);
+            long position = 7 * Integer.BYTES;
+            for (String column : COLUMNS) {
+                position += putString(channel, buffer, column);
+            }
+            for (int index = 0; index < nofLinks; index++) {
+                position += putString(channel, buffer, linkIndex.getLinkId(index).toString());
+            }
+            while (position % Double.BYTES != 0) {
+                buffer.put((byte) 0);
+                position++;
+            }
+            for (int column = 0; column < COLUMNS.length; column++) {
+                int width = column < 2 ? nofHours + 1 : nofHours;
+                for (int index = 0; index < nofLinks; index++) {
+                    for (int hour = 0; hour < width; hour++) {
+                        if (buffer.remaining() < Double.BYTES) {
+                            flush(channel, buffer);
+                        }
+                        buffer.putDouble(get(table, column, index, hour));
+                    }
+                }
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    private static double get(LinkStatsTable table, int column, int index, int hour) {
+        switch (column) {
+            case 0:
+                return table.getMinVolume(index, hour);
+            case 1:
+                return table.getSumVolume(index, hour);
+            case 2:
+                return table.getMinTravelTime(index, hour);
+            default:
+                return table.getSumTravelTime(index, hour);
+        }
+    }
+
+    private static int putString(FileChannel channel, ByteBuffer buffer, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (buffer.remaining() < Integer.BYTES + bytes.length) {
+            flush(channel, buffer);
+        }
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+        return Integer.BYTES + bytes.length;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,449 @@
+package beam.utils;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the csv files written by {@link BeamCalcLinkStats#writeFile(String)} or
+ * {@link BeamCalcMultiModeLinkStats#writeFile(String)} back into a {@link LinkStatsTable}.
+ * <p>
+ * Plain files are memory-mapped and cut into chunks at line boundaries, gzip compressed files are decompressed
+ * block by block on the calling thread while the blocks already read are parsed. Chunks are parsed on the pool,
+ * link ids are looked up by their bytes and numbers are parsed by {@link AsciiDoubleParser}, so no strings are
+ * created per row.
+ * <p>
+ * The file holds averages, so the table is filled as if they were collected in a single iteration: the volume is
+ * both minimum and sum, the travel time the minimum, and volume times travel time the sum of travel times, hence
+ * {@link LinkStatsTable#calculateAverageTravelTime(int, int)} returns the travel time of the file. Rows of unknown
+ * links or of bins outside of the table are skipped and counted, see {@link #getSkippedRows()}.
+ */
+public class LinkStatsCsvReader {
+
+    private static final byte[] HEADER_PREFIX = "link,from,to,hour,".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MODE_COLUMN_NAME = ",mode".getBytes(StandardCharsets.UTF_8);
+    private static final int CHUNK_SIZE = 1 << 24;
+    private static final int MAX_LINE_LENGTH = 1 << 16;
+    private static final int HOUR_FIELD = 3;
+    private static final int VOLUME_FIELD = 8;
+    private static final int TRAVELTIME_FIELD = 9;
+    private static final int MODE_FIELD = 10;
+
+    private final LinkIndex linkIndex;
+    private final int binSize;
+    private final int nofBins;
+    private final boolean offHeap;
+    private final LinkIdTable linkIds;
+    private final AtomicLong skippedRows = new AtomicLong();
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    public LinkStatsCsvReader(final LinkIndex linkIndex, int binSize, int nofBins) {
+        this(linkIndex, binSize, nofBins, false);
+    }
+
+    /**
+     * @param binSize        length of the time bins of the file in seconds
+     * @param offHeapStorage create tables in direct buffers outside of the java heap
+     */
+    public LinkStatsCsvReader(final LinkIndex linkIndex, int binSize, int nofBins, boolean offHeapStorage) {
+        if (binSize <= 0) {
+            throw new IllegalArgumentException("binSize must be positive: " + binSize);
+        }
+        this.linkIndex = linkIndex;
+        this.binSize = binSize;
+        this.nofBins = nofBins;
+        this.offHeap = offHeapStorage;
+        this.linkIds = new LinkIdTable(linkIndex);
+    }
+
+    /**
+     * Reads a file without mode column.
+     */
+    public LinkStatsTable read(final String filename) throws IOException {
+        return read(filename, null);
+    }
+
+    /**
+     * @param mode the mode whose rows to read from a file with mode column, or null for a file without
+     */
+    public LinkStatsTable read(final String filename, final String mode) throws IOException {
+        LinkStatsTable table = new LinkStatsTable(linkIndex.size(), nofBins, offHeap);
+        skippedRows.set(0);
+        ChunkParser parser = new ChunkParser(table, mode == null ? null : mode.getBytes(StandardCharsets.UTF_8));
+        if (filename.toLowerCase().endsWith(".gz")) {
+            readCompressed(filename, parser);
+        } else {
+            readMapped(filename, parser);
+        }
+        for (int index = 0; index < linkIndex.size(); index++) {
+            double daily = 0.0;
+            for (int bin = 0; bin < nofBins; bin++) {
+                daily += table.getSumVolume(index, bin);
+            }
+            table.setMinVolume(index, nofBins, daily);
+            table.setSumVolume(index, nofBins, daily);
+        }
+        return table;
+    }
+
+    private void readMapped(final String filename, final ChunkParser parser) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r"); FileChannel channel = file.getChannel()) {
+            long size = channel.size();
+            ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAX_LINE_LENGTH));
+            long dataStart = parser.header(head, 0, head.limit(), filename);
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (long start = dataStart; start < size; start += CHUNK_SIZE) {
+                // the chunk owns all lines starting in [start, end), the last one may reach into the next chunk
+                long mapFrom = start == dataStart ? start : start - 1;
+                long end = Math.min(size, start + CHUNK_SIZE);
+                long mapTo = Math.min(size, end + MAX_LINE_LENGTH);
+                ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, mapFrom, mapTo - mapFrom);
+                int offset = (int) (start - mapFrom);
+                int limit = (int) (end - mapFrom);
+                tasks.add(pool.submit(() -> parser.parseOwnedLines(chunk, offset, limit, filename)));
+            }
+            join(tasks);
+        }
+    }
+
+    private void readCompressed(final String filename, final ChunkParser parser) throws IOException {
+        int nofBuffers = pool.getParallelism() + 2;
+        BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(nofBuffers);
+        for (int i = 0; i < nofBuffers; i++) {
+            free.add(new byte[CHUNK_SIZE]);
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        try (InputStream in = new GZIPInputStream(new FileInputStream(filename), 1 << 16)) {
+            byte[] buffer = take(free);
+            int length = fill(in, buffer, 0);
+            int start = (int) parser.header(ByteBuffer.wrap(buffer, 0, length), 0, length, filename);
+            while (length > start) {
+                // cut the block after its last complete line and carry the rest over to the next one
+                int end = length;
+                boolean eof = length < buffer.length;
+                if (!eof) {
+                    while (end > start && buffer[end - 1] != '\n') {
+                        end--;
+                    }
+                    if (end == start) {
+                        throw new IOException("Line longer than " + buffer.length + " bytes in " + filename);
+                    }
+                }
+                byte[] next = take(free);
+                System.arraycopy(buffer, end, next, 0, length - end);
+                final byte[] block = buffer;
+                final int from = start;
+                final int to = end;
+                tasks.add(pool.submit(() -> {
+                    try {
+                        parser.parseLines(ByteBuffer.wrap(block), from, to);
+                    } finally {
+                        free.add(block);
+                    }
+                }));
+                buffer = next;
+                start = 0;
+                length = eof ? length - end : fill(in, buffer, length - end);
+            }
+        } finally {
+            join(tasks);
+        }
+    }
+
+    private static int fill(InputStream in, byte[] buffer, int offset) throws IOException {
+        int length = offset;
+        int read;
+        while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+        }
+        return length;
+    }
+
+    private static byte[] take(BlockingQueue<byte[]> queue) throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading", e);
+        }
+    }
+
+    private static void join(List<ForkJoinTask<?>> tasks) throws IOException {
+        RuntimeException failure = null;
+        for (ForkJoinTask<?> task : tasks) {
+            try {
+                task.join();
+            } catch (RuntimeException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            // the pool rethrows a copy of the exception of the task, the IOException may be further down the chain
+            for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw failure;
+        }
+    }
+
+    /**
+     * @return the number of rows skipped by the last read, because of an unknown link, a bin outside of the table or
+     * a malformed row
+     */
+    public long getSkippedRows() {
+        return skippedRows.get();
+    }
+
+    public LinkIndex getLinkIndex() {
+        return linkIndex;
+    }
+
+    public int getBinSize() {
+        return binSize;
+    }
+
+    public int getNofBins() {
+        return nofBins;
+    }
+
+    /**
+     * Sets the number of threads parsing chunks. Uses the common pool by default.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        if (pool != ForkJoinPool.commonPool()) {
+            pool.shutdown();
+        }
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Parses rows into the table. Rows of different chunks only write distinct cells, so chunks may be parsed
+     * concurrently; the daily volumes are summed up afterwards.
+     */
+    private class ChunkParser {
+        private final LinkStatsTable table;
+        private final byte[] mode;
+
+        ChunkParser(LinkStatsTable table, byte[] mode) {
+            this.table = table;
+            this.mode = mode;
+        }
+
+        /**
+         * Checks the header line and whether the file has a mode column as requested.
+         *
+         * @return the position after the header line
+         */
+        long header(ByteBuffer in, int from, int to, String filename) throws IOException {
+            int end = from;
+            while (end < to && in.get(end) != '\n') {
+                end++;
+            }
+            if (end == to || !startsWith(in, from, end, HEADER_PREFIX)) {
+                throw new IOException("Not a link stats file: " + filename);
+            }
+            int lineEnd = end > from && in.get(end - 1) == '\r' ? end - 1 : end;
+            boolean modeColumn = lineEnd - from >= MODE_COLUMN_NAME.length
+                    && startsWith(in, lineEnd - MODE_COLUMN_NAME.length, lineEnd, MODE_COLUMN_NAME);
+            if (modeColumn && mode == null) {
+                throw new IOException("File has a mode column, select the mode to read: " + filename);
+            } else if (!modeColumn && mode != null) {
+                throw new IOException("File has no mode column: " + filename);
+            }
+            return end + 1;
+        }
+
+        /**
+         * Parses the lines starting in [from, to), skipping the first one unless it starts at from or follows a
+         * line break directly before from.
+         */
+        void parseOwnedLines(ByteBuffer in, int from, int to, String filename) {
+            int start = from;
+            if (from > 0 && in.get(from - 1) != '\n') {
+                while (start < in.limit() && in.get(start) != '\n') {
+                    start++;
+                }
+                start++;
+            }
+            if (start >= to) {
+                return;
+            }
+            int end = to;
+            while (end < in.limit() && in.get(end - 1) != '\n') {
+                end++;
+            }
+            if (end == in.limit() && in.get(end - 1) != '\n' && in.limit() - to >= MAX_LINE_LENGTH) {
+                throw new UncheckedIOException(new IOException("Line longer than " + MAX_LINE_LENGTH + " bytes in " + filename));
+            }
+            parseLines(in, start, end);
+        }
+
+        void parseLines(ByteBuffer in, int from, int to) {
+            int[] fields = new int[MODE_FIELD + 2];
+            int start = from;
+            while (start < to) {
+                int end = start;
+                while (end < to && in.get(end) != '\n') {
+                    end++;
+                }
+                int lineEnd = end > start && in.get(end - 1) == '\r' ? end - 1 : end;
+                if (lineEnd > start && !parseLine(in, start, lineEnd, fields)) {
+                    skippedRows.incrementAndGet();
+                }
+                start = end + 1;
+            }
+        }
+
+        /**
+         * @return false if the row was skipped
+         */
+        private boolean parseLine(ByteBuffer in, int from, int to, int[] fields) {
+            // fields[f] is the start of field f, which ends one before the start of the next one
+            int nofFields = 1;
+            fields[0] = from;
+            for (int i = from; i < to; i++) {
+                if (in.get(i) == ',') {
+                    if (nofFields == fields.length - 1) {
+                        return false;
+                    }
+                    fields[nofFields++] = i + 1;
+                }
+            }
+            fields[nofFields] = to + 1;
+            if (nofFields != (mode == null ? MODE_FIELD : MODE_FIELD + 1)) {
+                return false;
+            }
+            if (mode != null && !bytesEqual(in, fields[MODE_FIELD], to, mode)) {
+                return true;
+            }
+            int link = linkIds.indexOf(in, from, fields[1] - 1);
+            if (link < 0) {
+                return false;
+            }
+            try {
+                double hour = AsciiDoubleParser.parse(in, fields[HOUR_FIELD], fields[HOUR_FIELD + 1] - 1);
+                int bin = (int) Math.round(hour * 3600.0 / binSize);
+                if (bin < 0 || bin >= nofBins) {
+                    return false;
+                }
+                double volume = AsciiDoubleParser.parse(in, fields[VOLUME_FIELD], fields[VOLUME_FIELD + 1] - 1);
+                double ttime = AsciiDoubleParser.parse(in, fields[TRAVELTIME_FIELD], fields[TRAVELTIME_FIELD + 1] - 1);
+                table.setMinVolume(link, bin, volume);
+                table.setSumVolume(link, bin, volume);
+                table.setMinTravelTime(link, bin, ttime);
+                table.setSumTravelTime(link, bin, volume == 0.0 ? ttime : volume * ttime);
+                return true;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer in, int from, int to, byte[] prefix) {
+        return to - from >= prefix.length && bytesEqual(in, from, from + prefix.length, prefix);
+    }
+
+    private static boolean bytesEqual(ByteBuffer in, int from, int to, byte[] bytes) {
+        if (to - from != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (in.get(from + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Open addressing hash table from the UTF-8 bytes of the link ids to their index.
+     */
+    private static final class LinkIdTable {
+        private final byte[] bytes;
+        private final int[] offsets;
+        private final int[] slots;
+        private final int mask;
+
+        LinkIdTable(LinkIndex linkIndex) {
+            int nofLinks = linkIndex.size();
+            byte[][] ids = new byte[nofLinks][];
+            int length = 0;
+            for (int index = 0; index < nofLinks; index++) {
+                Id<Link> id = linkIndex.getLinkId(index);
+                ids[index] = id.toString().getBytes(StandardCharsets.UTF_8);
+                length += ids[index].length;
+            }
+            this.bytes = new byte[length];
+            this.offsets = new int[nofLinks + 1];
+            for (int index = 0; index < nofLinks; index++) {
+                System.arraycopy(ids[index], 0, bytes, offsets[index], ids[index].length);
+                offsets[index + 1] = offsets[index] + ids[index].length;
+            }
+            int capacity = Integer.highestOneBit(Math.max(2, nofLinks) * 2 - 1) << 1;
+            this.slots = new int[capacity];
+            this.mask = capacity - 1;
+            for (int index = 0; index < nofLinks; index++) {
+                int slot = hash(ByteBuffer.wrap(bytes), offsets[index], offsets[index + 1]) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = index + 1;
+            }
+        }
+
+        int indexOf(ByteBuffer in, int from, int to) {
+            int slot = hash(in, from, to) & mask;
+            int entry;
+            while ((entry = slots[slot]) != 0) {
+                int index = entry - 1;
+                if (matches(index, in, from, to)) {
+                    return index;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private boolean matches(int index, ByteBuffer in, int from, int to) {
+            int offset = offsets[index];
+            if (offsets[index + 1] - offset != to - from) {
+                return false;
+            }
+            for (int i = from; i < to; i++, offset++) {
+                if (in.get(i) != bytes[offset]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int hash(ByteBuffer in, int from, int to) {
+            int hash = 0;
+            for (int i = from; i < to; i++) {
+                hash = 31 * hash + in.get(i);
+            }
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package beam.utils;
+
+import org.matsim.api.core.v01.network.Link;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Fast path of {@link BeamCalcLinkStats#writeFile(String)} producing the same bytes as the original writer.
+ * <p>
+ * The static columns of every link (ids, length, freespeed, capacity) are encoded once when the writer is created,
+ * numbers are formatted straight into large direct byte buffers, and the buffers go to the file channel as a whole.
+ * Files ending with .gz are compressed, by default on a background thread while the next buffer is filled.
+ * <p>
+ * The static columns reflect the network at the time the writer was created.
+ */
+public class LinkStatsCsvWriter {
+
+    private static final byte[] HEADER = "link,from,to,hour,length,freespeed,capacity,stat,volume,traveltime\n"
+            .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MODE_HEADER = ",mode\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NEW_LINE = {'\n'};
+    private static final String STAT_TYPE = "AVG";
+    private static final int BUFFER_SIZE = 1 << 22;
+    private static final int GZIP_BUFFERS = 3;
+
+    private final LinkIndex linkIndex;
+    private final int nofHours;
+    private final boolean compressInBackground;
+    private final byte[][] linkPrefixes;
+    private final byte[][] linkColumns;
+    private final byte[][] hours;
+    // the longest row without its line end: static columns, hour, volume, comma and travel time
+    private final int maxRowLength;
+    private final AsciiDoubleFormat doubleFormat = new AsciiDoubleFormat();
+
+    public LinkStatsCsvWriter(final LinkIndex linkIndex, int nofHours) {
+        this(linkIndex, nofHours, 3600, true);
+    }
+
+    /**
+     * @param binSize              length of a time bin in seconds; the hour column holds the start of the bin in hours
+     * @param compressInBackground gzip on a separate thread instead of the writing one
+     */
+    public LinkStatsCsvWriter(final LinkIndex linkIndex, int nofHours, int binSize, boolean compressInBackground) {
+        this.linkIndex = linkIndex;
+        this.nofHours = nofHours;
+        this.compressInBackground = compressInBackground;
+        this.linkPrefixes = new byte[linkIndex.size()][];
+        this.linkColumns = new byte[linkIndex.size()][];
+        int maxStaticLength = 0;
+        for (int index = 0; index < linkIndex.size(); index++) {
+            Link link = linkIndex.getLink(index);
+            linkPrefixes[index] = (link.getId() + "," + link.getFromNode().getId() + "," + link.getToNode().getId() + ",")
+                    .getBytes(StandardCharsets.UTF_8);
+            linkColumns[index] = ("," + link.getLength() + "," + link.getFreespeed() + "," + link.getCapacity() + ","
+                    + STAT_TYPE + ",").getBytes(StandardCharsets.UTF_8);
+            maxStaticLength = Math.max(maxStaticLength, linkPrefixes[index].length + linkColumns[index].length);
+        }
+        this.hours = new byte[nofHours][];
+        int maxHourLength = 0;
+        for (int hour = 0; hour < nofHours; hour++) {
+            hours[hour] = Double.toString(hour * binSize / 3600.0).getBytes(StandardCharsets.UTF_8);
+            maxHourLength = Math.max(maxHourLength, hours[hour].length);
+        }
+        this.maxRowLength = maxStaticLength + maxHourLength + 2 * AsciiDoubleFormat.MAX_DOUBLE_LENGTH + 1;
+        if (maxRowLength + NEW_LINE.length > BUFFER_SIZE) {
+            throw new IllegalArgumentException("Link ids too long for the write buffer");
+        }
+    }
+
+    /**
+     * @return whether this writer can produce the file, i.e. whether it is uncompressed or gzip compressed
+     */
+    public static boolean supports(final String filename) {
+        String name = filename.toLowerCase();
+        return !(name.endsWith(".bz2") || name.endsWith(".lz4") || name.endsWith(".zst"));
+    }
+
+    public void write(final String filename, final LinkStatsTable table, int count) throws IOException {
+        write(filename, table, count, 1, 0);
+    }
+
+    /**
+     * Writes the rows of one slice of a table holding several rows per link, i.e. the row index * rowStride + rowOffset
+     * for the link with index index.
+     */
+    public void write(final String filename, final LinkStatsTable table, int count, int rowStride, int rowOffset) throws IOException {
+        try (ByteSink sink = openSink(filename)) {
+            ByteBuffer out = sink.buffer();
+            out.put(HEADER);
+            for (int index = 0; index < linkIndex.size(); index++) {
+                out = writeLink(sink, out, table, count, index, index * rowStride + rowOffset, NEW_LINE);
+            }
+            sink.flush(out);
+        }
+    }
+
+    /**
+     * Writes all rows of a table holding one row per link and mode, ordered by link, with the mode as additional
+     * last column. The row of the link with index index and the mode with index m is index * modes.length + m.
+     */
+    public void writeWithModeColumn(final String filename, final LinkStatsTable table, int count, final String[] modes) throws IOException {
+        byte[][] modeSuffixes = new byte[modes.length][];
+        for (int mode = 0; mode < modes.length; mode++) {
+            modeSuffixes[mode] = ("," + modes[mode] + "\n").getBytes(StandardCharsets.UTF_8);
+            if (maxRowLength + modeSuffixes[mode].length > BUFFER_SIZE) {
+                throw new IllegalArgumentException("Mode name too long for the write buffer: " + modes[mode]);
+            }
+        }
+        try (ByteSink sink = openSink(filename)) {
+            ByteBuffer out = sink.buffer();
+            out.put(HEADER, 0, HEADER.length - 1);
+            out.put(MODE_HEADER);
+            for (int index = 0; index < linkIndex.size(); index++) {
+                for (int mode = 0; mode < modes.length; mode++) {
+                    out = writeLink(sink, out, table, count, index, index * modes.length + mode, modeSuffixes[mode]);
+                }
+            }
+            sink.flush(out);
+        }
+    }
+
+    private ByteSink openSink(final String filename) throws IOException {
+        return filename.toLowerCase().endsWith(".gz") ? new GzipSink(filename, compressInBackground) : new ChannelSink(filename);
+    }
+
+    private ByteBuffer writeLink(ByteSink sink, ByteBuffer out, LinkStatsTable table, int count, int index, int row, byte[] lineEnd) throws IOException {
+        byte[] prefix = linkPrefixes[index];
+        byte[] columns = linkColumns[index];
+        for (int hour = 0; hour < nofHours; hour++) {
+            if (out.remaining() < maxRowLength + lineEnd.length) {
+                out = sink.flush(out);
+            }
+            out.put(prefix);
+            out.put(hours[hour]);
+            out.put(columns);
+            doubleFormat.put(out, table.getSumVolume(row, hour) / count);
+            out.put((byte) ',');
+            doubleFormat.put(out, table.calculateAverageTravelTime(row, hour));
+            out.put(lineEnd);
+        }
+        return out;
+    }
+
+    private interface ByteSink extends Closeable {
+
+        ByteBuffer buffer();
+
+        /**
+         * Writes the content of the buffer and returns an empty buffer to continue with.
+         */
+        ByteBuffer flush(ByteBuffer full) throws IOException;
+    }
+
+    private static class ChannelSink implements ByteSink {
+        private final FileOutputStream stream;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        ChannelSink(String filename) throws IOException {
+            this.stream = new FileOutputStream(filename);
+            this.channel = stream.getChannel();
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        @Override
+        public ByteBuffer flush(ByteBuffer full) throws IOException {
+            full.flip();
+            while (full.hasRemaining()) {
+                channel.write(full);
+            }
+            full.clear();
+            return full;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+
+    /**
+     * Hands filled buffers to a compressing thread and recycles them once they are compressed.
+     */
+    private static class GzipSink implements ByteSink {
+        private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+        private final OutputStream gzip;
+        private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(GZIP_BUFFERS);
+        private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(GZIP_BUFFERS);
+        private final byte[] chunk = new byte[1 << 16];
+        private final Thread compressor;
+        private volatile IOException failure;
+
+        GzipSink(String filename, boolean compressInBackground) throws IOException {
+            this.gzip = new GZIPOutputStream(new FileOutputStream(filename), 1 << 16);
+            for (int i = 0; i < GZIP_BUFFERS; i++) {
+                free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+            }
+            if (compressInBackground) {
+                compressor = new Thread(this::compress, "linkstats-gzip");
+                compressor.setDaemon(true);
+                compressor.start();
+            } else {
+                compressor = null;
+            }
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return free.poll();
+        }
+
+        @Override
+        public ByteBuffer flush(ByteBuffer full) throws IOException {
+            full.flip();
+            if (compressor == null) {
+                write(full);
+                return full;
+            }
+            try {
+                checkFailure();
+                filled.put(full);
+                ByteBuffer next = free.take();
+                checkFailure();
+                return next;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing", e);
+            }
+        }
+
+        private void compress() {
+            try {
+                ByteBuffer buffer;
+                while ((buffer = filled.take()) != END) {
+                    try {
+                        if (failure == null) {
+                            write(buffer);
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                    buffer.clear();
+                    free.put(buffer);
+                }
+            } catch (InterruptedException e) {
+                failure = new IOException("Interrupted while compressing", e);
+            }
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                int length = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, length);
+                gzip.write(chunk, 0, length);
+            }
+            buffer.clear();
+        }
+
+        private void checkFailure() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (compressor != null) {
+                    filled.put(END);
+                    compressor.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while closing", e);
+            } finally {
+                gzip.close();
+            }
+            checkFailure();
+        }
+    }
+}
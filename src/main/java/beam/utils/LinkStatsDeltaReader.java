@@ -0,0 +1,187 @@
+package beam.utils;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reconstructs the averaged link statistics of an iteration from the files of a {@link LinkStatsDeltaWriter}:
+ * the last base file at or before the iteration followed by all deltas up to it, applied in the order they were
+ * written. Every file is read sequentially in one pass, straight into primitive arrays.
+ */
+public class LinkStatsDeltaReader {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(LinkStatsDeltaWriter.BYTE_ORDER);
+    private LinkIndex linkIndex;
+    private int nofHours;
+    private int binSize;
+    private double[] volumes;
+    private double[] ttimes;
+    private int iteration = -1;
+    private InputStream in;
+
+    /**
+     * Reads the base and deltas, in the order they were written.
+     */
+    public static LinkStatsDeltaReader read(final List<String> filenames) throws IOException {
+        LinkStatsDeltaReader reader = new LinkStatsDeltaReader();
+        for (String filename : filenames) {
+            reader.apply(filename);
+        }
+        return reader;
+    }
+
+    /**
+     * Applies the next file: a base replaces all values, a delta has to follow the iteration read last.
+     */
+    public void apply(final String filename) throws IOException {
+        InputStream stream = new FileInputStream(filename);
+        try (InputStream in = filename.toLowerCase().endsWith(".gz") ? new GZIPInputStream(stream, 1 << 16) : stream) {
+            this.in = in;
+            buffer.clear().flip();
+            require(8 * Integer.BYTES, filename);
+            if (buffer.getInt() != LinkStatsDeltaWriter.MAGIC) {
+                throw new IOException("Not a link stats delta file: " + filename);
+            }
+            int version = buffer.getInt();
+            if (version != LinkStatsDeltaWriter.VERSION) {
+                throw new IOException("Unsupported link stats delta version " + version + " in " + filename);
+            }
+            int kind = buffer.getInt();
+            int fileIteration = buffer.getInt();
+            int previousIteration = buffer.getInt();
+            int nofLinks = buffer.getInt();
+            int fileNofHours = buffer.getInt();
+            int fileBinSize = buffer.getInt();
+            if (kind == LinkStatsDeltaWriter.BASE) {
+                readBase(filename, nofLinks, fileNofHours, fileBinSize);
+            } else {
+                if (volumes == null || previousIteration != iteration) {
+                    throw new IOException("Delta " + filename + " follows iteration " + previousIteration
+                            + ", but the last iteration read is " + iteration);
+                }
+                if (nofLinks != linkIndex.size() || fileNofHours != nofHours || fileBinSize != binSize) {
+                    throw new IOException("Delta " + filename + " does not match the base");
+                }
+                readDelta(filename);
+            }
+            iteration = fileIteration;
+        } finally {
+            this.in = null;
+        }
+    }
+
+    private void readBase(String filename, int nofLinks, int fileNofHours, int fileBinSize) throws IOException {
+        List<Id<Link>> linkIds = new ArrayList<>(nofLinks);
+        for (int index = 0; index < nofLinks; index++) {
+            require(Integer.BYTES, filename);
+            byte[] id = new byte[buffer.getInt()];
+            require(id.length, filename);
+            buffer.get(id);
+            linkIds.add(Id.create(new String(id, StandardCharsets.UTF_8), Link.class));
+        }
+        linkIndex = new LinkIndex(linkIds);
+        nofHours = fileNofHours;
+        binSize = fileBinSize;
+        int cells = nofLinks * nofHours;
+        if (volumes == null || volumes.length != cells) {
+            volumes = new double[cells];
+            ttimes = new double[cells];
+        }
+        for (int cell = 0; cell < cells; cell++) {
+            require(2 * Double.BYTES, filename);
+            volumes[cell] = buffer.getDouble();
+            ttimes[cell] = buffer.getDouble();
+        }
+    }
+
+    private void readDelta(String filename) throws IOException {
+        int cell;
+        while (true) {
+            require(Integer.BYTES, filename);
+            if ((cell = buffer.getInt()) == LinkStatsDeltaWriter.END_OF_CELLS) {
+                return;
+            }
+            if (cell < 0 || cell >= volumes.length) {
+                throw new IOException("Invalid cell " + cell + " in " + filename);
+            }
+            require(2 * Double.BYTES, filename);
+            volumes[cell] = buffer.getDouble();
+            ttimes[cell] = buffer.getDouble();
+        }
+    }
+
+    /**
+     * Makes sure the buffer holds at least the given number of bytes.
+     */
+    private void require(int bytes, String filename) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        if (bytes > buffer.capacity()) {
+            throw new IOException("Invalid record of " + bytes + " bytes in " + filename);
+        }
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+            if (read < 0) {
+                throw new IOException("Truncated link stats delta file: " + filename);
+            }
+            buffer.position(buffer.position() + read);
+        }
+        buffer.flip();
+    }
+
+    /**
+     * @return the iteration of the file applied last
+     */
+    public int getIteration() {
+        return iteration;
+    }
+
+    public LinkIndex getLinkIndex() {
+        return linkIndex;
+    }
+
+    public int getNofHours() {
+        return nofHours;
+    }
+
+    public int getBinSize() {
+        return binSize;
+    }
+
+    public double getVolume(int link, int hour) {
+        return volumes[link * nofHours + hour];
+    }
+
+    public double getTravelTime(int link, int hour) {
+        return ttimes[link * nofHours + hour];
+    }
+
+    public double getVolume(final Id<Link> linkId, int hour) {
+        return getVolume(indexOf(linkId), hour);
+    }
+
+    public double getTravelTime(final Id<Link> linkId, int hour) {
+        return getTravelTime(indexOf(linkId), hour);
+    }
+
+    private int indexOf(final Id<Link> linkId) {
+        int index = linkIndex.indexOf(linkId);
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown link " + linkId);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,176 @@
+package beam.utils;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the averaged link statistics of consecutive iterations as one full base file followed by deltas that only
+ * contain the link and hour cells whose volume or travel time moved by more than a tolerance since the value last
+ * written for that cell. {@link LinkStatsDeltaReader} reconstructs any iteration from the base and the deltas up to it.
+ * <p>
+ * Since the comparison is against the last written value rather than the previous iteration, slow drifts are written
+ * as soon as they add up to more than the tolerance, and the reconstructed values never deviate by more than the
+ * tolerance. A new base file is written every baseInterval files, which bounds the number of deltas to apply.
+ * <p>
+ * Layout, all numbers little endian, gzip compressed if the file name ends with .gz:
+ * <pre>
+ * int magic, int version, int kind (0 base, 1 delta), int iteration, int previous iteration (-1 for a base),
+ * int nofLinks, int nofHours, int binSize
+ * base:  nofLinks x (int length, utf-8 link id), then nofLinks * nofHours x (double volume, double traveltime)
+ * delta: n x (int cell, double volume, double traveltime), then int -1
+ * </pre>
+ * The cell of link i and hour h is i * nofHours + h; values are the ones {@link BeamCalcLinkStats#writeFile(String)}
+ * writes to the volume and traveltime columns.
+ */
+public class LinkStatsDeltaWriter {
+
+    static final int MAGIC = 0x54534C44; // "DLST"
+    static final int VERSION = 1;
+    static final int BASE = 0;
+    static final int DELTA = 1;
+    static final int END_OF_CELLS = -1;
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final LinkIndex linkIndex;
+    private final int nofHours;
+    private final int binSize;
+    private final double tolerance;
+    private final int baseInterval;
+    private final double[] writtenVolumes;
+    private final double[] writtenTTimes;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(BYTE_ORDER);
+    private int lastIteration = -1;
+    private int filesSinceBase = -1;
+
+    /**
+     * @param tolerance    absolute change of volume or travel time a cell needs to be part of a delta; 0 writes every change
+     * @param baseInterval write a full base every that many files, 0 to only write the first file as base
+     */
+    public LinkStatsDeltaWriter(final LinkIndex linkIndex, int nofHours, int binSize, double tolerance, int baseInterval) {
+        if (tolerance < 0) {
+            throw new IllegalArgumentException("tolerance must not be negative: " + tolerance);
+        }
+        if (baseInterval < 0) {
+            throw new IllegalArgumentException("baseInterval must not be negative: " + baseInterval);
+        }
+        this.linkIndex = linkIndex;
+        this.nofHours = nofHours;
+        this.binSize = binSize;
+        this.tolerance = tolerance;
+        this.baseInterval = baseInterval;
+        this.writtenVolumes = new double[linkIndex.size() * nofHours];
+        this.writtenTTimes = new double[linkIndex.size() * nofHours];
+    }
+
+    /**
+     * Writes the statistics of the iteration as base or delta, depending on the files written before. If writing
+     * fails, the next file is a base, as the values remembered for the cells may already be the ones of the lost file.
+     *
+     * @return whether a base was written
+     */
+    public boolean write(final String filename, final LinkStatsTable table, int count, int iteration) throws IOException {
+        boolean base = filesSinceBase < 0 || baseInterval > 0 && filesSinceBase + 1 >= baseInterval;
+        boolean written = false;
+        try {
+            try (OutputStream out = open(filename)) {
+                buffer.clear();
+                buffer.putInt(MAGIC).putInt(VERSION).putInt(base ? BASE : DELTA).putInt(iteration).putInt(base ? -1 : lastIteration)
+                        .putInt(linkIndex.size()).putInt(nofHours).putInt(binSize);
+                if (base) {
+                    writeBase(out, table, count);
+                } else {
+                    writeDelta(out, table, count);
+                }
+                flush(out);
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                reset();
+            }
+        }
+        lastIteration = iteration;
+        filesSinceBase = base ? 0 : filesSinceBase + 1;
+        return base;
+    }
+
+    /**
+     * Makes the next file a base, e.g. after the statistics were reset.
+     */
+    public void reset() {
+        filesSinceBase = -1;
+        lastIteration = -1;
+    }
+
+    private void writeBase(OutputStream out, LinkStatsTable table, int count) throws IOException {
+        for (int index = 0; index < linkIndex.size(); index++) {
+            byte[] id = linkIndex.getLinkId(index).toString().getBytes(StandardCharsets.UTF_8);
+            if (buffer.remaining() < Integer.BYTES + id.length) {
+                flush(out);
+            }
+            buffer.putInt(id.length).put(id);
+        }
+        for (int index = 0, cell = 0; index < linkIndex.size(); index++) {
+            for (int hour = 0; hour < nofHours; hour++, cell++) {
+                if (buffer.remaining() < 2 * Double.BYTES) {
+                    flush(out);
+                }
+                double volume = table.getSumVolume(index, hour) / count;
+                double ttime = table.calculateAverageTravelTime(index, hour);
+                buffer.putDouble(volume).putDouble(ttime);
+                writtenVolumes[cell] = volume;
+                writtenTTimes[cell] = ttime;
+            }
+        }
+    }
+
+    private void writeDelta(OutputStream out, LinkStatsTable table, int count) throws IOException {
+        for (int index = 0, cell = 0; index < linkIndex.size(); index++) {
+            for (int hour = 0; hour < nofHours; hour++, cell++) {
+                double volume = table.getSumVolume(index, hour) / count;
+                double ttime = table.calculateAverageTravelTime(index, hour);
+                if (changed(writtenVolumes[cell], volume) || changed(writtenTTimes[cell], ttime)) {
+                    if (buffer.remaining() < Integer.BYTES + 2 * Double.BYTES) {
+                        flush(out);
+                    }
+                    buffer.putInt(cell).putDouble(volume).putDouble(ttime);
+                    writtenVolumes[cell] = volume;
+                    writtenTTimes[cell] = ttime;
+                }
+            }
+        }
+        if (buffer.remaining() < Integer.BYTES) {
+            flush(out);
+        }
+        buffer.putInt(END_OF_CELLS);
+    }
+
+    private boolean changed(double written, double value) {
+        // compare bit patterns for a zero tolerance, so that NaN or -0.0 are not lost
+        return tolerance == 0 ? Double.doubleToLongBits(written) != Double.doubleToLongBits(value) : !(Math.abs(value - written) <= tolerance);
+    }
+
+    OutputStream open(String filename) throws IOException {
+        OutputStream out = new FileOutputStream(filename);
+        return filename.toLowerCase().endsWith(".gz") ? new GZIPOutputStream(out, 1 << 16) : out;
+    }
+
+    private void flush(OutputStream out) throws IOException {
+        out.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    public int getBaseInterval() {
+        return baseInterval;
+    }
+}
@@ -0,0 +1,17 @@
+package beam.utils;
+
+/**
+ * Read access to accumulated link statistics, either held in memory or memory-mapped from a file.
+ */
+interface LinkStatsSource {
+
+    int getNofHours();
+
+    double getMinVolume(int link, int hour);
+
+    double getSumVolume(int link, int hour);
+
+    double getMinTravelTime(int link, int hour);
+
+    double getSumTravelTime(int link, int hour);
+}
@@ -0,0 +1,321 @@
+package beam.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * Struct-of-arrays storage for the link statistics collected by {@link BeamCalcLinkStats}.
+ * Every statistic is one flat column addressed by dense link index and hour, so a network of a million links
+ * costs four primitive arrays instead of a million small objects. The columns are either plain heap arrays
+ * or, for very large networks, direct buffers that live outside of the garbage collected heap.
+ * <p>
+ * Volumes have one extra slot per link (index nofHours) holding the daily value.
+ * <p>
+ * A sparse table only stores rows for links that were explicitly allocated with {@link #allocate(int, boolean)},
+ * typically the links that saw any volume. Links without a row read as zero volume with the free flow travel time
+ * of the given {@link FreeFlowTravelTime} as minimum. Allocating rows may grow the columns and must not happen
+ * concurrently with any other access.
+ */
+public class LinkStatsTable implements LinkStatsSource {
+
+    private static final int MIN_SPARSE_CAPACITY = 1024;
+
+    private final int nofLinks;
+    private final int nofHours;
+    private final boolean offHeap;
+    private final FreeFlowTravelTime freeFlowTravelTime;
+    private final int[] rowOf;
+    private int[] rowLinks;
+    private int nofRows;
+    private DoubleBuffer minVolumes;
+    private DoubleBuffer sumVolumes;
+    private DoubleBuffer minTTimes;
+    private DoubleBuffer sumTTimes;
+
+    /**
+     * Travel time of an unused link, reported for links without a row in a sparse table.
+     */
+    public interface FreeFlowTravelTime {
+        double get(int link, int hour);
+    }
+
+    public LinkStatsTable(int nofLinks, int nofHours, boolean offHeap) {
+        this.nofLinks = nofLinks;
+        this.nofHours = nofHours;
+        this.offHeap = offHeap;
+        this.freeFlowTravelTime = null;
+        this.rowOf = null;
+        this.nofRows = nofLinks;
+        allocateColumns(nofLinks);
+    }
+
+    /**
+     * Creates a sparse table, see the class comment.
+     */
+    public LinkStatsTable(int nofLinks, int nofHours, boolean offHeap, final FreeFlowTravelTime freeFlowTravelTime) {
+        this.nofLinks = nofLinks;
+        this.nofHours = nofHours;
+        this.offHeap = offHeap;
+        this.freeFlowTravelTime = freeFlowTravelTime;
+        this.rowOf = new int[nofLinks];
+        Arrays.fill(rowOf, -1);
+        int capacity = Math.min(nofLinks, Math.max(MIN_SPARSE_CAPACITY, nofLinks / 16));
+        this.rowLinks = new int[capacity];
+        this.nofRows = 0;
+        allocateColumns(capacity);
+    }
+
+    private void allocateColumns(int capacity) {
+        this.minVolumes = allocate(capacity, nofHours + 1, offHeap);
+        this.sumVolumes = allocate(capacity, nofHours + 1, offHeap);
+        this.minTTimes = allocate(capacity, nofHours, offHeap);
+        this.sumTTimes = allocate(capacity, nofHours, offHeap);
+    }
+
+    private static DoubleBuffer allocate(int nofLinks, int width, boolean offHeap) {
+        long size = (long) nofLinks * width;
+        if (offHeap) {
+            if (size * Double.BYTES > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many links for off-heap storage: " + nofLinks);
+            }
+            return ByteBuffer.allocateDirect((int) size * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many links for heap storage: " + nofLinks);
+        }
+        return DoubleBuffer.wrap(new double[(int) size]);
+    }
+
+    /**
+     * Zeroes all columns in place. A sparse table releases its rows but keeps the storage for reuse.
+     */
+    public void clear() {
+        if (rowOf != null) {
+            for (int row = 0; row < nofRows; row++) {
+                rowOf[rowLinks[row]] = -1;
+            }
+            nofRows = 0;
+            return;
+        }
+        clear(minVolumes);
+        clear(sumVolumes);
+        clear(minTTimes);
+        clear(sumTTimes);
+    }
+
+    private static void clear(DoubleBuffer column) {
+        if (column.hasArray()) {
+            Arrays.fill(column.array(), 0.0);
+        } else {
+            for (int i = 0; i < column.capacity(); i++) {
+                column.put(i, 0.0);
+            }
+        }
+    }
+
+    /**
+     * Makes sure a sparse table has a row for the link. A new row starts with zero volumes and, unless it is created
+     * in the first iteration, with the free flow travel time as minimum, as the link had no volume in all previous
+     * iterations. Does nothing for dense tables.
+     *
+     * @param firstIteration whether the row is created in the first iteration since the last {@link #clear()}
+     */
+    public void allocate(int link, boolean firstIteration) {
+        if (rowOf == null || rowOf[link] >= 0) {
+            return;
+        }
+        if (nofRows == rowLinks.length) {
+            grow(Math.min(nofLinks, nofRows + (nofRows >> 1) + 1));
+        }
+        int row = nofRows++;
+        rowOf[link] = row;
+        rowLinks[row] = link;
+        for (int hour = 0; hour <= nofHours; hour++) {
+            minVolumes.put(row * (nofHours + 1) + hour, 0.0);
+            sumVolumes.put(row * (nofHours + 1) + hour, 0.0);
+        }
+        for (int hour = 0; hour < nofHours; hour++) {
+            minTTimes.put(row * nofHours + hour, firstIteration ? 0.0 : freeFlowTravelTime.get(link, hour));
+            sumTTimes.put(row * nofHours + hour, 0.0);
+        }
+    }
+
+    private void grow(int capacity) {
+        rowLinks = Arrays.copyOf(rowLinks, capacity);
+        DoubleBuffer oldMinVolumes = minVolumes;
+        DoubleBuffer oldSumVolumes = sumVolumes;
+        DoubleBuffer oldMinTTimes = minTTimes;
+        DoubleBuffer oldSumTTimes = sumTTimes;
+        allocateColumns(capacity);
+        copy(oldMinVolumes, minVolumes);
+        copy(oldSumVolumes, sumVolumes);
+        copy(oldMinTTimes, minTTimes);
+        copy(oldSumTTimes, sumTTimes);
+    }
+
+    private static void copy(DoubleBuffer from, DoubleBuffer to) {
+        DoubleBuffer source = from.duplicate();
+        source.clear();
+        DoubleBuffer target = to.duplicate();
+        target.clear();
+        target.put(source);
+    }
+
+    public int getNofLinks() {
+        return nofLinks;
+    }
+
+    @Override
+    public int getNofHours() {
+        return nofHours;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    public boolean isSparse() {
+        return rowOf != null;
+    }
+
+    /**
+     * @return the number of links with a row, which are all links for a dense table
+     */
+    public int getNofRows() {
+        return nofRows;
+    }
+
+    /**
+     * @return the link stored in the given row
+     */
+    public int getRowLink(int row) {
+        return rowOf == null ? row : rowLinks[row];
+    }
+
+    public boolean hasRow(int link) {
+        return rowOf == null || rowOf[link] >= 0;
+    }
+
+    private int rowOf(int link) {
+        if (rowOf == null) {
+            return link;
+        }
+        return rowOf[link];
+    }
+
+    private int requireRow(int link) {
+        int row = rowOf(link);
+        if (row < 0) {
+            throw new IllegalStateException("No row allocated for link " + link);
+        }
+        return row;
+    }
+
+    @Override
+    public double getMinVolume(int link, int hour) {
+        int row = rowOf(link);
+        return row < 0 ? 0.0 : minVolumes.get(row * (nofHours + 1) + hour);
+    }
+
+    public void setMinVolume(int link, int hour, double value) {
+        minVolumes.put(requireRow(link) * (nofHours + 1) + hour, value);
+    }
+
+    @Override
+    public double getSumVolume(int link, int hour) {
+        int row = rowOf(link);
+        return row < 0 ? 0.0 : sumVolumes.get(row * (nofHours + 1) + hour);
+    }
+
+    public void setSumVolume(int link, int hour, double value) {
+        sumVolumes.put(requireRow(link) * (nofHours + 1) + hour, value);
+    }
+
+    @Override
+    public double getMinTravelTime(int link, int hour) {
+        int row = rowOf(link);
+        return row < 0 ? freeFlowTravelTime.get(link, hour) : minTTimes.get(row * nofHours + hour);
+    }
+
+    public void setMinTravelTime(int link, int hour, double value) {
+        minTTimes.put(requireRow(link) * nofHours + hour, value);
+    }
+
+    @Override
+    public double getSumTravelTime(int link, int hour) {
+        int row = rowOf(link);
+        return row < 0 ? 0.0 : sumTTimes.get(row * nofHours + hour);
+    }
+
+    public void setSumTravelTime(int link, int hour, double value) {
+        sumTTimes.put(requireRow(link) * nofHours + hour, value);
+    }
+
+    /**
+     * Folds the hourly volumes and travel times of one iteration of one link into the statistics.
+     *
+     * @param firstIteration whether this is the first iteration since the last {@link #clear()}, which initializes the minima
+     */
+    public void accumulate(int link, double[] volumes, int volumesOffset, double[] ttimes, int ttimesOffset, boolean firstIteration) {
+        // prepare the sum variables (for volumes);
+        long sumVolumes = 0; // daily (0-24) sum
+
+        // go through all hours:
+        for (int hour = 0; hour < nofHours; hour++) {
+            double volume = volumes[volumesOffset + hour];
+            double ttime = ttimes[ttimesOffset + hour];
+
+            // add for daily sum:
+            sumVolumes += volume;
+
+            // the following has something to do with the fact that we are doing this for multiple iterations.  So there are variations.
+            // this collects min and max.  There is, however, no good control over how many iterations this is collected.
+            if (firstIteration) {
+                setMinVolume(link, hour, volume);
+                setMinTravelTime(link, hour, ttime);
+            } else {
+                if (volume < getMinVolume(link, hour)) setMinVolume(link, hour, volume);
+                if (ttime < getMinTravelTime(link, hour)) setMinTravelTime(link, hour, ttime);
+            }
+
+            // this is the regular summing up for each hour
+            setSumVolume(link, hour, getSumVolume(link, hour) + volume);
+            setSumTravelTime(link, hour, getSumTravelTime(link, hour) + volume * ttime);
+        }
+        // volumes at hour nofHours are daily (0-24) values
+        if (firstIteration) {
+            setMinVolume(link, nofHours, sumVolumes);
+            setSumVolume(link, nofHours, sumVolumes);
+        } else {
+            if (sumVolumes < getMinVolume(link, nofHours)) setMinVolume(link, nofHours, sumVolumes);
+            setSumVolume(link, nofHours, getSumVolume(link, nofHours) + sumVolumes);
+        }
+    }
+
+    public double calculateAverageTravelTime(int link, int hour) {
+        return calculateAverageTravelTime(getMinTravelTime(link, hour), getSumTravelTime(link, hour), getSumVolume(link, hour));
+    }
+
+    /**
+     * Volume weighted average travel time of one link and hour, see {@link BeamCalcLinkStats.LinkData#calculateAverageTravelTime(int)}.
+     */
+    public static double calculateAverageTravelTime(double ttimesMin, double ttsum, double volumesSum) {
+        if (volumesSum == 0) {
+            // nobody traveled along the link in this hour, so we cannot calculate an average
+            // use the value available or the minimum instead (min and max should be the same, =freespeed)
+            if (ttsum != 0.0) {
+                return ttsum;
+            } else {
+                return ttimesMin;
+            }
+        } else {
+            if (ttsum == 0) {
+                return ttimesMin;
+            } else {
+                return ttsum / volumesSum;
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package beam.utils;
+
+/**
+ * Lightweight instrumentation of the utilities: counters, byte counts and timers identified by name, e.g.
+ * {@code linkstats.rowsWritten}. Components use {@link #NOOP} unless a recording implementation like
+ * {@link RecordingMetrics} is set, so the instrumentation costs next to nothing by default.
+ * <p>
+ * Implementations have to be thread-safe.
+ */
+public interface Metrics {
+
+    Metrics NOOP = new Metrics() {
+        @Override
+        public void increment(String counter, long delta) {
+        }
+
+        @Override
+        public void addBytes(String name, long bytes) {
+        }
+
+        @Override
+        public void recordNanos(String timer, long nanos) {
+        }
+    };
+
+    void increment(String counter, long delta);
+
+    void addBytes(String name, long bytes);
+
+    /**
+     * Records one measurement of the timer, typically the wall time of one phase.
+     */
+    void recordNanos(String timer, long nanos);
+
+    /**
+     * Convenience for the common case of timing a phase: {@code long start = System.nanoTime(); ...;
+     * metrics.recordSince("phase", start)}.
+     */
+    default void recordSince(String timer, long startNanos) {
+        recordNanos(timer, System.nanoTime() - startNanos);
+    }
+}
@@ -0,0 +1,392 @@
+package beam.utils;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary snapshot of a network, to skip building it from OSM or parsing the network XML on every start.
+ * <p>
+ * Besides the nodes and the standard link fields, a snapshot keeps the link attributes set by
+ * {@link beam.router.r5.OsmToMATSim#createLink}: origid, type, alpha, beta and hgv; other attributes are not kept.
+ * Every snapshot holds a checksum of the files the network was built from and one of the configuration it was built
+ * with, e.g. the highway defaults, BPR parameters and builder settings, so that a snapshot of outdated sources or
+ * another configuration is detected and rebuilt by {@link #loadOrBuild}, and a CRC32 of its own content that is
+ * verified before loading.
+ * <p>
+ * Layout, all numbers little endian, strings as int byte length (-1 for null) followed by the utf-8 bytes:
+ * <pre>
+ * int magic, int version, long source checksum, long configuration checksum, long payload length, long payload crc32
+ * double capacity period
+ * int n, n x (int m, m x string mode): the distinct sets of allowed modes
+ * int n, n x string type: the distinct link types
+ * int nofNodes, nofNodes x (string id, double x, double y)
+ * int nofLinks, nofLinks x (string id, int from node, int to node, double length, double freespeed, double capacity,
+ *     double lanes, int modes, int type (-1 none), string origid, double alpha, double beta (NaN none), byte hgv (-1 none))
+ * </pre>
+ */
+public class NetworkSnapshot {
+
+    private final static Logger log = LoggerFactory.getLogger(NetworkSnapshot.class);
+
+    static final int MAGIC = 0x504E534E; // "NSNP"
+    static final int VERSION = 2;
+    private static final int HEADER_BYTES = 2 * Integer.BYTES + 4 * Long.BYTES;
+    private static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+    private static final int BUFFER_SIZE = 1 << 20;
+    // mapped at once, remapped when the reader gets to the end
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private NetworkSnapshot() {
+    }
+
+    /**
+     * Loads the network from the snapshot if it exists and was written for the current content of the source files
+     * and the configuration, otherwise builds it and writes a new snapshot.
+     *
+     * @param configurationChecksum checksum of everything besides the source files that the built network depends on,
+     *                              e.g. {@link beam.router.r5.OsmToMATSim#getConfigurationChecksum} combined with the
+     *                              other settings of the builder by {@link #settingsChecksum}
+     */
+    public static Network loadOrBuild(final String snapshotFilename, final List<String> sourceFilenames,
+                                      long configurationChecksum, final Supplier<Network> builder) throws IOException {
+        long sourceChecksum = checksum(sourceFilenames);
+        if (new File(snapshotFilename).isFile()) {
+            Network network = NetworkUtils.createNetwork();
+            long start = System.currentTimeMillis();
+            try {
+                if (read(snapshotFilename, sourceChecksum, configurationChecksum, network)) {
+                    log.info("Loaded {} links from network snapshot {} in {} ms", network.getLinks().size(),
+                            snapshotFilename, System.currentTimeMillis() - start);
+                    return network;
+                }
+                log.info("Network snapshot {} is outdated, rebuilding it", snapshotFilename);
+            } catch (IOException e) {
+                log.warn("Could not read network snapshot " + snapshotFilename + ", rebuilding it", e);
+            }
+        }
+        Network network = builder.get();
+        write(network, sourceChecksum, configurationChecksum, snapshotFilename);
+        return network;
+    }
+
+    /**
+     * @return a checksum of the names, lengths and contents of the files
+     */
+    public static long checksum(final List<String> filenames) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long checksum = filenames.size();
+        for (String filename : filenames) {
+            crc.reset();
+            try (InputStream in = new FileInputStream(filename)) {
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    crc.update(buffer, 0, read);
+                }
+            }
+            checksum = 31 * checksum + new File(filename).getName().hashCode();
+            checksum = 31 * checksum + new File(filename).length();
+            checksum = 31 * checksum + crc.getValue();
+        }
+        return checksum;
+    }
+
+    /**
+     * @return a checksum of the string forms of the settings, which therefore have to be deterministic, like the ones
+     * of numbers, strings, enums and lists of them
+     */
+    public static long settingsChecksum(final Object... settings) {
+        long checksum = settings.length;
+        for (Object setting : settings) {
+            checksum = 31 * checksum + String.valueOf(setting).hashCode();
+        }
+        return checksum;
+    }
+
+    public static void write(final Network network, long sourceChecksum, long configurationChecksum,
+                             final String filename) throws IOException {
+        Map<Set<String>, Integer> modeSets = new HashMap<>();
+        List<Set<String>> modeSetList = new ArrayList<>();
+        Map<String, Integer> types = new HashMap<>();
+        List<String> typeList = new ArrayList<>();
+        for (Link link : network.getLinks().values()) {
+            Set<String> modes = link.getAllowedModes();
+            if (!modeSets.containsKey(modes)) {
+                modeSets.put(modes, modeSetList.size());
+                modeSetList.add(modes);
+            }
+            String type = NetworkUtils.getType(link);
+            if (type != null && !types.containsKey(type)) {
+                types.put(type, typeList.size());
+                typeList.add(type);
+            }
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(filename, "rw"); FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            Output out = new Output(channel);
+            out.buffer.position(HEADER_BYTES);
+            out.flush();
+            out.require(Double.BYTES).putDouble(network.getCapacityPeriod());
+            out.require(Integer.BYTES).putInt(modeSetList.size());
+            for (Set<String> modes : modeSetList) {
+                out.require(Integer.BYTES).putInt(modes.size());
+                // sorted, so that the file does not depend on the set implementation
+                for (String mode : new TreeSet<>(modes)) {
+                    out.putString(mode);
+                }
+            }
+            out.require(Integer.BYTES).putInt(typeList.size());
+            for (String type : typeList) {
+                out.putString(type);
+            }
+
+            Map<Id<Node>, Integer> nodeIndices = new HashMap<>();
+            out.require(Integer.BYTES).putInt(network.getNodes().size());
+            for (Node node : network.getNodes().values()) {
+                nodeIndices.put(node.getId(), nodeIndices.size());
+                out.putString(node.getId().toString());
+                out.require(2 * Double.BYTES).putDouble(node.getCoord().getX()).putDouble(node.getCoord().getY());
+            }
+
+            out.require(Integer.BYTES).putInt(network.getLinks().size());
+            for (Link link : network.getLinks().values()) {
+                out.putString(link.getId().toString());
+                String type = NetworkUtils.getType(link);
+                out.require(2 * Integer.BYTES + 4 * Double.BYTES + 2 * Integer.BYTES)
+                        .putInt(nodeIndices.get(link.getFromNode().getId()))
+                        .putInt(nodeIndices.get(link.getToNode().getId()))
+                        .putDouble(link.getLength())
+                        .putDouble(link.getFreespeed())
+                        .putDouble(link.getCapacity())
+                        .putDouble(link.getNumberOfLanes())
+                        .putInt(modeSets.get(link.getAllowedModes()))
+                        .putInt(type == null ? -1 : types.get(type));
+                out.putString(NetworkUtils.getOrigId(link));
+                Object hgv = link.getAttributes().getAttribute("hgv");
+                out.require(2 * Double.BYTES + 1)
+                        .putDouble(toDouble(link.getAttributes().getAttribute("alpha")))
+                        .putDouble(toDouble(link.getAttributes().getAttribute("beta")))
+                        .put(hgv instanceof Boolean ? (byte) ((Boolean) hgv ? 1 : 0) : -1);
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(BYTE_ORDER);
+            header.putInt(MAGIC).putInt(VERSION).putLong(sourceChecksum).putLong(configurationChecksum)
+                    .putLong(out.length - HEADER_BYTES).putLong(out.crc.getValue());
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+    }
+
+    /**
+     * Adds the nodes and links of the snapshot to the network, unless the snapshot was written for other sources or
+     * another configuration.
+     *
+     * @return whether the snapshot matched the source and configuration checksums and was loaded
+     * @throws IOException if the snapshot is not readable or corrupt
+     */
+    public static boolean read(final String filename, long sourceChecksum, long configurationChecksum,
+                               final Network network) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(filename, "r"); FileChannel channel = raf.getChannel()) {
+            Input in = new Input(channel, filename);
+            ByteBuffer header = in.require(HEADER_BYTES);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a network snapshot: " + filename);
+            }
+            if (header.getInt() != VERSION || header.getLong() != sourceChecksum || header.getLong() != configurationChecksum) {
+                return false;
+            }
+            long payloadLength = header.getLong();
+            long payloadCrc = header.getLong();
+            if (payloadLength != channel.size() - HEADER_BYTES || in.crc(HEADER_BYTES, payloadLength) != payloadCrc) {
+                throw new IOException("Corrupt network snapshot: " + filename);
+            }
+
+            NetworkFactory factory = network.getFactory();
+            network.setCapacityPeriod(in.require(Double.BYTES).getDouble());
+            List<Set<String>> modeSets = new ArrayList<>();
+            for (int i = in.require(Integer.BYTES).getInt(); i > 0; i--) {
+                Set<String> modes = new LinkedHashSet<>();
+                for (int j = in.require(Integer.BYTES).getInt(); j > 0; j--) {
+                    modes.add(in.getString());
+                }
+                // one instance per distinct set, shared by its links
+                modeSets.add(Collections.unmodifiableSet(modes));
+            }
+            List<String> types = new ArrayList<>();
+            for (int i = in.require(Integer.BYTES).getInt(); i > 0; i--) {
+                types.add(in.getString());
+            }
+
+            Node[] nodes = new Node[in.require(Integer.BYTES).getInt()];
+            for (int i = 0; i < nodes.length; i++) {
+                Id<Node> id = Id.createNodeId(in.getString());
+                ByteBuffer buffer = in.require(2 * Double.BYTES);
+                nodes[i] = factory.createNode(id, new Coord(buffer.getDouble(), buffer.getDouble()));
+                network.addNode(nodes[i]);
+            }
+
+            for (int i = in.require(Integer.BYTES).getInt(); i > 0; i--) {
+                Id<Link> id = Id.createLinkId(in.getString());
+                ByteBuffer buffer = in.require(2 * Integer.BYTES + 4 * Double.BYTES + 2 * Integer.BYTES);
+                Link link = factory.createLink(id, nodes[buffer.getInt()], nodes[buffer.getInt()]);
+                link.setLength(buffer.getDouble());
+                link.setFreespeed(buffer.getDouble());
+                link.setCapacity(buffer.getDouble());
+                link.setNumberOfLanes(buffer.getDouble());
+                link.setAllowedModes(modeSets.get(buffer.getInt()));
+                int type = buffer.getInt();
+                if (type >= 0) {
+                    NetworkUtils.setType(link, types.get(type));
+                }
+                String origId = in.getString();
+                if (origId != null) {
+                    NetworkUtils.setOrigId(link, origId);
+                }
+                buffer = in.require(2 * Double.BYTES + 1);
+                double alpha = buffer.getDouble();
+                double beta = buffer.getDouble();
+                byte hgv = buffer.get();
+                if (!Double.isNaN(alpha)) {
+                    link.getAttributes().putAttribute("alpha", alpha);
+                }
+                if (!Double.isNaN(beta)) {
+                    link.getAttributes().putAttribute("beta", beta);
+                }
+                if (hgv >= 0) {
+                    link.getAttributes().putAttribute("hgv", hgv == 1);
+                }
+                network.addLink(link);
+            }
+            return true;
+        }
+    }
+
+    private static double toDouble(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+    }
+
+    /**
+     * Buffered channel output that keeps the crc of everything written after the header.
+     */
+    private static final class Output {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(BYTE_ORDER);
+        final CRC32 crc = new CRC32();
+        long length;
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        ByteBuffer require(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+            return buffer;
+        }
+
+        void putString(String value) throws IOException {
+            if (value == null) {
+                require(Integer.BYTES).putInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > BUFFER_SIZE - Integer.BYTES) {
+                throw new IOException("String of " + bytes.length + " bytes is too long for a network snapshot");
+            }
+            require(Integer.BYTES + bytes.length).putInt(bytes.length).put(bytes);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            // the header is written last and not part of the crc
+            int from = length == 0 ? HEADER_BYTES : 0;
+            crc.update(buffer.array(), from, buffer.limit() - from);
+            length += buffer.limit();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Sequential reader over windows of the mapped file.
+     */
+    private static final class Input {
+        final FileChannel channel;
+        final String filename;
+        final long size;
+        byte[] scratch = new byte[256];
+        ByteBuffer window = ByteBuffer.allocate(0);
+        long windowStart;
+
+        Input(FileChannel channel, String filename) throws IOException {
+            this.channel = channel;
+            this.filename = filename;
+            this.size = channel.size();
+        }
+
+        ByteBuffer require(int bytes) throws IOException {
+            if (window.remaining() < bytes) {
+                windowStart += window.position();
+                if (size - windowStart < bytes) {
+                    throw new IOException("Truncated network snapshot: " + filename);
+                }
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, size - windowStart)).order(BYTE_ORDER);
+            }
+            return window;
+        }
+
+        String getString() throws IOException {
+            int length = require(Integer.BYTES).getInt();
+            if (length < 0) {
+                return null;
+            }
+            if (length > scratch.length) {
+                scratch = new byte[Math.max(length, 2 * scratch.length)];
+            }
+            require(length).get(scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        long crc(long from, long length) throws IOException {
+            CRC32 crc = new CRC32();
+            for (long position = from; position < from + length; position += WINDOW_SIZE) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, from + length - position)));
+            }
+            return crc.getValue();
+        }
+    }
+}
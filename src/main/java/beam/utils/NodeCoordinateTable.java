@@ -0,0 +1,263 @@
+package beam.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Open addressing hash table from OSM node ids to coordinates, without any object per node.
+ * <p>
+ * A slot takes 16 bytes: the long id, and latitude and longitude as int with the 1e-7 degree precision OSM stores
+ * them in. The slots live in fixed size segments that are either heap buffers or, given a directory, memory mapped
+ * from a temporary file, so that even the nodes of large regions do not need to fit into the heap. Every slot also
+ * has a used bit, so that a consumer can tell which nodes it referenced without a second set, and a reference count
+ * that saturates at two, so that it can tell which nodes are shared, e.g. by several ways.
+ * <p>
+ * Node id 0, which OSM never assigns, is used to mark empty slots and cannot be stored. Not thread safe.
+ */
+public class NodeCoordinateTable implements Closeable {
+
+    private static final int SLOT_BYTES = 16;
+    private static final int SEGMENT_SHIFT = 22;
+    private static final int SEGMENT_SLOTS = 1 << SEGMENT_SHIFT;
+    private static final double MAX_LOAD = 0.7;
+    private static final double FIXED_PRECISION = 1e7;
+
+    private final File directory;
+    private File file;
+    private ByteBuffer[] segments;
+    private long[] used;
+    private long[] referenced;
+    private long[] shared;
+    private long mask;
+    private long size;
+
+    /**
+     * Keeps the table on the heap.
+     */
+    public NodeCoordinateTable(long expectedNodes) {
+        this(expectedNodes, null);
+    }
+
+    /**
+     * @param directory directory of the temporary file the table is mapped from, null to keep it on the heap
+     */
+    public NodeCoordinateTable(long expectedNodes, final File directory) {
+        this.directory = directory;
+        long capacity = Long.highestOneBit(Math.max(16, (long) (expectedNodes / MAX_LOAD)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * Stores the coordinates of the node, replacing the ones stored before.
+     */
+    public void put(long id, double lat, double lon) {
+        if (id == 0) {
+            throw new IllegalArgumentException("Node id 0 cannot be stored");
+        }
+        if (size + 1 > MAX_LOAD * (mask + 1)) {
+            grow();
+        }
+        long slot = probe(id);
+        ByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        if (segment.getLong(offset) == 0) {
+            segment.putLong(offset, id);
+            size++;
+        }
+        segment.putInt(offset + Long.BYTES, toFixed(lat));
+        segment.putInt(offset + Long.BYTES + Integer.BYTES, toFixed(lon));
+    }
+
+    /**
+     * @return the slot of the node, to pass to the getters, or -1 if it is not stored
+     */
+    public long indexOf(long id) {
+        if (id == 0) {
+            return -1;
+        }
+        long slot = probe(id);
+        return segment(slot).getLong(offset(slot)) == 0 ? -1 : slot;
+    }
+
+    public double getLat(long slot) {
+        return segment(slot).getInt(offset(slot) + Long.BYTES) / FIXED_PRECISION;
+    }
+
+    public double getLon(long slot) {
+        return segment(slot).getInt(offset(slot) + Long.BYTES + Integer.BYTES) / FIXED_PRECISION;
+    }
+
+    /**
+     * Marks the node in the slot as used. Slots change when the table grows, so marks should only be set once all
+     * nodes are stored; they are kept when it grows nevertheless.
+     *
+     * @return whether the node was not marked before
+     */
+    public boolean markUsed(long slot) {
+        return set(used, slot);
+    }
+
+    /**
+     * Counts a reference to the node in the slot, up to two. Like marks, references should only be counted once all
+     * nodes are stored.
+     */
+    public void addReference(long slot) {
+        if (!set(referenced, slot)) {
+            set(shared, slot);
+        }
+    }
+
+    /**
+     * Counts the node in the slot as shared right away, e.g. because it ends a way.
+     */
+    public void markShared(long slot) {
+        set(referenced, slot);
+        set(shared, slot);
+    }
+
+    /**
+     * @return whether the node in the slot was referenced at least twice or marked as shared
+     */
+    public boolean isShared(long slot) {
+        return isSet(shared, slot);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Releases the temporary file, if any. The table must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        segments = null;
+        used = null;
+        referenced = null;
+        shared = null;
+        if (file != null) {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+            file = null;
+        }
+    }
+
+    private long probe(long id) {
+        long slot = mix(id) & mask;
+        while (true) {
+            long key = segment(slot).getLong(offset(slot));
+            if (key == id || key == 0) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void grow() {
+        ByteBuffer[] oldSegments = segments;
+        long[] oldUsed = used;
+        long[] oldReferenced = referenced;
+        long[] oldShared = shared;
+        long oldCapacity = mask + 1;
+        File oldFile = file;
+        allocate(oldCapacity << 1);
+        for (long oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+            ByteBuffer oldSegment = oldSegments[(int) (oldSlot >>> SEGMENT_SHIFT)];
+            int oldOffset = (int) (oldSlot & (SEGMENT_SLOTS - 1)) * SLOT_BYTES;
+            long id = oldSegment.getLong(oldOffset);
+            if (id != 0) {
+                long slot = probe(id);
+                ByteBuffer segment = segment(slot);
+                int offset = offset(slot);
+                segment.putLong(offset, id);
+                segment.putLong(offset + Long.BYTES, oldSegment.getLong(oldOffset + Long.BYTES));
+                if (isSet(oldUsed, oldSlot)) {
+                    set(used, slot);
+                }
+                if (isSet(oldReferenced, oldSlot)) {
+                    set(referenced, slot);
+                }
+                if (isSet(oldShared, oldSlot)) {
+                    set(shared, slot);
+                }
+            }
+        }
+        if (oldFile != null && !oldFile.delete()) {
+            // still mapped on some platforms until the buffers are collected
+            oldFile.deleteOnExit();
+        }
+    }
+
+    private void allocate(long capacity) {
+        mask = capacity - 1;
+        int segmentSlots = (int) Math.min(capacity, SEGMENT_SLOTS);
+        segments = new ByteBuffer[(int) (capacity / segmentSlots)];
+        used = new long[(int) Math.max(1, capacity >>> 6)];
+        referenced = new long[used.length];
+        shared = new long[used.length];
+        if (directory == null) {
+            file = null;
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = ByteBuffer.allocate(segmentSlots * SLOT_BYTES).order(ByteOrder.nativeOrder());
+            }
+            return;
+        }
+        try {
+            file = File.createTempFile("nodes", ".bin", directory);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+                long segmentBytes = (long) segmentSlots * SLOT_BYTES;
+                raf.setLength(segments.length * segmentBytes);
+                for (int i = 0; i < segments.length; i++) {
+                    // the mapping stays valid after the channel is closed
+                    segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * segmentBytes, segmentBytes).order(ByteOrder.nativeOrder());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not map node table in " + directory, e);
+        }
+    }
+
+    /**
+     * @return whether the bit was not set before
+     */
+    private static boolean set(long[] bits, long slot) {
+        long bit = 1L << slot;
+        int word = (int) (slot >>> 6);
+        if ((bits[word] & bit) != 0) {
+            return false;
+        }
+        bits[word] |= bit;
+        return true;
+    }
+
+    private static boolean isSet(long[] bits, long slot) {
+        return (bits[(int) (slot >>> 6)] & (1L << slot)) != 0;
+    }
+
+    private ByteBuffer segment(long slot) {
+        return segments[(int) (slot >>> SEGMENT_SHIFT)];
+    }
+
+    private static int offset(long slot) {
+        return (int) (slot & (SEGMENT_SLOTS - 1)) * SLOT_BYTES;
+    }
+
+    private static int toFixed(double degrees) {
+        return (int) Math.round(degrees * FIXED_PRECISION);
+    }
+
+    private static long mix(long id) {
+        id ^= id >>> 33;
+        id *= 0xff51afd7ed558ccdL;
+        id ^= id >>> 33;
+        id *= 0xc4ceb9fe1a85ec53L;
+        return id ^ (id >>> 33);
+    }
+}
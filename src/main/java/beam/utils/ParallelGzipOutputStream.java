@@ -0,0 +1,223 @@
+package beam.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output that compresses blocks of the data on several threads, in the way of pigz: every block becomes an
+ * independent gzip member, and the members are written in order. A file of concatenated members is a valid gzip
+ * file that gzip, zlib and {@link java.util.zip.GZIPInputStream} read as one stream; it is slightly larger than a
+ * single member, since every block starts with an empty dictionary.
+ * <p>
+ * At most twice as many blocks as threads are compressed or waiting to be written at any time, which bounds the
+ * memory used. Not thread safe, like any other output stream.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    // the header GZIPOutputStream writes: magic, deflate, no flags, no mtime, no extra flags, OS 0
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final int TRAILER_LENGTH = 8;
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final int level;
+    private final int maxPendingBlocks;
+    private final ExecutorService executor;
+    private final Queue<Future<byte[]>> pending = new ArrayDeque<>();
+    private final Queue<byte[]> freeBlocks = new ConcurrentLinkedQueue<>();
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private byte[] block;
+    private int blockLength;
+    private boolean membersWritten;
+    private boolean closed;
+
+    public ParallelGzipOutputStream(final OutputStream out, int nofThreads) {
+        this(out, nofThreads, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param blockSize the number of uncompressed bytes per gzip member
+     * @param level     the compression level of {@link Deflater}
+     */
+    public ParallelGzipOutputStream(final OutputStream out, int nofThreads, int blockSize, int level) {
+        if (nofThreads < 1) {
+            throw new IllegalArgumentException("nofThreads must be positive: " + nofThreads);
+        }
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+        }
+        this.out = out;
+        this.blockSize = blockSize;
+        this.level = level;
+        this.maxPendingBlocks = 2 * nofThreads;
+        String threadName = "gzip-" + POOL_NUMBER.incrementAndGet();
+        this.executor = Executors.newFixedThreadPool(nofThreads, runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (blockLength == blockSize) {
+            submitBlock();
+        }
+        block[blockLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (blockLength == blockSize) {
+                submitBlock();
+            }
+            int length = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, length);
+            blockLength += length;
+            off += length;
+            len -= length;
+        }
+    }
+
+    /**
+     * Compresses and writes everything written so far, which ends the current gzip member.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (blockLength > 0) {
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            writeNextMember();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try (OutputStream target = out) {
+            // an empty file still needs one member to be valid gzip
+            if (blockLength > 0 || !membersWritten && pending.isEmpty()) {
+                submitBlock();
+            }
+            while (!pending.isEmpty()) {
+                writeNextMember();
+            }
+        } finally {
+            releaseDeflaters();
+        }
+    }
+
+    /**
+     * Stops the threads and ends all Deflaters, after the blocks still being compressed, e.g. after a failure,
+     * returned theirs to the pool.
+     */
+    private void releaseDeflaters() throws IOException {
+        for (Future<byte[]> member : pending) {
+            member.cancel(false);
+        }
+        pending.clear();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the compression threads", e);
+        } finally {
+            for (Deflater deflater : deflaters) {
+                deflater.end();
+            }
+            deflaters.clear();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        while (pending.size() >= maxPendingBlocks) {
+            writeNextMember();
+        }
+        final byte[] data = block;
+        final int length = blockLength;
+        pending.add(executor.submit(() -> compress(data, length)));
+        block = freeBlocks.poll();
+        if (block == null) {
+            block = new byte[blockSize];
+        }
+        blockLength = 0;
+    }
+
+    private void writeNextMember() throws IOException {
+        try {
+            byte[] member = pending.remove().get();
+            out.write(member);
+            membersWritten = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Compressing a block failed", e.getCause());
+        }
+    }
+
+    /**
+     * @return the gzip member of the data, after which the data array is free for reuse
+     */
+    private byte[] compress(byte[] data, int length) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+            deflater.reset();
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            // enough for incompressible data in most cases, grown otherwise
+            byte[] member = new byte[HEADER.length + length + (length >> 6) + 64 + TRAILER_LENGTH];
+            System.arraycopy(HEADER, 0, member, 0, HEADER.length);
+            int position = HEADER.length;
+            while (!deflater.finished()) {
+                if (position == member.length - TRAILER_LENGTH) {
+                    member = Arrays.copyOf(member, member.length * 2);
+                }
+                position += deflater.deflate(member, position, member.length - TRAILER_LENGTH - position);
+            }
+            putIntLE(member, position, (int) crc.getValue());
+            putIntLE(member, position + 4, length);
+            if (data.length == blockSize) {
+                freeBlocks.offer(data);
+            }
+            return Arrays.copyOf(member, position + TRAILER_LENGTH);
+        } finally {
+            deflaters.offer(deflater);
+        }
+    }
+
+    private static void putIntLE(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+}
@@ -0,0 +1,141 @@
+package beam.utils;
+
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.core.utils.io.UncheckedIOException;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link Metrics} that keeps all values in memory until they are written, typically once per iteration:
+ * <pre>
+ * metrics.write(controllerIO.getIterationFilename(iteration, "metrics.csv"));
+ * metrics.reset();
+ * </pre>
+ * Files ending with .json are written as json, all others as csv with the columns
+ * {@code metric,kind,count,total,max}; timers are in nanoseconds.
+ */
+public class RecordingMetrics implements Metrics {
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> bytes = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    @Override
+    public void increment(String counter, long delta) {
+        counters.computeIfAbsent(counter, name -> new LongAdder()).add(delta);
+    }
+
+    @Override
+    public void addBytes(String name, long bytes) {
+        this.bytes.computeIfAbsent(name, key -> new LongAdder()).add(bytes);
+    }
+
+    @Override
+    public void recordNanos(String timer, long nanos) {
+        timers.computeIfAbsent(timer, name -> new Timer()).record(nanos);
+    }
+
+    public long getCount(String counter) {
+        LongAdder value = counters.get(counter);
+        return value == null ? 0 : value.sum();
+    }
+
+    public long getBytes(String name) {
+        LongAdder value = bytes.get(name);
+        return value == null ? 0 : value.sum();
+    }
+
+    /**
+     * @return the number of measurements of the timer
+     */
+    public long getTimerCount(String timer) {
+        Timer value = timers.get(timer);
+        return value == null ? 0 : value.count.sum();
+    }
+
+    public long getTotalNanos(String timer) {
+        Timer value = timers.get(timer);
+        return value == null ? 0 : value.total.sum();
+    }
+
+    public void reset() {
+        counters.clear();
+        bytes.clear();
+        timers.clear();
+    }
+
+    public void write(final String filename) {
+        try (BufferedWriter out = IOUtils.getBufferedWriter(filename)) {
+            if (filename.toLowerCase().endsWith(".json")) {
+                writeJson(out);
+            } else {
+                writeCsv(out);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeCsv(BufferedWriter out) throws IOException {
+        out.write("metric,kind,count,total,max\n");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            out.write(entry.getKey() + ",counter," + entry.getValue().sum() + ",,\n");
+        }
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(bytes).entrySet()) {
+            out.write(entry.getKey() + ",bytes,," + entry.getValue().sum() + ",\n");
+        }
+        for (Map.Entry<String, Timer> entry : new TreeMap<>(timers).entrySet()) {
+            Timer timer = entry.getValue();
+            out.write(entry.getKey() + ",timer," + timer.count.sum() + "," + timer.total.sum() + "," + timer.max.get() + "\n");
+        }
+    }
+
+    private void writeJson(BufferedWriter out) throws IOException {
+        out.write("{\n  \"counters\": {");
+        writeJsonValues(out, counters);
+        out.write("},\n  \"bytes\": {");
+        writeJsonValues(out, bytes);
+        out.write("},\n  \"timers\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Timer> entry : new TreeMap<>(timers).entrySet()) {
+            Timer timer = entry.getValue();
+            out.write(separator + "    " + quote(entry.getKey()) + ": {\"count\": " + timer.count.sum() + ", \"totalNanos\": "
+                    + timer.total.sum() + ", \"maxNanos\": " + timer.max.get() + "}");
+            separator = ",\n";
+        }
+        out.write(timers.isEmpty() ? "}\n}\n" : "\n  }\n}\n");
+    }
+
+    private static void writeJsonValues(BufferedWriter out, Map<String, LongAdder> values) throws IOException {
+        String separator = "\n";
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(values).entrySet()) {
+            out.write(separator + "    " + quote(entry.getKey()) + ": " + entry.getValue().sum());
+            separator = ",\n";
+        }
+        if (!values.isEmpty()) {
+            out.write("\n  ");
+        }
+    }
+
+    private static String quote(String name) {
+        return "\"" + name.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            count.increment();
+            total.add(nanos);
+            max.accumulateAndGet(nanos, Math::max);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package beam.utils;
+
+import java.util.Arrays;
+
+/**
+ * Hourly volumes and travel times of the last N iterations per link, kept in primitive ring buffers.
+ * Minimum, average, maximum and variance over the window are maintained incrementally when an iteration is added, in
+ * amortized constant time per value: mean and variance with Welford's update corrected by the value that drops out of
+ * the window, minimum and maximum with monotonic deques. Memory is constant in the number of iterations; next to the
+ * N values of a cell, its deques take two ints per value.
+ * <p>
+ * Values of one iteration are added link by link with {@link #add(int, double[], int, double[], int)}, which may be
+ * called concurrently for different links, followed by a single call to {@link #advance()}.
+ */
+public class SlidingWindowLinkStats {
+
+    private final int nofLinks;
+    private final int nofHours;
+    private final int windowSize;
+    private final WindowedColumn volumes;
+    private final WindowedColumn ttimes;
+    private int slot = 0;
+    private int size = 0;
+
+    public SlidingWindowLinkStats(int nofLinks, int nofHours, int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize must be positive: " + windowSize);
+        }
+        long cells = (long) nofLinks * nofHours;
+        if (cells * windowSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Window of " + windowSize + " iterations too large for " + nofLinks + " links");
+        }
+        this.nofLinks = nofLinks;
+        this.nofHours = nofHours;
+        this.windowSize = windowSize;
+        this.volumes = new WindowedColumn((int) cells, windowSize);
+        this.ttimes = new WindowedColumn((int) cells, windowSize);
+    }
+
+    /**
+     * Records the hourly values of one link for the current iteration.
+     */
+    public void add(int link, double[] linkVolumes, int volumesOffset, double[] linkTTimes, int ttimesOffset) {
+        boolean full = size == windowSize;
+        int cell = link * nofHours;
+        for (int hour = 0; hour < nofHours; hour++, cell++) {
+            volumes.add(slot, cell, linkVolumes[volumesOffset + hour], full, size);
+            ttimes.add(slot, cell, linkTTimes[ttimesOffset + hour], full, size);
+        }
+    }
+
+    /**
+     * Completes the current iteration; from now on its values are part of the window.
+     */
+    public void advance() {
+        slot = (slot + 1) % windowSize;
+        size = Math.min(size + 1, windowSize);
+    }
+
+    public void clear() {
+        volumes.clear();
+        ttimes.clear();
+        slot = 0;
+        size = 0;
+    }
+
+    public int getNofLinks() {
+        return nofLinks;
+    }
+
+    public int getNofHours() {
+        return nofHours;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * @return the number of completed iterations currently in the window
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public double getMinVolume(int link, int hour) {
+        return volumes.min(link * nofHours + hour, size);
+    }
+
+    public double getMaxVolume(int link, int hour) {
+        return volumes.max(link * nofHours + hour, size);
+    }
+
+    public double getAverageVolume(int link, int hour) {
+        return volumes.average(link * nofHours + hour, size);
+    }
+
+    public double getVolumeVariance(int link, int hour) {
+        return volumes.variance(link * nofHours + hour, size);
+    }
+
+    public double getMinTravelTime(int link, int hour) {
+        return ttimes.min(link * nofHours + hour, size);
+    }
+
+    public double getMaxTravelTime(int link, int hour) {
+        return ttimes.max(link * nofHours + hour, size);
+    }
+
+    public double getAverageTravelTime(int link, int hour) {
+        return ttimes.average(link * nofHours + hour, size);
+    }
+
+    public double getTravelTimeVariance(int link, int hour) {
+        return ttimes.variance(link * nofHours + hour, size);
+    }
+
+    /**
+     * Ring buffer and running aggregates of one statistic. The ring is slot-major: value of slot s and cell c is at s * cells + c.
+     * <p>
+     * Mean and variance follow Welford's update, extended to replacing the value that drops out of a full window, which
+     * stays accurate where the difference of a sum of squares and a squared mean cancels. Minimum and maximum come from
+     * monotonic deques of ring slots per cell, oldest first, whose values increase towards the back for the minimum and
+     * decrease for the maximum: every slot is pushed and popped at most once, so each value costs amortized constant
+     * time. The deques are cell-major, each a circular buffer of windowSize slots.
+     */
+    private static class WindowedColumn {
+        private final int cells;
+        private final int windowSize;
+        private final double[] ring;
+        private final double[] mean;
+        private final double[] m2;
+        private final Deques minima;
+        private final Deques maxima;
+
+        WindowedColumn(int cells, int windowSize) {
+            this.cells = cells;
+            this.windowSize = windowSize;
+            this.ring = new double[cells * windowSize];
+            this.mean = new double[cells];
+            this.m2 = new double[cells];
+            this.minima = new Deques(cells, windowSize);
+            this.maxima = new Deques(cells, windowSize);
+        }
+
+        void add(int slot, int cell, double value, boolean full, int size) {
+            int position = slot * cells + cell;
+            double oldMean = mean[cell];
+            if (full) {
+                double evicted = ring[position];
+                double newMean = oldMean + (value - evicted) / windowSize;
+                m2[cell] += (value - evicted) * (value - newMean + evicted - oldMean);
+                mean[cell] = newMean;
+                minima.evict(cell, slot);
+                maxima.evict(cell, slot);
+            } else {
+                double delta = value - oldMean;
+                mean[cell] = oldMean + delta / (size + 1);
+                m2[cell] += delta * (value - mean[cell]);
+            }
+            minima.push(cell, slot, value, ring, cells, false);
+            maxima.push(cell, slot, value, ring, cells, true);
+            ring[position] = value;
+        }
+
+        double min(int cell, int size) {
+            return size == 0 ? 0.0 : ring[minima.front(cell) * cells + cell];
+        }
+
+        double max(int cell, int size) {
+            return size == 0 ? 0.0 : ring[maxima.front(cell) * cells + cell];
+        }
+
+        double average(int cell, int size) {
+            return size == 0 ? 0.0 : mean[cell];
+        }
+
+        double variance(int cell, int size) {
+            if (size == 0) {
+                return 0.0;
+            }
+            // replacing values can leave a rounding error slightly below zero for constant values
+            return Math.max(0.0, m2[cell] / size);
+        }
+
+        void clear() {
+            Arrays.fill(ring, 0.0);
+            Arrays.fill(mean, 0.0);
+            Arrays.fill(m2, 0.0);
+            minima.clear();
+            maxima.clear();
+        }
+    }
+
+    /**
+     * One deque of ring slots per cell, stored as circular buffers of windowSize entries at cell * windowSize.
+     */
+    private static class Deques {
+        private final int windowSize;
+        private final int[] slots;
+        private final int[] heads;
+        private final int[] lengths;
+
+        Deques(int cells, int windowSize) {
+            this.windowSize = windowSize;
+            this.slots = new int[cells * windowSize];
+            this.heads = new int[cells];
+            this.lengths = new int[cells];
+        }
+
+        int front(int cell) {
+            return slots[cell * windowSize + heads[cell]];
+        }
+
+        /**
+         * Drops the slot that is about to be overwritten; being the oldest value, it can only be at the front.
+         */
+        void evict(int cell, int slot) {
+            if (lengths[cell] > 0 && front(cell) == slot) {
+                heads[cell] = (heads[cell] + 1) % windowSize;
+                lengths[cell]--;
+            }
+        }
+
+        /**
+         * Pushes the slot of a new value after dropping the values from the back that can no longer be the extreme.
+         */
+        void push(int cell, int slot, double value, double[] ring, int cells, boolean maximum) {
+            int base = cell * windowSize;
+            int length = lengths[cell];
+            while (length > 0) {
+                double last = ring[slots[base + (heads[cell] + length - 1) % windowSize] * cells + cell];
+                if (maximum ? last > value : last < value) {
+                    break;
+                }
+                length--;
+            }
+            slots[base + (heads[cell] + length) % windowSize] = slot;
+            lengths[cell] = length + 1;
+        }
+
+        void clear() {
+            Arrays.fill(heads, 0);
+            Arrays.fill(lengths, 0);
+        }
+    }
+}
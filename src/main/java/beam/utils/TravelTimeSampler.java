@@ -0,0 +1,116 @@
+package beam.utils;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.router.util.TravelTime;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Samples a {@link TravelTime} for every link and time bin into one flat link-major matrix, i.e. the travel time of
+ * the link with index i entering at the start of bin b is found at i * nofBins + b.
+ * <p>
+ * {@link #forEachBlock(TravelTime, int, IntUnaryOperator, ForkJoinPool, BlockAction)} samples the links block by
+ * block into a reused buffer of bounded size instead, so that the travel times of all links are never held at once.
+ */
+public class TravelTimeSampler {
+
+    /**
+     * Upper bound of the number of cells of one block, i.e. 8 MiB of travel times.
+     */
+    static final int MAX_BLOCK_CELLS = 1 << 20;
+
+    interface BlockAction {
+        /**
+         * @param block travel times of the positions in [fromPosition, toPosition), the one of position p entering
+         *              at the start of bin b at (p - fromPosition) * nofBins + b
+         */
+        void apply(double[] block, int fromPosition, int toPosition);
+    }
+
+    private final LinkIndex linkIndex;
+    private final int binSize;
+    private final int nofBins;
+    private double[] block;
+
+    /**
+     * @param binSize length of a time bin in seconds
+     */
+    public TravelTimeSampler(final LinkIndex linkIndex, int binSize, int nofBins) {
+        this.linkIndex = linkIndex;
+        this.binSize = binSize;
+        this.nofBins = nofBins;
+    }
+
+    /**
+     * @param matrix the matrix to fill, or null to allocate a new one
+     * @param pool   pool to sample on in parallel, or null to sample on the calling thread. Only pass a pool if the
+     *               travel time implementation can be queried concurrently.
+     * @return the filled matrix
+     */
+    public double[] sample(final TravelTime ttimes, double[] matrix, final ForkJoinPool pool) {
+        final double[] target = matrix == null ? new double[linkIndex.size() * nofBins] : matrix;
+        if (target.length < linkIndex.size() * nofBins) {
+            throw new IllegalArgumentException("Matrix too small for " + linkIndex.size() + " links x " + nofBins + " bins");
+        }
+        sample(ttimes, 0, linkIndex.size(), index -> index, target, pool);
+        return target;
+    }
+
+    /**
+     * Samples only the links that have a row in the (sparse) table, into a row-major matrix, i.e. the travel time
+     * of the link in row r entering at the start of bin b is found at r * nofBins + b.
+     *
+     * @param matrix the matrix to fill, or null or a too small one to allocate a new one
+     * @param pool   see {@link #sample(TravelTime, double[], ForkJoinPool)}
+     * @return the filled matrix
+     */
+    public double[] sampleRows(final TravelTime ttimes, final LinkStatsTable table, double[] matrix, final ForkJoinPool pool) {
+        int nofRows = table.getNofRows();
+        final double[] target = matrix == null || matrix.length < nofRows * nofBins ? new double[nofRows * nofBins] : matrix;
+        sample(ttimes, 0, nofRows, table::getRowLink, target, pool);
+        return target;
+    }
+
+    /**
+     * Samples the positions in [0, nofPositions) in consecutive blocks of at most {@link #MAX_BLOCK_CELLS} cells and
+     * hands every block to the action before the next one is sampled into the same buffer.
+     *
+     * @param linkOfPosition the link index of a position, e.g. the identity for link indices or the link of a table row
+     * @param pool           see {@link #sample(TravelTime, double[], ForkJoinPool)}
+     */
+    void forEachBlock(final TravelTime ttimes, int nofPositions, final IntUnaryOperator linkOfPosition, final ForkJoinPool pool,
+                      final BlockAction action) {
+        int positionsPerBlock = Math.max(1, MAX_BLOCK_CELLS / Math.max(1, nofBins));
+        for (int fromPosition = 0; fromPosition < nofPositions; fromPosition += positionsPerBlock) {
+            int toPosition = Math.min(nofPositions, fromPosition + positionsPerBlock);
+            int cells = (toPosition - fromPosition) * nofBins;
+            if (block == null || block.length < cells) {
+                block = new double[cells];
+            }
+            sample(ttimes, fromPosition, toPosition, linkOfPosition, block, pool);
+            action.apply(block, fromPosition, toPosition);
+        }
+    }
+
+    private void sample(final TravelTime ttimes, int fromPosition, int toPosition, final IntUnaryOperator linkOfPosition,
+                        final double[] target, final ForkJoinPool pool) {
+        LinkPartitions.forEach(pool, toPosition - fromPosition, (from, to) -> {
+            for (int position = fromPosition + from; position < fromPosition + to; position++) {
+                Link link = linkIndex.getLink(linkOfPosition.applyAsInt(position));
+                int offset = (position - fromPosition) * nofBins;
+                for (int bin = 0; bin < nofBins; bin++) {
+                    target[offset + bin] = ttimes.getLinkTravelTime(link, bin * binSize, null, null);
+                }
+            }
+        });
+    }
+
+    public int getBinSize() {
+        return binSize;
+    }
+
+    public int getNofBins() {
+        return nofBins;
+    }
+}
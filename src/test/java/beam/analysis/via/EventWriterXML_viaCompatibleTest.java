@@ -0,0 +1,256 @@
+package beam.analysis.via;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.PersonArrivalEvent;
+import org.matsim.api.core.v01.events.PersonDepartureEvent;
+import org.matsim.api.core.v01.events.PersonEntersVehicleEvent;
+import org.matsim.api.core.v01.events.PersonLeavesVehicleEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventWriterXML_viaCompatibleTest {
+
+    private static final String[] AGENT_PREFIXES = {"", "rideHailVehicle-", "SF:"};
+    private static final String[] LEG_MODES = {"car", "walk", "ride_hail", "walk&transit", "a<b\"c>", "é€😀", "x\uD800y\uDC00"};
+    private static final Pattern PERSON = Pattern.compile("person=\"([^\"]*)\"");
+    private static final Pattern VEHICLE = Pattern.compile("vehicle=\"([^\"]*)\"");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Trips of agents whose vehicle has the id of the person, with times that are not always integral, leg and network
+     * modes that need escaping, are not ascii or are sometimes missing.
+     */
+    private static List<Event> trips(int nofEvents, long seed) {
+        Random random = new Random(seed);
+        List<Event> events = new ArrayList<>();
+        double time = 0;
+        while (events.size() < nofEvents) {
+            String agent = AGENT_PREFIXES[random.nextInt(AGENT_PREFIXES.length)] + random.nextInt(nofEvents / 10 + 1);
+            Id<Person> person = Id.create(agent, Person.class);
+            Id<Vehicle> vehicle = Id.create(agent, Vehicle.class);
+            Id<Link> link = Id.create(random.nextInt(100000), Link.class);
+            time += random.nextInt(3) + (random.nextInt(10) == 0 ? 0.25 : 0);
+            String legMode = random.nextInt(20) == 0 ? null : LEG_MODES[random.nextInt(LEG_MODES.length)];
+            String networkMode = random.nextInt(20) == 0 ? null : LEG_MODES[random.nextInt(LEG_MODES.length)];
+            events.add(new PersonDepartureEvent(time, person, link, legMode));
+            events.add(new PersonEntersVehicleEvent(time, person, vehicle));
+            events.add(new VehicleEntersTrafficEvent(time, person, link, vehicle, networkMode, random.nextInt(4) / 3.0));
+            for (int i = 0; i < 6; i++) {
+                Id<Link> next = Id.create(random.nextInt(100000), Link.class);
+                time += random.nextInt(30);
+                events.add(new LinkLeaveEvent(time, vehicle, link));
+                events.add(new LinkEnterEvent(time, vehicle, next));
+                link = next;
+            }
+            events.add(new VehicleLeavesTrafficEvent(time, person, link, vehicle, networkMode, 1.0));
+            events.add(new PersonLeavesVehicleEvent(time, person, vehicle));
+            events.add(new PersonArrivalEvent(time, person, link, legMode));
+        }
+        return events;
+    }
+
+    private static byte[] read(final File file) throws IOException {
+        if (!file.getName().endsWith(".gz")) {
+            return Files.readAllBytes(file.toPath());
+        }
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file.toPath()))) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1 << 16];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                content.write(buffer, 0, n);
+            }
+            return content.toByteArray();
+        }
+    }
+
+    private byte[] writeBaseline(final List<Event> events, boolean eventsForFullVersionOfVia) throws IOException {
+        File file = new File(folder.getRoot(), "baseline" + eventsForFullVersionOfVia + ".xml");
+        BaselineEventWriterXML writer = new BaselineEventWriterXML(file.getPath(), eventsForFullVersionOfVia);
+        for (Event event : events) {
+            writer.handleEvent(event);
+        }
+        writer.closeFile();
+        return read(file);
+    }
+
+    private static void write(final EventWriterXML_viaCompatible writer, final List<Event> events) {
+        for (Event event : events) {
+            writer.handleEvent(event);
+        }
+        writer.closeFile();
+    }
+
+    @Test
+    public void writesTheBytesOfTheBaselineWriter() throws IOException {
+        List<Event> events = trips(30000, 1);
+        for (boolean full : new boolean[]{true, false}) {
+            byte[] expected = writeBaseline(events, full);
+            for (String suffix : new String[]{".xml", ".xml.gz"}) {
+                File sync = new File(folder.getRoot(), "sync" + full + suffix);
+                write(new EventWriterXML_viaCompatible(sync.getPath(), full), events);
+                assertArrayEquals("synchronous, full " + full + suffix, expected, read(sync));
+
+                File async = new File(folder.getRoot(), "async" + full + suffix);
+                EventWriterXML_viaCompatible writer = new EventWriterXML_viaCompatible(async.getPath(), full, 1, 3);
+                writer.setAsync(256, EventWriterXML_viaCompatible.Backpressure.BLOCK);
+                write(writer, events);
+                assertArrayEquals("asynchronous, full " + full + suffix, expected, read(async));
+                assertEquals(0, writer.getDroppedEvents());
+            }
+        }
+    }
+
+    /**
+     * Trips in vehicles whose ids are unrelated to the ones of their drivers, like shared or transit vehicles.
+     */
+    private static List<Event> tripsInSharedVehicles() {
+        Random random = new Random(2);
+        List<Event> events = new ArrayList<>();
+        double time = 0;
+        for (int trip = 0; trip < 5000; trip++) {
+            Id<Person> person = Id.create("p" + random.nextInt(500), Person.class);
+            Id<Vehicle> vehicle = Id.create("veh" + random.nextInt(100000), Vehicle.class);
+            Id<Link> link = Id.create(random.nextInt(1000), Link.class);
+            events.add(new PersonDepartureEvent(time, person, link, "car"));
+            events.add(new VehicleEntersTrafficEvent(time, person, link, vehicle, "car", 1.0));
+            for (int i = 0; i < 4; i++) {
+                time++;
+                events.add(new LinkLeaveEvent(time, vehicle, link));
+                events.add(new LinkEnterEvent(time, vehicle, link));
+            }
+            events.add(new VehicleLeavesTrafficEvent(time, person, link, vehicle, "car", 1.0));
+        }
+        return events;
+    }
+
+    @Test
+    public void samplesVehiclesTogetherWithTheirDrivers() throws IOException {
+        List<Event> events = tripsInSharedVehicles();
+        for (boolean withFilter : new boolean[]{false, true}) {
+            File file = new File(folder.getRoot(), "sampled" + withFilter + ".xml");
+            EventWriterXML_viaCompatible writer = new EventWriterXML_viaCompatible(file.getPath(), true, 0.3);
+            if (withFilter) {
+                ViaEventFilter filter = new ViaEventFilter();
+                filter.setIncludedTypes(Arrays.asList(LinkLeaveEvent.EVENT_TYPE, LinkEnterEvent.EVENT_TYPE, PersonDepartureEvent.EVENT_TYPE));
+                writer.setFilter(filter);
+            }
+            write(writer, events);
+
+            Set<String> persons = new HashSet<>();
+            int linkEvents = 0;
+            for (String line : new String(read(file), StandardCharsets.UTF_8).split("\n")) {
+                Matcher person = PERSON.matcher(line);
+                if (person.find()) {
+                    persons.add(person.group(1));
+                } else if (VEHICLE.matcher(line).find()) {
+                    linkEvents++;
+                }
+            }
+            assertFalse(persons.isEmpty());
+            assertTrue(persons.size() < 500);
+
+            int expectedLinkEvents = 0;
+            String driver = null;
+            for (Event event : events) {
+                if (event instanceof VehicleEntersTrafficEvent) {
+                    driver = ((VehicleEntersTrafficEvent) event).getPersonId().toString();
+                } else if ((event instanceof LinkEnterEvent || event instanceof LinkLeaveEvent) && persons.contains(driver)) {
+                    expectedLinkEvents++;
+                }
+            }
+            assertEquals("with filter " + withFilter, expectedLinkEvents, linkEvents);
+        }
+    }
+
+    @Test
+    public void samplesTheSameAgentsWithTheSameSeed() throws IOException {
+        List<Event> events = trips(20000, 3);
+        byte[][] files = new byte[3][];
+        for (int run = 0; run < files.length; run++) {
+            File file = new File(folder.getRoot(), "sampled" + run + ".xml");
+            EventWriterXML_viaCompatible writer = new EventWriterXML_viaCompatible(file.getPath(), true, 0.5);
+            writer.setSamplingSeed(run < 2 ? 42 : 43);
+            write(writer, events);
+            files[run] = read(file);
+        }
+        assertArrayEquals(files[0], files[1]);
+        assertFalse(Arrays.equals(files[0], files[2]));
+    }
+
+    @Test
+    public void writesOrRejectsEveryEventHandledWhileClosing() throws Exception {
+        List<Event> events = trips(200000, 4);
+        for (EventWriterXML_viaCompatible.Backpressure backpressure : EventWriterXML_viaCompatible.Backpressure.values()) {
+            File file = new File(folder.getRoot(), "closing" + backpressure + ".xml");
+            EventWriterXML_viaCompatible writer = new EventWriterXML_viaCompatible(file.getPath(), true);
+            writer.setAsync(64, backpressure);
+            AtomicLong accepted = new AtomicLong();
+            CountDownLatch started = new CountDownLatch(4);
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                List<Event> share = events.subList(t * events.size() / 4, (t + 1) * events.size() / 4);
+                Thread thread = new Thread(() -> {
+                    started.countDown();
+                    try {
+                        for (Event event : share) {
+                            writer.handleEvent(event);
+                            accepted.incrementAndGet();
+                        }
+                    } catch (IllegalStateException closed) {
+                        // handled after closing
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            started.await();
+            while (accepted.get() < 1000) {
+                Thread.yield();
+            }
+            writer.closeFile();
+            for (Thread thread : threads) {
+                thread.join(60000);
+                assertFalse("handleEvent blocked after closing", thread.isAlive());
+            }
+
+            String content = new String(read(file), StandardCharsets.UTF_8);
+            assertTrue(content.endsWith("</events>"));
+            int written = content.split("<event ", -1).length - 1;
+            assertEquals(backpressure.toString(), accepted.get() - writer.getDroppedEvents(), written);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package beam.utils;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class AsciiDoubleFormatTest {
+
+    private static final double[] SPECIAL_VALUES = {0.0, -0.0, 1.0, -1.0, 0.1, 1e-3, 9.999e-4, 1e7, 9999999.0, 9999999.5, -1e7,
+            1e21, 1e22, 1e23, 2e-323, Double.MIN_VALUE, Double.MIN_NORMAL, Double.MAX_VALUE, Double.NaN,
+            Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 2.0E-3, 1.0E23, 5e-324, 4.9e-324, 1.7976931348623157e308,
+            0.30000000000000004, 123456.789, 3600.0, 86399.0};
+
+    private final AsciiDoubleFormat format = new AsciiDoubleFormat();
+    private final ByteBuffer out = ByteBuffer.allocate(AsciiDoubleFormat.MAX_DOUBLE_LENGTH);
+
+    private String format(double value) {
+        out.clear();
+        format.put(out, value);
+        return new String(out.array(), 0, out.position(), StandardCharsets.US_ASCII);
+    }
+
+    private String formatShortest(double value) {
+        out.clear();
+        format.putShortest(out, value);
+        return new String(out.array(), 0, out.position(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * The decimal that Double.toString selects since JDK 19: the shortest decimal that rounds to the value, among
+     * those of length 1 or 2 if one digit suffices, and of them the closest to the value or the even one on a tie.
+     */
+    private static BigDecimal shortestDecimal(double value) {
+        BigDecimal exact = new BigDecimal(value);
+        BigDecimal below = new BigDecimal(Math.nextDown(value));
+        BigDecimal above = value == Double.MAX_VALUE ? exact.add(new BigDecimal(Math.ulp(value)))
+                : new BigDecimal(Math.nextUp(value));
+        BigDecimal lower = exact.add(below).divide(BigDecimal.valueOf(2));
+        BigDecimal upper = exact.add(above).divide(BigDecimal.valueOf(2));
+        boolean boundsIncluded = (Double.doubleToRawLongBits(value) & 1) == 0;
+        BigDecimal best = null;
+        for (int length = 1; length <= 17 && (best == null || length == 2); length++) {
+            for (RoundingMode mode : new RoundingMode[]{RoundingMode.FLOOR, RoundingMode.CEILING}) {
+                BigDecimal candidate = exact.round(new MathContext(length, mode));
+                int toLower = candidate.compareTo(lower);
+                int toUpper = candidate.compareTo(upper);
+                boolean rounds = boundsIncluded ? toLower >= 0 && toUpper <= 0 : toLower > 0 && toUpper < 0;
+                if (rounds && (best == null || isCloser(candidate, best, exact))) {
+                    best = candidate;
+                }
+            }
+        }
+        return best.stripTrailingZeros();
+    }
+
+    private static boolean isCloser(BigDecimal candidate, BigDecimal best, BigDecimal exact) {
+        int cmp = candidate.subtract(exact).abs().compareTo(best.subtract(exact).abs());
+        return cmp < 0 || cmp == 0 && candidate.unscaledValue().testBit(0) == false && best.unscaledValue().testBit(0);
+    }
+
+    /**
+     * Formats a positive decimal like Double.toString: plain in [10^-3, 10^7), scientific otherwise.
+     */
+    private static String toStringFormat(BigDecimal decimal) {
+        String digits = decimal.unscaledValue().toString();
+        int exponent = digits.length() - decimal.scale();
+        if (0 < exponent && exponent <= 7) {
+            StringBuilder text = new StringBuilder(digits);
+            while (text.length() < exponent + 1) {
+                text.append('0');
+            }
+            return text.insert(exponent, '.').toString();
+        }
+        if (-3 < exponent && exponent <= 0) {
+            StringBuilder text = new StringBuilder("0.");
+            for (int i = exponent; i < 0; i++) {
+                text.append('0');
+            }
+            return text.append(digits).toString();
+        }
+        return digits.charAt(0) + "." + (digits.length() == 1 ? "0" : digits.substring(1)) + "E" + (exponent - 1);
+    }
+
+    private void assertShortest(double value) {
+        String expected = toStringFormat(shortestDecimal(Math.abs(value)));
+        if (value < 0) {
+            expected = "-" + expected;
+        }
+        String actual = formatShortest(value);
+        assertEquals(expected, actual);
+        assertEquals(actual, Double.doubleToLongBits(value), Double.doubleToLongBits(Double.parseDouble(actual)));
+    }
+
+    private double parse(String text) {
+        ByteBuffer in = ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+        return AsciiDoubleParser.parse(in, 0, in.limit());
+    }
+
+    private void assertFormatAndParse(double value) {
+        String expected = Double.toString(value);
+        assertEquals(expected, format(value));
+        if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+            assertEquals(expected, Double.doubleToLongBits(value), Double.doubleToLongBits(parse(expected)));
+        }
+    }
+
+    @Test
+    public void writesWhatDoubleToStringPrints() {
+        for (double value : SPECIAL_VALUES) {
+            assertFormatAndParse(value);
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < 200000; i++) {
+            assertFormatAndParse(Double.longBitsToDouble(random.nextLong()));
+            assertFormatAndParse(random.nextInt(100000) / 4.0);
+            assertFormatAndParse(random.nextDouble() * 1000);
+            assertFormatAndParse(random.nextInt(2000) / 3.0 * 7);
+        }
+    }
+
+    @Test
+    public void writesTheShortestDecimalLikeLaterJdks() {
+        assertEquals("0.0", formatShortest(0.0));
+        assertEquals("-0.0", formatShortest(-0.0));
+        assertEquals("NaN", formatShortest(Double.NaN));
+        assertEquals("-Infinity", formatShortest(Double.NEGATIVE_INFINITY));
+        assertEquals("4.9E-324", formatShortest(Double.MIN_VALUE));
+        assertEquals("0.002", formatShortest(2.0E-3));
+        assertEquals("1.0E23", formatShortest(1.0E23));
+        assertEquals("2.0E23", formatShortest(2.0E23));
+        for (double value : SPECIAL_VALUES) {
+            if (!Double.isNaN(value) && !Double.isInfinite(value) && value != 0) {
+                assertShortest(value);
+            }
+        }
+        for (int exponent = -1074; exponent <= 1023; exponent++) {
+            double power = Math.scalb(1.0, exponent);
+            assertShortest(power);
+            assertShortest(Math.nextUp(power));
+            if (exponent > -1074) {
+                assertShortest(Math.nextDown(power));
+            }
+        }
+        Random random = new Random(2);
+        for (int i = 0; i < 5000; i++) {
+            double value = Double.longBitsToDouble(random.nextLong());
+            if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                assertShortest(value);
+            }
+            assertShortest(Double.longBitsToDouble(1 + random.nextInt(1 << 20)));
+            assertShortest(random.nextDouble() * 1000);
+            assertShortest(random.nextInt(2000) / 3.0 * 7);
+        }
+    }
+
+    @Test
+    public void writesLongs() {
+        for (long value : new long[]{0, 1, -1, 9, 10, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1, 1234567890123L}) {
+            out.clear();
+            format.put(out, value);
+            assertEquals(Long.toString(value), new String(out.array(), 0, out.position(), StandardCharsets.US_ASCII));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package beam.utils;
+
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.vehicles.Vehicle;
+
+import static beam.utils.LinkStatsFixtures.config;
+import static beam.utils.LinkStatsFixtures.createNetwork;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class BeamCalcLinkStatsEventHandlerTest {
+
+    private final Network network = createNetwork(10);
+
+    /**
+     * One vehicle that enters the link at 3600 and leaves it 100 seconds later.
+     */
+    private static void traverse(final BeamCalcLinkStatsEventHandler handler, final Id<Link> link) {
+        Id<Vehicle> vehicle = Id.create("v", Vehicle.class);
+        handler.handleEvent(new VehicleEntersTrafficEvent(3500, Id.create("p", Person.class), link, vehicle, "car", 1.0));
+        handler.handleEvent(new LinkEnterEvent(3600, vehicle, link));
+        handler.handleEvent(new LinkLeaveEvent(3700, vehicle, link));
+    }
+
+    @Test
+    public void finishesEveryIterationOnce() {
+        BeamCalcLinkStats stats = new BeamCalcLinkStats(network, config(), 3600, false);
+        BeamCalcLinkStatsEventHandler handler = new BeamCalcLinkStatsEventHandler(stats);
+        Id<Link> link = stats.getLinkIndex().getLinkId(0);
+        for (int iteration = 0; iteration < 2; iteration++) {
+            handler.reset(iteration);
+            traverse(handler, link);
+            handler.finishIteration();
+            assertThrows(IllegalStateException.class, handler::finishIteration);
+            assertThrows(IllegalStateException.class, () -> traverse(handler, link));
+        }
+        assertEquals(2, stats.getCount());
+        assertEquals(2.0, stats.getTable().getSumVolume(0, 1), 0.0);
+        assertEquals(100.0, stats.getTable().calculateAverageTravelTime(0, 1), 1e-9);
+    }
+}
@@ -0,0 +1,228 @@
+package beam.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.analysis.VolumesAnalyzer;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.router.util.TravelTime;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static beam.utils.LinkStatsFixtures.assertSameStatistics;
+import static beam.utils.LinkStatsFixtures.config;
+import static beam.utils.LinkStatsFixtures.createNetwork;
+import static beam.utils.LinkStatsFixtures.iteration;
+import static beam.utils.LinkStatsFixtures.read;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BeamCalcLinkStatsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Network network = createNetwork(500);
+
+    private BeamCalcLinkStats create(int binSize, boolean sparse) {
+        return new BeamCalcLinkStats(network, config(), binSize, false, sparse);
+    }
+
+    /**
+     * Adds the same iterations to all given instances.
+     */
+    private static void collect(long seed, int iterations, double usedShare, BeamCalcLinkStats... targets) {
+        Random random = new Random(seed);
+        BeamCalcLinkStats first = targets[0];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            double[][] data = iteration(first.getLinkIndex(), first.getNofBins(), first.getBinSize(), random, usedShare);
+            for (BeamCalcLinkStats target : targets) {
+                target.addData(data[0], data[1]);
+            }
+        }
+    }
+
+    @Test
+    public void csvWriterMatchesBufferedWriter() throws IOException {
+        for (int binSize : new int[]{3600, 900}) {
+            for (boolean sparse : new boolean[]{false, true}) {
+                BeamCalcLinkStats stats = create(binSize, sparse);
+                collect(1, 3, 0.4, stats);
+                for (String suffix : new String[]{".csv", ".csv.gz"}) {
+                    File expected = new File(folder.getRoot(), "expected" + binSize + sparse + suffix);
+                    File actual = new File(folder.getRoot(), "actual" + binSize + sparse + suffix);
+                    assertTrue(stats.writeFileWithBufferedWriter(expected.getPath()));
+                    stats.writeFile(actual.getPath());
+                    assertArrayEquals("bins of " + binSize + "s, sparse " + sparse + ", " + suffix, read(expected), read(actual));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void parallelCollectionMatchesSequential() {
+        BeamCalcLinkStats sequential = create(900, false);
+        BeamCalcLinkStats parallel = create(900, false);
+        parallel.setParallelism(4);
+        collect(2, 4, 0.5, sequential, parallel);
+        assertSameStatistics(sequential.getTable(), parallel.getTable(), network.getLinks().size());
+    }
+
+    @Test
+    public void sparseStorageMatchesDense() {
+        BeamCalcLinkStats dense = create(3600, false);
+        BeamCalcLinkStats sparse = create(3600, true);
+        collect(3, 4, 0.2, dense, sparse);
+        assertTrue(sparse.getTable().getNofRows() < network.getLinks().size());
+        assertSameStatistics(dense.getTable(), sparse.getTable(), network.getLinks().size());
+    }
+
+    @Test
+    public void analyzerCollectionMatchesMatrices() {
+        // bins of 30 seconds split the links into several blocks of sampled travel times
+        for (int binSize : new int[]{3600, 900, 30}) {
+            for (boolean sparse : new boolean[]{false, true}) {
+                VolumesAnalyzer analyzer = LinkStatsFixtures.createVolumes(network, binSize, new Random(4), "car");
+                TravelTime ttimes = LinkStatsFixtures.peakTravelTime();
+                BeamCalcLinkStats fromAnalyzer = create(binSize, sparse);
+                fromAnalyzer.setParallelism(3);
+                fromAnalyzer.setConcurrentTravelTime(true);
+                BeamCalcLinkStats fromMatrices = create(binSize, sparse);
+                LinkIndex linkIndex = fromMatrices.getLinkIndex();
+                int nofBins = fromMatrices.getNofBins();
+                double[] volumes = new double[linkIndex.size() * nofBins];
+                double[] linkTTimes = new double[linkIndex.size() * nofBins];
+                for (int index = 0; index < linkIndex.size(); index++) {
+                    Link link = linkIndex.getLink(index);
+                    double[] linkVolumes = BeamCalcLinkStats.getVolumes(analyzer, link.getId(), null, binSize == 3600 ? null : new double[nofBins]);
+                    for (int bin = 0; bin < nofBins; bin++) {
+                        volumes[index * nofBins + bin] = linkVolumes[bin];
+                        linkTTimes[index * nofBins + bin] = ttimes.getLinkTravelTime(link, bin * binSize, null, null);
+                    }
+                }
+                for (int iteration = 0; iteration < 2; iteration++) {
+                    fromAnalyzer.addData(analyzer, ttimes);
+                    fromMatrices.addData(volumes, linkTTimes);
+                }
+                assertSameStatistics(fromMatrices.getTable(), fromAnalyzer.getTable(), linkIndex.size());
+            }
+        }
+    }
+
+    @Test
+    public void binarySnapshotRestoresAllStatistics() {
+        for (boolean sparse : new boolean[]{false, true}) {
+            BeamCalcLinkStats stats = create(900, sparse);
+            collect(5, 3, 0.3, stats);
+            String filename = new File(folder.getRoot(), "snapshot" + sparse + ".bin").getPath();
+            stats.writeBinaryFile(filename);
+
+            BeamCalcLinkStats restored = create(900, sparse);
+            collect(6, 1, 0.5, restored);
+            restored.restore(filename);
+            assertEquals(stats.getCount(), restored.getCount());
+            assertSameStatistics(stats.getTable(), restored.getTable(), network.getLinks().size());
+        }
+    }
+
+    @Test
+    public void mergeMatchesSequentialCollection() throws IOException {
+        BeamCalcLinkStats all = create(3600, false);
+        BeamCalcLinkStats first = create(3600, false);
+        BeamCalcLinkStats second = create(3600, false);
+        Random random = new Random(7);
+        for (int iteration = 0; iteration < 4; iteration++) {
+            double[][] data = iteration(all.getLinkIndex(), all.getNofBins(), 3600, random, 0.4);
+            all.addData(data[0], data[1]);
+            (iteration < 2 ? first : second).addData(data[0], data[1]);
+        }
+        String filename = new File(folder.getRoot(), "second.bin").getPath();
+        second.writeBinaryFile(filename);
+
+        BeamCalcLinkStats merged = create(3600, false);
+        merged.merge(first);
+        merged.merge(new LinkStatsBinaryReader(filename));
+        assertEquals(all.getCount(), merged.getCount());
+        assertSameStatistics(all.getTable(), merged.getTable(), network.getLinks().size(), 1e-12);
+    }
+
+    @Test
+    public void mergeOfSparseStatisticsMatchesSequentialCollection() throws IOException {
+        for (boolean sparse : new boolean[]{false, true}) {
+            BeamCalcLinkStats all = create(3600, sparse);
+            BeamCalcLinkStats first = create(3600, true);
+            BeamCalcLinkStats second = create(3600, true);
+            Random random = new Random(10);
+            for (int iteration = 0; iteration < 4; iteration++) {
+                // few links are used, so many have volume in only one of the halves
+                double[][] data = iteration(all.getLinkIndex(), all.getNofBins(), 3600, random, 0.2);
+                all.addData(data[0], data[1]);
+                (iteration < 2 ? first : second).addData(data[0], data[1]);
+            }
+            String filename = new File(folder.getRoot(), "sparse" + sparse + ".bin").getPath();
+            second.writeBinaryFile(filename);
+
+            BeamCalcLinkStats merged = create(3600, sparse);
+            merged.merge(first);
+            merged.merge(new LinkStatsBinaryReader(filename));
+            assertSameStatistics(all.getTable(), merged.getTable(), network.getLinks().size(), 1e-12);
+
+            BeamCalcLinkStats reversed = create(3600, sparse);
+            reversed.merge(new LinkStatsBinaryReader(filename));
+            reversed.merge(first);
+            assertEquals(all.getCount(), reversed.getCount());
+            assertSameStatistics(all.getTable(), reversed.getTable(), network.getLinks().size(), 1e-12);
+        }
+    }
+
+    @Test
+    public void linksMissingFromTheFirstMergeAreInitializedByTheNextIteration() {
+        BeamCalcLinkStats smaller = new BeamCalcLinkStats(createNetwork(400), config(), 3600, false, false);
+        collect(12, 2, 0.5, smaller);
+        BeamCalcLinkStats merged = create(3600, false);
+        merged.merge(smaller);
+        BeamCalcLinkStats later = create(3600, false);
+        collect(13, 1, 0.5, merged, later);
+
+        LinkIndex linkIndex = merged.getLinkIndex();
+        int missing = 0;
+        for (int index = 0; index < linkIndex.size(); index++) {
+            if (smaller.getLinkIndex().indexOf(linkIndex.getLinkId(index)) >= 0) {
+                continue;
+            }
+            missing++;
+            for (int hour = 0; hour <= merged.getNofBins(); hour++) {
+                assertEquals(later.getTable().getMinVolume(index, hour), merged.getTable().getMinVolume(index, hour), 0.0);
+            }
+            for (int hour = 0; hour < merged.getNofBins(); hour++) {
+                assertEquals(later.getTable().getMinTravelTime(index, hour), merged.getTable().getMinTravelTime(index, hour), 0.0);
+            }
+        }
+        assertEquals(100, missing);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeRejectsOtherBins() {
+        BeamCalcLinkStats other = create(900, false);
+        collect(8, 1, 0.5, other);
+        create(3600, false).merge(other);
+    }
+
+    @Test
+    public void travelTimeHoldsTheAverages() {
+        BeamCalcLinkStats stats = create(3600, false);
+        collect(9, 2, 0.5, stats);
+        ArrayTravelTime ttimes = stats.toTravelTime();
+        for (int index = 0; index < network.getLinks().size(); index++) {
+            Link link = stats.getLinkIndex().getLink(index);
+            for (int bin = 0; bin < stats.getNofBins(); bin++) {
+                double expected = (float) stats.getTable().calculateAverageTravelTime(index, bin);
+                assertEquals(expected, ttimes.getLinkTravelTime(link, bin * 3600 + 1800, null, null), 0.0);
+            }
+        }
+    }
+}
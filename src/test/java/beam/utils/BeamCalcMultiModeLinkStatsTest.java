@@ -0,0 +1,84 @@
+package beam.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.analysis.VolumesAnalyzer;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.router.util.TravelTime;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static beam.utils.LinkStatsFixtures.config;
+import static beam.utils.LinkStatsFixtures.createNetwork;
+import static beam.utils.LinkStatsFixtures.read;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BeamCalcMultiModeLinkStatsTest {
+
+    private static final List<String> MODES = Arrays.asList("car", "bus", "ride_hail");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Network network = createNetwork(300);
+
+    @Test
+    public void filesPerModeMatchSingleModeCollection() throws IOException {
+        for (int binSize : new int[]{3600, 900}) {
+            VolumesAnalyzer analyzer = LinkStatsFixtures.createVolumes(network, binSize, new Random(1), MODES.toArray(new String[0]));
+            TravelTime ttimes = LinkStatsFixtures.peakTravelTime();
+            BeamCalcMultiModeLinkStats multiMode = new BeamCalcMultiModeLinkStats(network, config(), MODES, binSize, false);
+            multiMode.setParallelism(2);
+            for (int iteration = 0; iteration < 2; iteration++) {
+                multiMode.addData(analyzer, ttimes);
+            }
+            multiMode.writeFiles(new File(folder.getRoot(), "linkstats_" + binSize + "_<mode>.csv.gz").getPath());
+
+            for (String mode : multiMode.getModes()) {
+                BeamCalcLinkStats single = new BeamCalcLinkStats(network, config(), binSize, false);
+                for (int iteration = 0; iteration < 2; iteration++) {
+                    single.addData(analyzer, ttimes, BeamCalcMultiModeLinkStats.ALL_MODES.equals(mode) ? null : mode);
+                }
+                File expected = new File(folder.getRoot(), "expected_" + binSize + "_" + mode + ".csv");
+                assertTrue(single.writeFileWithBufferedWriter(expected.getPath()));
+                File actual = new File(folder.getRoot(), "linkstats_" + binSize + "_" + mode + ".csv.gz");
+                assertArrayEquals(mode + " in bins of " + binSize + "s", read(expected), read(actual));
+            }
+        }
+    }
+
+    @Test
+    public void modeColumnFileHoldsTheRowsOfAllModes() throws IOException {
+        VolumesAnalyzer analyzer = LinkStatsFixtures.createVolumes(network, 3600, new Random(2), MODES.toArray(new String[0]));
+        BeamCalcMultiModeLinkStats multiMode = new BeamCalcMultiModeLinkStats(network, config(), MODES);
+        multiMode.addData(analyzer, LinkStatsFixtures.peakTravelTime());
+        File file = new File(folder.getRoot(), "linkstats.csv");
+        multiMode.writeFile(file.getPath());
+        multiMode.writeFiles(new File(folder.getRoot(), "linkstats_<mode>.csv").getPath());
+
+        String[] modes = multiMode.getModes();
+        String[][] perMode = new String[modes.length][];
+        for (int slot = 0; slot < modes.length; slot++) {
+            perMode[slot] = new String(read(new File(folder.getRoot(), "linkstats_" + modes[slot] + ".csv")), StandardCharsets.UTF_8).split("\n");
+        }
+        String[] lines = new String(read(file), StandardCharsets.UTF_8).split("\n");
+        assertEquals(perMode[0][0] + ",mode", lines[0]);
+        int nofBins = multiMode.getNofBins();
+        assertEquals(1 + network.getLinks().size() * nofBins * modes.length, lines.length);
+        for (int index = 0, line = 1; index < network.getLinks().size(); index++) {
+            for (int slot = 0; slot < modes.length; slot++) {
+                for (int bin = 0; bin < nofBins; bin++, line++) {
+                    assertEquals(perMode[slot][1 + index * nofBins + bin] + "," + modes[slot], lines[line]);
+                }
+            }
+        }
+    }
+}
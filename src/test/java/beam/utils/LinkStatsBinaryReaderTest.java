@@ -0,0 +1,88 @@
+package beam.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.network.Network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static beam.utils.LinkStatsFixtures.assertSameStatistics;
+import static beam.utils.LinkStatsFixtures.config;
+import static beam.utils.LinkStatsFixtures.createNetwork;
+import static beam.utils.LinkStatsFixtures.iteration;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class LinkStatsBinaryReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Network network = createNetwork(200);
+
+    private BeamCalcLinkStats collect(boolean sparse) {
+        BeamCalcLinkStats stats = new BeamCalcLinkStats(network, config(), 900, true, sparse);
+        Random random = new Random(3);
+        for (int iteration = 0; iteration < 2; iteration++) {
+            double[][] data = iteration(stats.getLinkIndex(), stats.getNofBins(), 900, random, 0.3);
+            stats.addData(data[0], data[1]);
+        }
+        return stats;
+    }
+
+    private String writeSnapshot(final BeamCalcLinkStats stats) {
+        String filename = new File(folder.getRoot(), "snapshot" + stats.getTable().isSparse() + ".bin").getPath();
+        stats.writeBinaryFile(filename);
+        return filename;
+    }
+
+    @Test
+    public void mapsTheWrittenColumns() throws IOException {
+        for (boolean sparse : new boolean[]{false, true}) {
+            BeamCalcLinkStats stats = collect(sparse);
+            LinkStatsBinaryReader reader = new LinkStatsBinaryReader(writeSnapshot(stats));
+            assertEquals(network.getLinks().size(), reader.getNofLinks());
+            assertEquals(900, reader.getBinSize());
+            assertEquals(2, reader.getCount());
+            for (int index = 0; index < reader.getNofLinks(); index++) {
+                assertEquals(stats.getLinkIndex().getLinkId(index), reader.getLinkIndex().getLinkId(index));
+            }
+            assertSameStatistics(stats.getTable(), reader, network.getLinks().size());
+        }
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File other = folder.newFile("other.bin");
+        try (RandomAccessFile file = new RandomAccessFile(other, "rw")) {
+            file.write(new byte[64]);
+        }
+        assertThrows(IOException.class, () -> new LinkStatsBinaryReader(other.getPath()));
+    }
+
+    @Test
+    public void rejectsAnUnexpectedNumberOfColumns() throws IOException {
+        String filename = writeSnapshot(collect(false));
+        try (RandomAccessFile file = new RandomAccessFile(filename, "rw")) {
+            // magic, version, nofLinks, nofHours, binSize and count precede the number of columns
+            file.seek(6 * Integer.BYTES);
+            file.write(ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).putInt(5).array());
+        }
+        assertThrows(IOException.class, () -> new LinkStatsBinaryReader(filename));
+    }
+
+    @Test
+    public void rejectsATruncatedFile() throws IOException {
+        String filename = writeSnapshot(collect(false));
+        try (RandomAccessFile file = new RandomAccessFile(filename, "rw")) {
+            file.setLength(file.length() - Double.BYTES);
+        }
+        assertThrows(IOException.class, () -> new LinkStatsBinaryReader(filename));
+    }
+}
@@ -0,0 +1,119 @@
+package beam.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static beam.utils.LinkStatsFixtures.config;
+import static beam.utils.LinkStatsFixtures.createNetwork;
+import static beam.utils.LinkStatsFixtures.iteration;
+import static org.junit.Assert.assertEquals;
+
+public class LinkStatsCsvReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Network network = createNetwork(400);
+
+    private BeamCalcLinkStats collect(int binSize) {
+        BeamCalcLinkStats stats = new BeamCalcLinkStats(network, config(), binSize, false);
+        Random random = new Random(binSize);
+        for (int iteration = 0; iteration < 3; iteration++) {
+            double[][] data = iteration(stats.getLinkIndex(), stats.getNofBins(), binSize, random, 0.6);
+            stats.addData(data[0], data[1]);
+        }
+        return stats;
+    }
+
+    private static void assertSameAverages(final BeamCalcLinkStats expected, final LinkStatsTable actual, final LinkIndex actualIndex) {
+        int nofBins = expected.getNofBins();
+        for (int index = 0; index < actualIndex.size(); index++) {
+            int expectedIndex = expected.getLinkIndex().indexOf(actualIndex.getLinkId(index));
+            double daily = 0.0;
+            for (int bin = 0; bin < nofBins; bin++) {
+                double volume = expected.getTable().getSumVolume(expectedIndex, bin) / expected.getCount();
+                double ttime = expected.getTable().calculateAverageTravelTime(expectedIndex, bin);
+                assertEquals(volume, actual.getSumVolume(index, bin), 0.0);
+                assertEquals(ttime, actual.getMinTravelTime(index, bin), 0.0);
+                assertEquals(ttime, actual.calculateAverageTravelTime(index, bin), Math.abs(ttime) * 1e-12);
+                daily += volume;
+            }
+            assertEquals(daily, actual.getSumVolume(index, nofBins), 0.0);
+        }
+    }
+
+    @Test
+    public void readsTheWrittenAverages() throws IOException {
+        for (int binSize : new int[]{3600, 900}) {
+            BeamCalcLinkStats stats = collect(binSize);
+            for (String suffix : new String[]{".csv", ".csv.gz"}) {
+                String filename = new File(folder.getRoot(), "linkstats" + binSize + suffix).getPath();
+                stats.writeFile(filename);
+                LinkStatsCsvReader reader = new LinkStatsCsvReader(stats.getLinkIndex(), binSize, stats.getNofBins());
+                reader.setParallelism(3);
+                LinkStatsTable table = reader.read(filename);
+                assertEquals(0, reader.getSkippedRows());
+                assertSameAverages(stats, table, stats.getLinkIndex());
+            }
+        }
+    }
+
+    @Test
+    public void skipsUnknownLinks() throws IOException {
+        BeamCalcLinkStats stats = collect(3600);
+        String filename = new File(folder.getRoot(), "linkstats.csv").getPath();
+        stats.writeFile(filename);
+
+        List<Link> links = new ArrayList<>(network.getLinks().values());
+        Collections.reverse(links);
+        List<Link> known = links.subList(0, links.size() / 2);
+        List<Id<Link>> knownIds = new ArrayList<>();
+        for (Link link : known) {
+            knownIds.add(link.getId());
+        }
+        LinkIndex linkIndex = new LinkIndex(knownIds);
+        LinkStatsCsvReader reader = new LinkStatsCsvReader(linkIndex, 3600, stats.getNofBins());
+        LinkStatsTable table = reader.read(filename);
+        assertEquals((long) (links.size() - known.size()) * stats.getNofBins(), reader.getSkippedRows());
+        assertSameAverages(stats, table, linkIndex);
+    }
+
+    @Test
+    public void readsOneModeOfAModeColumnFile() throws IOException {
+        List<String> modes = Arrays.asList("car", "bike");
+        BeamCalcMultiModeLinkStats multiMode = new BeamCalcMultiModeLinkStats(network, config(), modes);
+        multiMode.addData(LinkStatsFixtures.createVolumes(network, 3600, new Random(3), "car", "bike"), LinkStatsFixtures.peakTravelTime());
+        String filename = new File(folder.getRoot(), "linkstats.csv.gz").getPath();
+        multiMode.writeFile(filename);
+
+        LinkStatsTable table = new LinkStatsCsvReader(multiMode.getLinkIndex(), 3600, multiMode.getNofBins()).read(filename, "bike");
+        for (int index = 0; index < network.getLinks().size(); index++) {
+            int row = multiMode.getRow(index, "bike");
+            for (int bin = 0; bin < multiMode.getNofBins(); bin++) {
+                assertEquals(multiMode.getTable().getSumVolume(row, bin), table.getSumVolume(index, bin), 0.0);
+                assertEquals(multiMode.getTable().calculateAverageTravelTime(row, bin), table.getMinTravelTime(index, bin), 0.0);
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAModeColumnFileWithoutMode() throws IOException {
+        BeamCalcMultiModeLinkStats multiMode = new BeamCalcMultiModeLinkStats(network, config(), Collections.singletonList("car"));
+        multiMode.addData(LinkStatsFixtures.createVolumes(network, 3600, new Random(4), "car"), LinkStatsFixtures.peakTravelTime());
+        String filename = new File(folder.getRoot(), "linkstats.csv").getPath();
+        multiMode.writeFile(filename);
+        new LinkStatsCsvReader(multiMode.getLinkIndex(), 3600, multiMode.getNofBins()).read(filename);
+    }
+}
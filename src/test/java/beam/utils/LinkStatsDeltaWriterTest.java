@@ -0,0 +1,158 @@
+package beam.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.network.Network;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static beam.utils.LinkStatsFixtures.config;
+import static beam.utils.LinkStatsFixtures.createNetwork;
+import static beam.utils.LinkStatsFixtures.iteration;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class LinkStatsDeltaWriterTest {
+
+    private static final int ITERATIONS = 7;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Network network = createNetwork(300);
+
+    /**
+     * Collects and writes ITERATIONS iterations, in which only a few links change.
+     *
+     * @return the averages of every iteration, volumes at [iteration][0] and travel times at [iteration][1]
+     */
+    private double[][][] writeIterations(final BeamCalcLinkStats stats, final List<String> filenames, String suffix) {
+        Random random = new Random(11);
+        double[][] data = iteration(stats.getLinkIndex(), stats.getNofBins(), stats.getBinSize(), random, 0.5);
+        double[][][] averages = new double[ITERATIONS][][];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            for (int cell = random.nextInt(50); cell < data[0].length; cell += 1 + random.nextInt(200)) {
+                data[0][cell] += random.nextInt(3);
+                data[1][cell] *= 1 + random.nextDouble() / 100;
+            }
+            stats.addData(data[0], data[1]);
+            String filename = new File(folder.getRoot(), "delta" + iteration + suffix).getPath();
+            stats.writeDeltaFile(filename, iteration);
+            filenames.add(filename);
+
+            LinkStatsTable table = stats.getTable();
+            int nofBins = stats.getNofBins();
+            averages[iteration] = new double[2][stats.getLinkIndex().size() * nofBins];
+            for (int index = 0; index < stats.getLinkIndex().size(); index++) {
+                for (int bin = 0; bin < nofBins; bin++) {
+                    averages[iteration][0][index * nofBins + bin] = table.getSumVolume(index, bin) / stats.getCount();
+                    averages[iteration][1][index * nofBins + bin] = table.calculateAverageTravelTime(index, bin);
+                }
+            }
+        }
+        return averages;
+    }
+
+    private static void assertAverages(final double[][] expected, final LinkStatsDeltaReader reader, double tolerance) {
+        int nofBins = reader.getNofHours();
+        for (int index = 0; index < reader.getLinkIndex().size(); index++) {
+            for (int bin = 0; bin < nofBins; bin++) {
+                assertEquals(expected[0][index * nofBins + bin], reader.getVolume(index, bin), tolerance);
+                assertEquals(expected[1][index * nofBins + bin], reader.getTravelTime(index, bin), tolerance);
+            }
+        }
+    }
+
+    @Test
+    public void reconstructsEveryIteration() throws IOException {
+        for (String suffix : new String[]{".bin", ".bin.gz"}) {
+            BeamCalcLinkStats stats = new BeamCalcLinkStats(network, config(), 900, false);
+            stats.setDeltaOutput(0.0, 3);
+            List<String> filenames = new ArrayList<>();
+            double[][][] averages = writeIterations(stats, filenames, suffix);
+            for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+                // the bases are the files 0, 3 and 6
+                int base = iteration - iteration % 3;
+                LinkStatsDeltaReader reader = LinkStatsDeltaReader.read(filenames.subList(base, iteration + 1));
+                assertEquals(iteration, reader.getIteration());
+                assertEquals(900, reader.getBinSize());
+                assertAverages(averages[iteration], reader, 0.0);
+            }
+            assertTrue(new File(filenames.get(1)).length() < new File(filenames.get(0)).length());
+        }
+    }
+
+    @Test
+    public void staysWithinTheTolerance() throws IOException {
+        BeamCalcLinkStats stats = new BeamCalcLinkStats(network, config(), 3600, false);
+        stats.setDeltaOutput(0.5, 0);
+        List<String> filenames = new ArrayList<>();
+        double[][][] averages = writeIterations(stats, filenames, ".bin");
+        LinkStatsDeltaReader reader = new LinkStatsDeltaReader();
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            reader.apply(filenames.get(iteration));
+            assertAverages(averages[iteration], reader, 0.5);
+        }
+    }
+
+    @Test
+    public void rejectsADeltaThatDoesNotFollowTheLastIteration() throws IOException {
+        BeamCalcLinkStats stats = new BeamCalcLinkStats(network, config(), 3600, false);
+        List<String> filenames = new ArrayList<>();
+        writeIterations(stats, filenames, ".bin");
+        LinkStatsDeltaReader reader = new LinkStatsDeltaReader();
+        reader.apply(filenames.get(0));
+        assertThrows(IOException.class, () -> reader.apply(filenames.get(2)));
+        assertEquals(0, reader.getIteration());
+    }
+
+    @Test
+    public void writesABaseAfterAFailedWrite() throws IOException {
+        BeamCalcLinkStats stats = new BeamCalcLinkStats(network, config(), 3600, false);
+        boolean[] failing = {false};
+        LinkStatsDeltaWriter writer = new LinkStatsDeltaWriter(stats.getLinkIndex(), stats.getNofBins(), 3600, 0.0, 0) {
+            @Override
+            OutputStream open(String filename) throws IOException {
+                OutputStream out = super.open(filename);
+                return !failing[0] ? out : new FilterOutputStream(out) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        throw new IOException("disk full");
+                    }
+                };
+            }
+        };
+        Random random = new Random(12);
+        List<String> filenames = new ArrayList<>();
+        for (int iteration = 0; iteration < 4; iteration++) {
+            double[][] data = iteration(stats.getLinkIndex(), stats.getNofBins(), 3600, random, 0.5);
+            stats.addData(data[0], data[1]);
+            String filename = new File(folder.getRoot(), "failing" + iteration + ".bin").getPath();
+            failing[0] = iteration == 2;
+            if (failing[0]) {
+                int lostIteration = iteration;
+                assertThrows(IOException.class, () -> writer.write(filename, stats.getTable(), stats.getCount(), lostIteration));
+                continue;
+            }
+            boolean base = writer.write(filename, stats.getTable(), stats.getCount(), iteration);
+            assertEquals(iteration == 0 || iteration == 3, base);
+            filenames.add(filename);
+        }
+        LinkStatsDeltaReader reader = LinkStatsDeltaReader.read(filenames.subList(2, 3));
+        assertEquals(3, reader.getIteration());
+        for (int index = 0; index < stats.getLinkIndex().size(); index++) {
+            for (int hour = 0; hour < stats.getNofBins(); hour++) {
+                assertEquals(stats.getTable().getSumVolume(index, hour) / stats.getCount(), reader.getVolume(index, hour), 0.0);
+                assertEquals(stats.getTable().calculateAverageTravelTime(index, hour), reader.getTravelTime(index, hour), 0.0);
+            }
+        }
+    }
+}
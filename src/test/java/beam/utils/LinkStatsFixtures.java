@@ -0,0 +1,160 @@
+package beam.utils;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.analysis.VolumesAnalyzer;
+import org.matsim.core.config.groups.TravelTimeCalculatorConfigGroup;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Small deterministic networks and iterations for the link stats tests.
+ */
+final class LinkStatsFixtures {
+
+    static final int MAX_TIME = 24 * 3600;
+
+    private LinkStatsFixtures() {
+    }
+
+    static TravelTimeCalculatorConfigGroup config() {
+        TravelTimeCalculatorConfigGroup config = new TravelTimeCalculatorConfigGroup();
+        config.setMaxTime(MAX_TIME);
+        return config;
+    }
+
+    /**
+     * @return a chain of links, every third one with a non-ascii id
+     */
+    static Network createNetwork(int nofLinks) {
+        Network network = NetworkUtils.createNetwork();
+        NetworkFactory factory = network.getFactory();
+        Random random = new Random(17);
+        Node[] nodes = new Node[nofLinks + 1];
+        for (int i = 0; i <= nofLinks; i++) {
+            nodes[i] = factory.createNode(Id.create("n" + i, Node.class), new Coord(i * 100.0, 0.0));
+            network.addNode(nodes[i]);
+        }
+        for (int i = 0; i < nofLinks; i++) {
+            Link link = factory.createLink(Id.create("l" + i + (i % 3 == 0 ? "é" : ""), Link.class), nodes[i], nodes[i + 1]);
+            link.setLength(random.nextInt(4) == 0 ? 100 : 50 + random.nextDouble() * 500);
+            link.setFreespeed(random.nextBoolean() ? 13.89 : 5 + random.nextDouble() * 20);
+            link.setCapacity(600 * (1 + random.nextInt(4)));
+            link.setNumberOfLanes(1);
+            network.addLink(link);
+        }
+        return network;
+    }
+
+    /**
+     * One iteration as link-major matrices for {@link BeamCalcLinkStats#addData(double[], double[])}: links that are
+     * not used keep zero volume and their free flow travel time, as the travel time calculator would report.
+     *
+     * @param usedShare share of links that see any volume
+     * @return volumes at [0] and travel times at [1]
+     */
+    static double[][] iteration(final LinkIndex linkIndex, int nofBins, int binSize, final Random random, double usedShare) {
+        double[] volumes = new double[linkIndex.size() * nofBins];
+        double[] ttimes = new double[linkIndex.size() * nofBins];
+        for (int index = 0; index < linkIndex.size(); index++) {
+            Link link = linkIndex.getLink(index);
+            boolean used = random.nextDouble() < usedShare;
+            for (int bin = 0; bin < nofBins; bin++) {
+                int cell = index * nofBins + bin;
+                volumes[cell] = used && random.nextBoolean() ? random.nextInt(40) : 0;
+                double freeFlow = link.getLength() / link.getFreespeed(bin * binSize);
+                ttimes[cell] = volumes[cell] == 0 ? freeFlow : random.nextBoolean() ? freeFlow + random.nextInt(60) : freeFlow * (1 + random.nextDouble());
+            }
+        }
+        return new double[][]{volumes, ttimes};
+    }
+
+    /**
+     * Volumes of vehicles that each traverse a few consecutive links, every vehicle driving one of the modes.
+     */
+    static VolumesAnalyzer createVolumes(final Network network, int binSize, final Random random, final String... modes) {
+        VolumesAnalyzer analyzer = new VolumesAnalyzer(binSize, MAX_TIME, network);
+        Link[] links = network.getLinks().values().toArray(new Link[0]);
+        for (int v = 0; v < links.length * 3; v++) {
+            Id<Vehicle> vehicle = Id.create("v" + v, Vehicle.class);
+            int first = random.nextInt(links.length);
+            double time = random.nextDouble() * (MAX_TIME - 3600);
+            analyzer.handleEvent(new VehicleEntersTrafficEvent(time, Id.create(v, Person.class), links[first].getId(), vehicle,
+                    modes[v % modes.length], 1.0));
+            for (int i = 0; i < 4 && first + i < links.length; i++) {
+                time += 10 + random.nextInt(60);
+                analyzer.handleEvent(new LinkLeaveEvent(time, vehicle, links[first + i].getId()));
+            }
+        }
+        return analyzer;
+    }
+
+    /**
+     * Travel times that are congested around the peak hours and free flow otherwise.
+     */
+    static TravelTime peakTravelTime() {
+        return (link, time, person, vehicle) -> {
+            double freeFlow = link.getLength() / link.getFreespeed(time);
+            int hour = (int) (time / 3600);
+            return hour == 8 || hour == 17 ? freeFlow * 1.7 + hour / 10.0 : freeFlow;
+        };
+    }
+
+    static void assertSameStatistics(final LinkStatsSource expected, final LinkStatsSource actual, int nofLinks) {
+        assertSameStatistics(expected, actual, nofLinks, 0.0);
+    }
+
+    /**
+     * @param relativeError error allowed for the sums, which differ in rounding when they were added up in another order
+     */
+    static void assertSameStatistics(final LinkStatsSource expected, final LinkStatsSource actual, int nofLinks, double relativeError) {
+        assertEquals(expected.getNofHours(), actual.getNofHours());
+        for (int link = 0; link < nofLinks; link++) {
+            for (int hour = 0; hour <= expected.getNofHours(); hour++) {
+                assertEquals("min volume " + link + "/" + hour, expected.getMinVolume(link, hour), actual.getMinVolume(link, hour), 0.0);
+                assertEquals("sum volume " + link + "/" + hour, expected.getSumVolume(link, hour), actual.getSumVolume(link, hour),
+                        Math.abs(expected.getSumVolume(link, hour)) * relativeError);
+            }
+            for (int hour = 0; hour < expected.getNofHours(); hour++) {
+                assertEquals("min travel time " + link + "/" + hour, expected.getMinTravelTime(link, hour), actual.getMinTravelTime(link, hour), 0.0);
+                assertEquals("sum travel time " + link + "/" + hour, expected.getSumTravelTime(link, hour), actual.getSumTravelTime(link, hour),
+                        Math.abs(expected.getSumTravelTime(link, hour)) * relativeError);
+            }
+        }
+    }
+
+    /**
+     * @return the content of the file, decompressed if its name ends with .gz
+     */
+    static byte[] read(final File file) throws IOException {
+        if (!file.getName().endsWith(".gz")) {
+            return Files.readAllBytes(file.toPath());
+        }
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file.toPath()))) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1 << 16];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                content.write(buffer, 0, n);
+            }
+            return content.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package beam.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import static beam.utils.LinkStatsFixtures.createNetwork;
+import static org.junit.Assert.assertEquals;
+
+public class NetworkSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Network network(int nofLinks) {
+        Network network = createNetwork(nofLinks);
+        for (Link link : network.getLinks().values()) {
+            link.setAllowedModes(Collections.singleton("car"));
+        }
+        return network;
+    }
+
+    @Test
+    public void rebuildsTheNetworkForOtherSourcesOrAnotherConfiguration() throws IOException {
+        File source = folder.newFile("network.osm");
+        Files.write(source.toPath(), "first".getBytes(StandardCharsets.UTF_8));
+        List<String> sources = Collections.singletonList(source.getPath());
+        String snapshot = new File(folder.getRoot(), "network.bin").getPath();
+        int[] builds = {0};
+        long configuration = NetworkSnapshot.settingsChecksum(Collections.singletonList("car"), "EPSG:26910");
+
+        Network built = NetworkSnapshot.loadOrBuild(snapshot, sources, configuration, () -> {
+            builds[0]++;
+            return network(50);
+        });
+        Network loaded = NetworkSnapshot.loadOrBuild(snapshot, sources, configuration, () -> {
+            builds[0]++;
+            return network(50);
+        });
+        assertEquals(1, builds[0]);
+        assertEquals(built.getLinks().keySet(), loaded.getLinks().keySet());
+
+        long otherConfiguration = NetworkSnapshot.settingsChecksum(Collections.singletonList("car"), "EPSG:32610");
+        NetworkSnapshot.loadOrBuild(snapshot, sources, otherConfiguration, () -> {
+            builds[0]++;
+            return network(40);
+        });
+        assertEquals(2, builds[0]);
+
+        Files.write(source.toPath(), "second".getBytes(StandardCharsets.UTF_8));
+        Network rebuilt = NetworkSnapshot.loadOrBuild(snapshot, sources, otherConfiguration, () -> {
+            builds[0]++;
+            return network(30);
+        });
+        assertEquals(3, builds[0]);
+        assertEquals(30, rebuilt.getLinks().size());
+    }
+}
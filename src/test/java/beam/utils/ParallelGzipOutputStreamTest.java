@@ -0,0 +1,110 @@
+package beam.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelGzipOutputStreamTest {
+
+    /**
+     * Compressible data of several blocks, like the csv and xml files written with this stream.
+     */
+    private static byte[] data(int length) {
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(1);
+        while (text.length() < length) {
+            text.append("\t<event time=\"").append(random.nextInt(100000)).append(".0\" type=\"entered link\" vehicle=\"")
+                    .append(random.nextInt(1000)).append("\" link=\"").append(random.nextInt(50000)).append("\"  />\n");
+        }
+        return text.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1 << 16];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                content.write(buffer, 0, n);
+            }
+            return content.toByteArray();
+        }
+    }
+
+    @Test
+    public void writesConcatenatedMembersThatGunzipReadsAsOneStream() throws IOException {
+        byte[] data = data(3 << 20);
+        for (int threads : new int[]{1, 2, 4}) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (OutputStream out = new ParallelGzipOutputStream(compressed, threads, 1 << 16, Deflater.DEFAULT_COMPRESSION)) {
+                Random random = new Random(threads);
+                for (int offset = 0; offset < data.length; ) {
+                    int length = Math.min(data.length - offset, random.nextInt(3) == 0 ? 1 : random.nextInt(200000));
+                    if (length == 1) {
+                        out.write(data[offset]);
+                    } else {
+                        out.write(data, offset, length);
+                    }
+                    offset += length;
+                }
+            }
+            byte[] bytes = compressed.toByteArray();
+            assertEquals(0x1f, bytes[0] & 0xff);
+            assertEquals(0x8b, bytes[1] & 0xff);
+            assertTrue(bytes.length < data.length / 4);
+            assertArrayEquals("threads " + threads, data, gunzip(bytes));
+        }
+    }
+
+    @Test
+    public void writesAnEmptyStream() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream(compressed, 2).close();
+        assertEquals(0, gunzip(compressed.toByteArray()).length);
+    }
+
+    @Test
+    public void flushWritesTheDataSoFar() throws IOException {
+        byte[] data = data(100000);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = new ParallelGzipOutputStream(compressed, 2, 1 << 20, Deflater.BEST_SPEED)) {
+            out.write(data);
+            out.flush();
+            assertArrayEquals(data, gunzip(compressed.toByteArray()));
+        }
+    }
+
+    @Test
+    public void closesTheTargetWhenWritingFails() {
+        boolean[] closed = {false};
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        assertThrows(IOException.class, () -> {
+            try (OutputStream out = new ParallelGzipOutputStream(failing, 4, 1 << 12, Deflater.DEFAULT_COMPRESSION)) {
+                out.write(new byte[1 << 16]);
+            }
+        });
+        assertTrue(closed[0]);
+    }
+}
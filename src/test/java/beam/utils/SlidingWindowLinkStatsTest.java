@@ -0,0 +1,109 @@
+package beam.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class SlidingWindowLinkStatsTest {
+
+    private static final int NOF_LINKS = 20;
+    private static final int NOF_HOURS = 5;
+
+    /**
+     * Values of one iteration: random, steadily rising and falling ones, which are the worst case of a rescan of the
+     * window, and large constant offsets with little noise, for which a sum of squares loses the variance.
+     */
+    private static double[] iteration(int iteration, Random random) {
+        double[] values = new double[NOF_LINKS * NOF_HOURS];
+        for (int cell = 0; cell < values.length; cell++) {
+            switch (cell % 4) {
+                case 0:
+                    values[cell] = random.nextInt(10);
+                    break;
+                case 1:
+                    values[cell] = iteration * 3.5;
+                    break;
+                case 2:
+                    values[cell] = -iteration + cell;
+                    break;
+                default:
+                    values[cell] = 1e9 + random.nextDouble();
+            }
+        }
+        return values;
+    }
+
+    private static void assertWindow(final List<double[]> window, final SlidingWindowLinkStats stats) {
+        assertEquals(window.size(), stats.getSize());
+        for (int link = 0; link < NOF_LINKS; link++) {
+            for (int hour = 0; hour < NOF_HOURS; hour++) {
+                int cell = link * NOF_HOURS + hour;
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                double sum = 0;
+                for (double[] values : window) {
+                    min = Math.min(min, values[cell]);
+                    max = Math.max(max, values[cell]);
+                    sum += values[cell];
+                }
+                double mean = sum / window.size();
+                double squares = 0;
+                for (double[] values : window) {
+                    squares += (values[cell] - mean) * (values[cell] - mean);
+                }
+                double variance = squares / window.size();
+                assertEquals(min, stats.getMinVolume(link, hour), 0.0);
+                assertEquals(max, stats.getMaxVolume(link, hour), 0.0);
+                assertEquals(mean, stats.getAverageVolume(link, hour), Math.abs(mean) * 1e-12);
+                assertEquals(variance, stats.getVolumeVariance(link, hour), 1e-6 * Math.max(1.0, variance));
+                assertEquals(-min, stats.getMaxTravelTime(link, hour), 0.0);
+                assertEquals(-max, stats.getMinTravelTime(link, hour), 0.0);
+                assertEquals(variance, stats.getTravelTimeVariance(link, hour), 1e-6 * Math.max(1.0, variance));
+            }
+        }
+    }
+
+    @Test
+    public void keepsTheStatisticsOfTheLastIterations() {
+        for (int windowSize : new int[]{1, 3, 7}) {
+            SlidingWindowLinkStats stats = new SlidingWindowLinkStats(NOF_LINKS, NOF_HOURS, windowSize);
+            Random random = new Random(windowSize);
+            List<double[]> window = new ArrayList<>();
+            for (int iteration = 0; iteration < 30; iteration++) {
+                double[] volumes = iteration(iteration, random);
+                double[] ttimes = new double[volumes.length];
+                for (int cell = 0; cell < volumes.length; cell++) {
+                    ttimes[cell] = -volumes[cell];
+                }
+                for (int link = 0; link < NOF_LINKS; link++) {
+                    stats.add(link, volumes, link * NOF_HOURS, ttimes, link * NOF_HOURS);
+                }
+                stats.advance();
+                window.add(volumes);
+                if (window.size() > windowSize) {
+                    window.remove(0);
+                }
+                assertWindow(window, stats);
+                if (iteration == 15) {
+                    stats.clear();
+                    window.clear();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void keepsTheVarianceOfConstantValuesAtZero() {
+        SlidingWindowLinkStats stats = new SlidingWindowLinkStats(1, 1, 3);
+        double[] values = {0.1 + 0.2};
+        for (int iteration = 0; iteration < 10; iteration++) {
+            stats.add(0, values, 0, values, 0);
+            stats.advance();
+            assertEquals(0.0, stats.getVolumeVariance(0, 0), 0.0);
+        }
+    }
+}